@@ -0,0 +1,173 @@
+package eu.sqooss.service.cache.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.sqooss.service.cache.CacheService;
+import eu.sqooss.service.cache.InMemoryCache;
+import eu.sqooss.service.cache.OffHeapCache;
+import eu.sqooss.service.cache.OnDiskCache;
+import eu.sqooss.service.cache.SegmentCache;
+import eu.sqooss.service.cache.TwoTierCache;
+
+/**
+ * Latency and throughput of the cache backends. Every backend is used
+ * directly, without the compression wrapper that the service adds, so the
+ * numbers show the cost of the storage path alone. With the
+ * <tt>OnDiskCache</tt>, long keys go through the MD5 file naming and every
+ * call through a <tt>FileLock</tt> and a memory mapping.
+ *
+ * The working set is filled with random data from a fixed seed before each
+ * trial, and each benchmark thread draws keys from its own fixed seed, so
+ * that runs with the same parameters do the same work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g", "-XX:MaxDirectMemorySize=1g"})
+public class CacheBenchmark {
+
+    /** Total size of the values stored before a trial */
+    static final long WORKING_SET = 64L * 1024 * 1024;
+    static final int MAX_KEYS = 1024;
+    static final long SEED = 42;
+
+    @Param({"InMemoryCache", "OnDiskCache", "SegmentCache", "TwoTierCache",
+        "OffHeapCache"})
+    public String impl;
+
+    @Param({"1024", "16384", "262144", "1048576", "10485760"})
+    public int valueSize;
+
+    /** Share of the lookups that find an entry */
+    @Param({"1.0", "0.9", "0.5"})
+    public double hitRatio;
+
+    /** Keys over 128 characters are hashed by the OnDiskCache */
+    @Param({"16", "200"})
+    public int keyLength;
+
+    CacheService cache;
+    File dir;
+    String[] keys;
+    byte[] value;
+
+    /* Entries stored; lookups are drawn from count / hitRatio keys */
+    int count;
+    int range;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"),
+                "cache-benchmark-" + System.nanoTime());
+        cache = create();
+
+        Random r = new Random(SEED);
+        value = new byte[valueSize];
+        r.nextBytes(value);
+
+        count = (int) Math.max(4, Math.min(MAX_KEYS, WORKING_SET / valueSize));
+        range = (int) Math.ceil(count / hitRatio);
+        keys = new String[range];
+        for (int i = 0; i < range; i++)
+            keys[i] = key(i);
+        for (int i = 0; i < count; i++)
+            cache.set(keys[i], value);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.shutDown();
+        delete(dir);
+    }
+
+    private CacheService create() throws Exception {
+        String path = dir.getPath();
+        if (impl.equals("InMemoryCache"))
+            return new InMemoryCache(4 * WORKING_SET);
+        if (impl.equals("OnDiskCache"))
+            return new OnDiskCache(path);
+        if (impl.equals("SegmentCache"))
+            return new SegmentCache(path, 64L * 1024 * 1024, 0.5);
+        if (impl.equals("TwoTierCache"))
+            return new TwoTierCache(new InMemoryCache(WORKING_SET / 4),
+                    new SegmentCache(path, 64L * 1024 * 1024, 0.5), 1, false);
+        if (impl.equals("OffHeapCache"))
+            return new OffHeapCache(4 * WORKING_SET, 1024 * 1024);
+        throw new IllegalArgumentException("Unknown cache implementation " + impl);
+    }
+
+    private String key(int i) {
+        StringBuilder b = new StringBuilder("key-").append(i);
+        while (b.length() < keyLength)
+            b.append('x');
+        return b.toString();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        f.delete();
+    }
+
+    /** Key choice of a single benchmark thread */
+    @State(Scope.Thread)
+    public static class Keys {
+        private static final AtomicInteger threads = new AtomicInteger();
+        Random random;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            random = new Random(SEED + threads.incrementAndGet());
+        }
+    }
+
+    @Benchmark
+    public byte[] get(Keys k) {
+        return cache.get(keys[k.random.nextInt(range)]);
+    }
+
+    @Benchmark
+    public long getStream(Keys k) throws IOException {
+        InputStream in = cache.getStream(keys[k.random.nextInt(range)]);
+        if (in == null)
+            return -1;
+        byte[] buff = new byte[64 * 1024];
+        long total = 0;
+        int read;
+        try {
+            while ((read = in.read(buff)) != -1)
+                total += read;
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public void set(Keys k) {
+        cache.set(keys[k.random.nextInt(count)], value);
+    }
+}
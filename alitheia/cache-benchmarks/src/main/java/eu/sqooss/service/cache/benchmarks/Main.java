@@ -0,0 +1,49 @@
+package eu.sqooss.service.cache.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the cache benchmarks once for each thread count, as JMH only takes
+ * a single one per run. Arguments are passed on to JMH; the thread counts
+ * come from the following system property:
+ *
+ *  <dl>
+ *      <dt>
+ *          eu.sqooss.service.cache.benchmarks.threads
+ *      </dt>
+ *      <dd>
+ *          Comma separated thread counts, 1,4,16 by default. Results are
+ *          written to target/jmh-&lt;threads&gt;.json.
+ *      </dd>
+ * </dl>
+ */
+public class Main {
+
+    public static final String THREADS = "eu.sqooss.service.cache.benchmarks.threads";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+
+        new File("target").mkdirs();
+        for (String t : System.getProperty(THREADS, "1,4,16").split(",")) {
+            int threads = Integer.parseInt(t.trim());
+            OptionsBuilder options = new OptionsBuilder();
+            options.parent(cmd);
+            if (cmd.getIncludes().isEmpty())
+                options.include(CacheBenchmark.class.getSimpleName());
+            options.threads(threads)
+                .result("target/jmh-" + threads + ".json")
+                .resultFormat(ResultFormatType.JSON);
+            new Runner(options.build()).run();
+        }
+    }
+}
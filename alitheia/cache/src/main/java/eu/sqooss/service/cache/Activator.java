@@ -4,11 +4,15 @@ import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
 import eu.sqooss.core.AlitheiaCore;
+import eu.sqooss.service.admin.AdminService;
 
 public class Activator implements BundleActivator {
 
     public void start(BundleContext bc) throws Exception {
         AlitheiaCore.getInstance().registerService(CacheService.class, CacheServiceImpl.class);
+        AdminService as = AlitheiaCore.getInstance().getAdminService();
+        if (as != null)
+            as.registerAdminAction(CacheInfo.MNEMONIC, CacheInfo.class);
     }
   
     public void stop(BundleContext bc) throws Exception {
@@ -0,0 +1,43 @@
+package eu.sqooss.service.cache;
+
+import java.util.Map;
+
+import eu.sqooss.core.AlitheiaCore;
+import eu.sqooss.service.admin.AdminActionBase;
+
+/**
+ * Returns the usage statistics of the cache service, for sizing the cache
+ * and checking whether it is effective.
+ */
+public class CacheInfo extends AdminActionBase {
+
+    public static final String MNEMONIC = "cacheinfo";
+    private static final String descr = "Returns cache usage statistics";
+
+    public CacheInfo() {
+        super();
+    }
+
+    @Override
+    public String mnemonic() {
+        return MNEMONIC;
+    }
+
+    @Override
+    public String descr() {
+        return descr;
+    }
+
+    @Override
+    public void execute() throws Exception {
+        super.execute();
+        CacheService cache = AlitheiaCore.getInstance().getService(
+                CacheService.class);
+        if (cache == null)
+            error("cache", "The cache service is not running");
+
+        for (Map.Entry<String, Object> e : cache.getStats().entrySet())
+            result("cache." + e.getKey(), e.getValue());
+        finished("Info retrieved");
+    }
+}
@@ -1,6 +1,8 @@
 package eu.sqooss.service.cache;
 
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.Map;
 
 import eu.sqooss.core.AlitheiaCoreService;
 
@@ -15,6 +17,15 @@ import eu.sqooss.core.AlitheiaCoreService;
  */
 public interface CacheService extends AlitheiaCoreService {
 
+    /**
+     * Separates the namespaces of a key. The key
+     * <code>project/42/files/foo.c</code> belongs to the namespaces
+     * <code>project</code>, <code>project/42</code> and
+     * <code>project/42/files</code>, each of which can be invalidated at
+     * once with {@link #invalidate(String)}.
+     */
+    String NAMESPACE_SEPARATOR = "/";
+
     /**
      * Get contents of key as an unencoded raw byte data array. The contents of
      * the array can be discarded after the call. 22
@@ -22,13 +33,21 @@ public interface CacheService extends AlitheiaCoreService {
     byte[] get(String key);
 
     /**
-     * Get the contents of key as an InputStream.
+     * Get the contents of key as an InputStream. Disk based implementations
+     * read the contents from the backing store as the stream is consumed.
      *
      * WARNING, ACHTUNG: The client is responsible to close the returned input
      * stream, otherwise the system's resources will be soon exhausted.
      */
     InputStream getStream(String key);
 
+    /**
+     * Get the contents of several keys at once. Implementations spread the
+     * cost of locking and of I/O over the whole batch. Keys that are not in
+     * the cache are missing from the returned map.
+     */
+    Map<String, byte[]> getAll(Collection<String> keys);
+
     /**
      * Set the contents of a key as an in-memory byte array. After the call, the
      * array can be deleted as the contents are guaranteed to be safely copied.
@@ -36,10 +55,46 @@ public interface CacheService extends AlitheiaCoreService {
     void set(String key, byte[] data);
 
     /**
-     * Set the contents of key from the provided input stream. This method is
-     * for convenience only, and it is slow as it performs lots of unecessary
-     * copying. Use the much faster {@link #set(String, byte[])} instead when
-     * you know the size of the data you want to put on the cache.
+     * As {@link #set(String, byte[])}, but the entry expires after ttl
+     * msec. A ttl of 0 means that the entry does not expire.
+     */
+    void set(String key, byte[] data, long ttl);
+
+    /**
+     * Set the contents of several keys at once, with the same guarantees as
+     * {@link #set(String, byte[])}.
+     */
+    void setAll(Map<String, byte[]> entries);
+
+    /**
+     * Set the contents of key from the provided input stream. Disk based
+     * implementations copy the stream to the backing store incrementally,
+     * so this is the preferred way to cache large contents. The stream is
+     * read to its end but not closed.
      */
     void setStream(String key, InputStream oos);
+
+    /**
+     * Remove the entry of key, if any.
+     */
+    void remove(String key);
+
+    /**
+     * Remove all entries in the provided namespace, that is all entries
+     * whose key starts with the namespace followed by
+     * {@link #NAMESPACE_SEPARATOR}.
+     */
+    void invalidate(String namespace);
+
+    /**
+     * Remove all entries whose key starts with prefix. Implementations may
+     * remove more entries than the ones matching, but never fewer.
+     */
+    void invalidatePrefix(String prefix);
+
+    /**
+     * Usage statistics of the cache implementation (hits, misses, sizes
+     * etc), as name/value pairs suitable for display.
+     */
+    Map<String, Object> getStats();
 }
@@ -4,16 +4,21 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.osgi.framework.BundleContext;
 
+import eu.sqooss.core.AlitheiaCore;
 import eu.sqooss.service.logging.Logger;
 
 public class CacheServiceImpl implements CacheService {
 
-    public static final String CACHE_IMPL = "eu.sqooss.service.cache.OnDiskCache";
+    public static final String CACHE_IMPL = "eu.sqooss.service.cache.impl";
     
     private static List<Class<? extends CacheService>> impls;
     
@@ -21,22 +26,40 @@ public class CacheServiceImpl implements CacheService {
         impls = new ArrayList<Class<? extends CacheService>>();
         impls.add(OnDiskCache.class);
         impls.add(InMemoryCache.class);
+        impls.add(SegmentCache.class);
+        impls.add(TwoTierCache.class);
+        impls.add(OffHeapCache.class);
     }
   
+    /** Usage counters, updated by the implementations */
+    protected final CacheStats stats = new CacheStats();
+
     private CacheService c;
     private BundleContext bc;
     private Logger log;
     
-    public CacheServiceImpl() {}
+    public CacheServiceImpl() {
+        /* Implementations read their settings before setInitParams() */
+        if (AlitheiaCore.getInstance() != null)
+            log = AlitheiaCore.getInstance().getLogManager().createLogger("sqooss.cache");
+    }
     
     @Override
     public byte[] get(String key) {
         return c.get(key);
     }
     
+    /**
+     * Delegates to the configured implementation. Implementations that do
+     * not override it get the value of {@link #get(String)} wrapped in a
+     * stream.
+     */
     @Override
     public InputStream getStream(String key) {
-        byte[] buff = c.get(key);
+        if (c != null)
+            return c.getStream(key);
+
+        byte[] buff = get(key);
         
         if (buff == null)
             return null;
@@ -50,8 +73,84 @@ public class CacheServiceImpl implements CacheService {
         c.set(key, data);
     }
 
+    /**
+     * Delegates to the configured implementation. Implementations that do
+     * not override it do not support expiry and keep the entry until it is
+     * evicted; the configured implementation is always wrapped in a
+     * {@link CompressingCache}, which does.
+     */
+    @Override
+    public void set(String key, byte[] data, long ttl) {
+        if (c != null)
+            c.set(key, data, ttl);
+        else
+            set(key, data);
+    }
+
+    /**
+     * Delegates to the configured implementation. Implementations that do
+     * not override it call {@link #get(String)} for each key.
+     */
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        if (c != null)
+            return c.getAll(keys);
+
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+        for (String key : keys) {
+            byte[] value = get(key);
+            if (value != null)
+                result.put(key, value);
+        }
+        return result;
+    }
+
+    /**
+     * Delegates to the configured implementation. Implementations that do
+     * not override it call {@link #set(String, byte[])} for each entry.
+     */
+    @Override
+    public void setAll(Map<String, byte[]> entries) {
+        if (c != null) {
+            c.setAll(entries);
+            return;
+        }
+
+        for (Map.Entry<String, byte[]> e : entries.entrySet())
+            set(e.getKey(), e.getValue());
+    }
+
+    @Override
+    public void remove(String key) {
+        c.remove(key);
+    }
+
+    /**
+     * Removes the entries whose key starts with the namespace and
+     * {@link #NAMESPACE_SEPARATOR}, with {@link #invalidatePrefix(String)}.
+     */
+    @Override
+    public void invalidate(String namespace) {
+        invalidatePrefix(namespace + NAMESPACE_SEPARATOR);
+    }
+
+    @Override
+    public void invalidatePrefix(String prefix) {
+        c.invalidatePrefix(prefix);
+    }
+
+    /**
+     * Delegates to the configured implementation. Implementations that do
+     * not override it read the stream to memory and store it with
+     * {@link #set(String, byte[])}.
+     */
     @Override
     public void setStream(String key, InputStream in) {
+        if (c != null) {
+            c.setStream(key, in);
+            return;
+        }
+
         try {
             int nRead;
             ByteArrayOutputStream buffer = new ByteArrayOutputStream();
@@ -65,10 +164,24 @@ public class CacheServiceImpl implements CacheService {
             set(key, buffer.toByteArray());
             
         } catch (IOException e) {
-            log.error("Error");
+            error("Cannot read stream for key " + key + ": " + e.getMessage());
         }
     }
 
+    /**
+     * Delegates to the configured implementation. Implementations add
+     * their own values to the ones of {@link CacheStats}.
+     */
+    @Override
+    public Map<String, Object> getStats() {
+        if (c != null)
+            return c.getStats();
+
+        Map<String, Object> m = stats.toMap();
+        m.put("implementation", getClass().getName());
+        return m;
+    }
+
     @Override
     public boolean startUp() {
         String impl = System.getProperty(CACHE_IMPL);
@@ -77,23 +190,92 @@ public class CacheServiceImpl implements CacheService {
             impl = "eu.sqooss.service.cache.OnDiskCache";
         
         try {
-            Class clazz = Thread.currentThread().getContextClassLoader().loadClass(impl);
-            c = (CacheService) clazz.newInstance();
+            Class<?> clazz;
+            try {
+                clazz = Thread.currentThread().getContextClassLoader().loadClass(impl);
+            } catch (ClassNotFoundException e) {
+                clazz = CacheServiceImpl.class.getClassLoader().loadClass(impl);
+            }
+            c = (CacheService) clazz.getDeclaredConstructor().newInstance();
+            c.setInitParams(bc, log);
+            log.info("Using cache implementation " + impl);
         } catch (ClassNotFoundException e) {
             log.error("Cannot load cache implementation:" + impl);
+        } catch (NoSuchMethodException e) {
+            log.error("Cannot initialize cache implementation:" + impl + " Error: no default constructor");
+        } catch (InvocationTargetException e) {
+            log.error("Cannot initialize cache implementation:" + impl + " Error:" + e.getCause());
         } catch (InstantiationException e) {
             log.error("Cannot initialize cache implementation:" + impl + " Error:" + e.getMessage());
         } catch (IllegalAccessException e) {
             log.error("Cannot initialize cache implementation:" + impl + " Error:" + e.getMessage());
         }
+
+        /* The wrapper also provides expiry, so keep it without compression */
+        if (c != null) {
+            int threshold = (int) sizeProperty(CompressingCache.THRESHOLD, 512);
+            try {
+                c = CompressingCache.wrap(c, threshold);
+            } catch (IllegalArgumentException e) {
+                log.error("Cannot enable cache compression: " + e.getMessage());
+                c = new CompressingCache(c, "none", threshold, 1);
+            }
+        }
         return true;
     }
 
     @Override
     public void shutDown() {
+        if (c != null)
+            c.shutDown();
         c = null;
     }
 
+    /**
+     * Read a size in bytes from a system property. The value may carry
+     * a k, m or g suffix.
+     */
+    protected long sizeProperty(String name, long def) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().length() == 0)
+            return def;
+
+        value = value.trim().toLowerCase();
+        long mult = 1;
+        char last = value.charAt(value.length() - 1);
+        if (last == 'k')
+            mult = 1024L;
+        else if (last == 'm')
+            mult = 1024L * 1024;
+        else if (last == 'g')
+            mult = 1024L * 1024 * 1024;
+        if (mult != 1)
+            value = value.substring(0, value.length() - 1);
+
+        try {
+            return Long.parseLong(value.trim()) * mult;
+        } catch (NumberFormatException e) {
+            warn("Invalid size " + value + " for property " + name);
+            return def;
+        }
+    }
+
+    /** Log a warning, or print it if there is no logger. */
+    protected void warn(String message) {
+        if (log != null)
+            log.warn(message);
+        else
+            System.err.println(message);
+    }
+
+    /** Log an error, or print it if there is no logger. */
+    protected void error(String message) {
+        if (log != null)
+            log.error(message);
+        else
+            System.err.println(message);
+    }
+
     @Override
     public void setInitParams(BundleContext bc, Logger l) {
        this.bc = bc;
@@ -0,0 +1,142 @@
+package eu.sqooss.service.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import eu.sqooss.service.util.StripedCounter;
+
+/**
+ * Usage counters of a cache implementation. Counters are striped, so that
+ * recording an event does not make cache threads contend with each other.
+ */
+public class CacheStats {
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter loads = new StripedCounter();
+    private final StripedCounter loadTime = new StripedCounter();
+    private final StripedCounter writes = new StripedCounter();
+    private final StripedCounter bytesWritten = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+    private final StripedCounter bytesEvicted = new StripedCounter();
+    private final StripedCounter expired = new StripedCounter();
+    private final StripedCounter invalidated = new StripedCounter();
+    private final StripedCounter errors = new StripedCounter();
+
+    public void hit() {
+        hits.increment();
+    }
+
+    public void miss() {
+        misses.increment();
+    }
+
+    /** Record the outcome of a batch of lookups. */
+    public void lookups(long hit, long missed) {
+        hits.add(hit);
+        misses.add(missed);
+    }
+
+    /** Record the time spent reading an entry from the backing store. */
+    public void load(long nanos) {
+        loads.increment();
+        loadTime.add(nanos);
+    }
+
+    public void write(long bytes) {
+        writes.increment();
+        bytesWritten.add(bytes);
+    }
+
+    public void eviction(long bytes) {
+        evictions.increment();
+        bytesEvicted.add(bytes);
+    }
+
+    /** Record an entry found expired and removed. */
+    public void expiry() {
+        expired.increment();
+    }
+
+    /** Record entries removed explicitly or by invalidation. */
+    public void invalidation(long entries) {
+        invalidated.add(entries);
+    }
+
+    public void error() {
+        errors.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getBytesEvicted() {
+        return bytesEvicted.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getInvalidated() {
+        return invalidated.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /** Fraction of lookups that found an entry, or 0 if none was made. */
+    public double getHitRatio() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /** Average time to read an entry from the backing store, in msec. */
+    public double getAverageLoadTime() {
+        long n = loads.sum();
+        return n == 0 ? 0 : loadTime.sum() / (n * 1000000.0);
+    }
+
+    /** Average size of the entries written, in bytes. */
+    public long getAverageEntrySize() {
+        long n = getWrites();
+        return n == 0 ? 0 : getBytesWritten() / n;
+    }
+
+    /** The counters as name/value pairs. */
+    public Map<String, Object> toMap() {
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        m.put("hits", getHits());
+        m.put("misses", getMisses());
+        m.put("hit.ratio", String.format("%.3f", getHitRatio()));
+        m.put("load.time.avg.ms", String.format("%.3f", getAverageLoadTime()));
+        m.put("writes", getWrites());
+        m.put("bytes.written", getBytesWritten());
+        m.put("entry.size.avg", getAverageEntrySize());
+        m.put("evictions", getEvictions());
+        m.put("bytes.evicted", getBytesEvicted());
+        m.put("expired", getExpired());
+        m.put("invalidated", getInvalidated());
+        m.put("errors", getErrors());
+        return m;
+    }
+}
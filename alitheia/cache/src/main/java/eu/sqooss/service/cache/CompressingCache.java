@@ -0,0 +1,457 @@
+package eu.sqooss.service.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import eu.sqooss.service.util.StripedCounter;
+
+/**
+ * Compresses entries before handing them to another cache implementation.
+ * Every entry starts with a small header recording how it was encoded, so
+ * compressed and uncompressed entries can coexist; entries that are small or
+ * do not compress well are stored uncompressed. Entries without a header,
+ * written before compression was enabled, are returned as they are.
+ *
+ * The header also records the expiry time of entries stored with a ttl.
+ * Expired entries are removed when they are next read.
+ *
+ * Accepts the following system properties:
+ *
+ *  <dl>
+ *      <dt>eu.sqooss.service.cache.compress</dt>
+ *      <dd>The codec to use: lzf (default, fast), deflate (smaller, slower)
+ *      or none to disable compression.</dd>
+ *      <dt>eu.sqooss.service.cache.compress.threshold</dt>
+ *      <dd>Entries smaller than this are not compressed. Accepts the k, m
+ *      and g suffixes. Default is 512 bytes.</dd>
+ *      <dt>eu.sqooss.service.cache.compress.ratio</dt>
+ *      <dd>Entries are only stored compressed if they shrink to this fraction
+ *      of their size or less. Default is 0.9.</dd>
+ * </dl>
+ */
+public class CompressingCache extends CacheServiceImpl {
+
+    public static final String COMPRESS = "eu.sqooss.service.cache.compress";
+    public static final String THRESHOLD = "eu.sqooss.service.cache.compress.threshold";
+    public static final String RATIO = "eu.sqooss.service.cache.compress.ratio";
+
+    /*
+     * Header: magic, codec, flags, original length (-1 if unknown) and, if
+     * the EXPIRES flag is set, the expiry time in msec since the epoch
+     */
+    static final int MAGIC = 0xCAC4EC0D;
+    static final int HEADER_SIZE = 10;
+    static final int EXPIRY_SIZE = 8;
+    static final int MAX_HEADER_SIZE = HEADER_SIZE + EXPIRY_SIZE;
+
+    static final byte EXPIRES = 1;
+
+    static final byte NONE = 0;
+    static final byte LZF = 1;
+    static final byte DEFLATE = 2;
+
+    private final CacheService cache;
+    private final byte codec;
+    private final int threshold;
+    private final double ratio;
+
+    private final StripedCounter compressed = new StripedCounter();
+    private final StripedCounter rawBytes = new StripedCounter();
+    private final StripedCounter storedBytes = new StripedCounter();
+
+    public CompressingCache(CacheService cache, String codec, int threshold,
+            double ratio) {
+        this.cache = cache;
+        this.codec = codec(codec);
+        this.threshold = threshold;
+        this.ratio = ratio;
+    }
+
+    /**
+     * Wrap the provided cache according to the compression properties,
+     * compressing values of at least threshold bytes. The cache is wrapped
+     * even if compression is disabled, as the entry header also carries
+     * the expiry time.
+     */
+    static CacheService wrap(CacheService cache, int threshold) {
+        String codec = System.getProperty(COMPRESS, "lzf").trim();
+        if (codec.length() == 0)
+            codec = "none";
+        return new CompressingCache(cache, codec, threshold,
+                SegmentCache.doubleProperty(RATIO, 0.9));
+    }
+
+    private static byte codec(String name) {
+        if (name.equalsIgnoreCase("lzf"))
+            return LZF;
+        if (name.equalsIgnoreCase("deflate"))
+            return DEFLATE;
+        if (name.equalsIgnoreCase("none"))
+            return NONE;
+        throw new IllegalArgumentException("Unknown cache codec " + name);
+    }
+
+    private static String codecName(byte codec) {
+        switch (codec) {
+        case LZF:
+            return "lzf";
+        case DEFLATE:
+            return "deflate";
+        default:
+            return "none";
+        }
+    }
+
+    @Override
+    public byte[] get(String key) {
+        byte[] b = cache.get(key);
+        if (b == null)
+            return null;
+        if (expired(b, b.length)) {
+            expire(key);
+            return null;
+        }
+        try {
+            return decode(b);
+        } catch (IOException e) {
+            stats.error();
+            return null;
+        }
+    }
+
+    @Override
+    public void set(String key, byte[] data) {
+        cache.set(key, encode(data, 0));
+    }
+
+    @Override
+    public void set(String key, byte[] data, long ttl) {
+        cache.set(key, encode(data,
+                ttl > 0 ? System.currentTimeMillis() + ttl : 0));
+    }
+
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        Map<String, byte[]> result = new HashMap<String, byte[]>(keys.size() * 2);
+        for (Map.Entry<String, byte[]> e : cache.getAll(keys).entrySet()) {
+            byte[] b = e.getValue();
+            if (expired(b, b.length)) {
+                expire(e.getKey());
+                continue;
+            }
+            try {
+                result.put(e.getKey(), decode(b));
+            } catch (IOException ex) {
+                stats.error();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void setAll(Map<String, byte[]> entries) {
+        Map<String, byte[]> encoded = new HashMap<String, byte[]>(entries.size() * 2);
+        for (Map.Entry<String, byte[]> e : entries.entrySet())
+            encoded.put(e.getKey(), encode(e.getValue(), 0));
+        cache.setAll(encoded);
+    }
+
+    @Override
+    public void remove(String key) {
+        cache.remove(key);
+    }
+
+    @Override
+    public void invalidatePrefix(String prefix) {
+        cache.invalidatePrefix(prefix);
+    }
+
+    /* Whether the first length bytes of b are the header of an expired entry */
+    static boolean expired(byte[] b, int length) {
+        if (length < MAX_HEADER_SIZE || readInt(b, 0) != MAGIC
+                || (b[5] & EXPIRES) == 0)
+            return false;
+        return readLong(b, HEADER_SIZE) <= System.currentTimeMillis();
+    }
+
+    private void expire(String key) {
+        stats.expiry();
+        cache.remove(key);
+    }
+
+    @Override
+    public InputStream getStream(String key) {
+        InputStream in = cache.getStream(key);
+        if (in == null)
+            return null;
+
+        try {
+            PushbackInputStream pin = new PushbackInputStream(in,
+                    MAX_HEADER_SIZE);
+            byte[] header = new byte[MAX_HEADER_SIZE];
+            int n = fill(pin, header, 0, HEADER_SIZE);
+            if (n < HEADER_SIZE || readInt(header, 0) != MAGIC) {
+                pin.unread(header, 0, n);
+                return pin;
+            }
+            if ((header[5] & EXPIRES) != 0) {
+                n += fill(pin, header, HEADER_SIZE, EXPIRY_SIZE);
+                if (expired(header, n)) {
+                    in.close();
+                    expire(key);
+                    return null;
+                }
+            }
+
+            switch (header[4]) {
+            case NONE:
+                return pin;
+            case LZF:
+                return new Lzf.DecodingStream(pin);
+            case DEFLATE:
+                return new InflaterInputStream(pin);
+            default:
+                throw new IOException("Unknown codec " + header[4]);
+            }
+        } catch (IOException e) {
+            stats.error();
+            try {
+                in.close();
+            } catch (IOException ignored) {}
+            return null;
+        }
+    }
+
+    /**
+     * Compresses the stream as it is copied to the underlying cache. As the
+     * size of the stream is not known in advance, streams are always
+     * compressed.
+     */
+    @Override
+    public void setStream(String key, InputStream in) {
+        /* The caller owns the stream, so keep the encoders from closing it */
+        InputStream source = new FilterInputStream(in) {
+            @Override
+            public void close() {}
+        };
+        byte[] header = new byte[HEADER_SIZE];
+        writeHeader(header, codec, -1, 0);
+        InputStream headerIn = new ByteArrayInputStream(header);
+
+        switch (codec) {
+        case LZF:
+            cache.setStream(key, new SequenceInputStream(headerIn,
+                    new Lzf.EncodingStream(source)));
+            break;
+        case DEFLATE:
+            Deflater def = new Deflater(Deflater.BEST_SPEED);
+            try {
+                cache.setStream(key, new SequenceInputStream(headerIn,
+                        new DeflaterInputStream(source, def)));
+            } finally {
+                def.end();
+            }
+            break;
+        default:
+            cache.setStream(key, new SequenceInputStream(headerIn, source));
+        }
+    }
+
+    /* Encode data with a header; expires is 0 for entries that never expire */
+    byte[] encode(byte[] data, long expires) {
+        int header = expires > 0 ? MAX_HEADER_SIZE : HEADER_SIZE;
+        byte[] out = null;
+        if (data.length >= threshold) {
+            int limit = (int) (data.length * ratio);
+            if (codec == LZF)
+                out = lzf(data, header, limit);
+            else if (codec == DEFLATE)
+                out = deflate(data, header, limit);
+        }
+
+        if (out == null) {
+            out = new byte[header + data.length];
+            writeHeader(out, NONE, data.length, expires);
+            System.arraycopy(data, 0, out, header, data.length);
+            return out;
+        }
+
+        writeHeader(out, codec, data.length, expires);
+        compressed.increment();
+        rawBytes.add(data.length);
+        storedBytes.add(out.length - header);
+        return out;
+    }
+
+    /*
+     * Compress in LZF blocks after header bytes, or return null if the
+     * result exceeds limit
+     */
+    private static byte[] lzf(byte[] data, int header, int limit) {
+        int blocks = (data.length + Lzf.BLOCK_SIZE - 1) / Lzf.BLOCK_SIZE;
+        byte[] out = new byte[header + data.length + 4 * blocks + 1];
+        int op = header;
+        for (int off = 0; off < data.length; off += Lzf.BLOCK_SIZE) {
+            int n = Math.min(Lzf.BLOCK_SIZE, data.length - off);
+            int stored = Lzf.compress(data, off, n, out, op + 4, n - 1);
+            if (stored < 0) {
+                stored = n;
+                System.arraycopy(data, off, out, op + 4, n);
+            }
+            out[op] = (byte) (n >> 8);
+            out[op + 1] = (byte) n;
+            out[op + 2] = (byte) (stored >> 8);
+            out[op + 3] = (byte) stored;
+            op += 4 + stored;
+            if (op - header > limit)
+                return null;
+        }
+        return Arrays.copyOf(out, op);
+    }
+
+    /* Deflate after header bytes, or return null if the result exceeds limit */
+    private static byte[] deflate(byte[] data, int header, int limit) {
+        Deflater def = new Deflater(Deflater.BEST_SPEED);
+        try {
+            def.setInput(data);
+            def.finish();
+            byte[] out = new byte[header + limit];
+            int op = header;
+            while (!def.finished() && op < out.length)
+                op += def.deflate(out, op, out.length - op);
+            if (!def.finished())
+                return null;
+            return Arrays.copyOf(out, op);
+        } finally {
+            def.end();
+        }
+    }
+
+    static byte[] decode(byte[] b) throws IOException {
+        if (b.length < HEADER_SIZE || readInt(b, 0) != MAGIC)
+            return b;
+
+        int length = readInt(b, 6);
+        int header = (b[5] & EXPIRES) != 0 ? MAX_HEADER_SIZE : HEADER_SIZE;
+        switch (b[4]) {
+        case NONE:
+            return Arrays.copyOfRange(b, header, b.length);
+        case LZF: {
+            InputStream in = new Lzf.DecodingStream(new ByteArrayInputStream(
+                    b, header, b.length - header));
+            if (length < 0)
+                return readAll(in);
+            byte[] out = new byte[length];
+            Lzf.readFully(in, out, 0, length);
+            return out;
+        }
+        case DEFLATE: {
+            if (length < 0)
+                return readAll(new InflaterInputStream(new ByteArrayInputStream(
+                        b, header, b.length - header)));
+            Inflater inf = new Inflater();
+            try {
+                inf.setInput(b, header, b.length - header);
+                byte[] out = new byte[length];
+                int op = 0;
+                while (op < length) {
+                    int n = inf.inflate(out, op, length - op);
+                    if (n == 0 && (inf.finished() || inf.needsInput()))
+                        throw new IOException("Truncated compressed entry");
+                    op += n;
+                }
+                return out;
+            } catch (DataFormatException e) {
+                throw new IOException(e.getMessage());
+            } finally {
+                inf.end();
+            }
+        }
+        default:
+            throw new IOException("Unknown codec " + b[4]);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        byte[] buff = new byte[8192];
+        int n;
+        while ((n = in.read(buff)) != -1)
+            out.write(buff, 0, n);
+        return out.toByteArray();
+    }
+
+    private static void writeHeader(byte[] b, byte codec, int length,
+            long expires) {
+        writeInt(b, 0, MAGIC);
+        b[4] = codec;
+        b[5] = expires > 0 ? EXPIRES : 0;
+        writeInt(b, 6, length);
+        if (expires > 0) {
+            writeInt(b, HEADER_SIZE, (int) (expires >>> 32));
+            writeInt(b, HEADER_SIZE + 4, (int) expires);
+        }
+    }
+
+    /* Read up to len bytes to b at off, stopping early only at the end */
+    private static int fill(InputStream in, byte[] b, int off, int len)
+            throws IOException {
+        int n = 0;
+        while (n < len) {
+            int read = in.read(b, off + n, len - n);
+            if (read < 0)
+                break;
+            n += read;
+        }
+        return n;
+    }
+
+    static long readLong(byte[] b, int off) {
+        return ((long) readInt(b, off) << 32) | (readInt(b, off + 4) & 0xffffffffL);
+    }
+
+    static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+            | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = cache.getStats();
+        long raw = rawBytes.sum();
+        m.put("compression.codec", codecName(codec));
+        m.put("compression.entries", compressed.sum());
+        m.put("compression.bytes.raw", raw);
+        m.put("compression.bytes.stored", storedBytes.sum());
+        m.put("compression.ratio", String.format("%.3f",
+                raw == 0 ? 1.0 : (double) storedBytes.sum() / raw));
+        m.put("compression.errors", stats.getErrors());
+        m.put("expired", stats.getExpired());
+        return m;
+    }
+
+    @Override
+    public void shutDown() {
+        cache.shutDown();
+    }
+}
@@ -0,0 +1,81 @@
+package eu.sqooss.service.cache;
+
+/**
+ * A compact, approximate frequency counter (count-min sketch with 4-bit
+ * counters) used by the cache admission policy to decide whether a new entry
+ * is worth more than the entry it would displace. Counters are periodically
+ * halved so that the sketch tracks recent popularity rather than all-time
+ * popularity.
+ *
+ * Not thread safe; callers must provide their own locking.
+ */
+class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries The number of distinct entries the owner is
+     * expected to hold; used to size the sketch.
+     */
+    FrequencySketch(int expectedEntries) {
+        int size = 64;
+        while (size < expectedEntries && size < (1 << 24))
+            size <<= 1;
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = 10 * size;
+    }
+
+    /** Record one more access to the item with the provided hash. */
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            long h = rehash(hash, i);
+            int index = (int) (h >>> 32) & tableMask;
+            int offset = ((int) h & 0xf) << 2;
+            long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    /** Estimated number of recent accesses to the item, between 0 and 15. */
+    int frequency(int hash) {
+        int freq = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            long h = rehash(hash, i);
+            int index = (int) (h >>> 32) & tableMask;
+            int offset = ((int) h & 0xf) << 2;
+            int count = (int) ((table[index] >>> offset) & 0xfL);
+            if (count < freq)
+                freq = count;
+        }
+        return freq;
+    }
+
+    /** Halve all counters, so that old accesses weigh less. */
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        additions = additions >>> 1;
+    }
+
+    private static long rehash(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[(i + 1) & 3];
+        return h ^ (h >>> 29);
+    }
+}
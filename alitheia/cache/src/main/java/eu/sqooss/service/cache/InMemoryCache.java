@@ -1,20 +1,591 @@
 package eu.sqooss.service.cache;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Memory based implementation of the cache service, bounded by the number of
+ * bytes it may hold rather than the number of entries.
+ *
+ * The cache is split in independently locked segments. Each segment follows
+ * a W-TinyLFU policy: new entries enter a small LRU admission window; entries
+ * leaving the window compete with the least recently used entries of the main
+ * area (a segmented LRU with probation and protected parts) and are only
+ * admitted if they have been accessed more often recently, as estimated by a
+ * {@link FrequencySketch}. This keeps one-off scans of large projects from
+ * flushing frequently used entries out of the cache.
+ *
+ * As each segment holds an equal share of the cache, an entry larger than
+ * the main area of a segment, a little under 1/16th of the maximum size
+ * (see {@link #getMaxEntrySize()}), is never stored. It is handed to the
+ * eviction listener and counted as evicted instead.
+ *
+ * Accepts the following system property:
+ *
+ *  <dl>
+ *      <dt>
+ *          eu.sqooss.service.cache.mem.size
+ *      </dt>
+ *      <dd>
+ *          The maximum number of bytes to keep in memory. Accepts the
+ *          k, m and g suffixes. Defaults to 1/8th of the maximum heap size.
+ *      </dd>
+ * </dl>
+ */
 public class InMemoryCache extends CacheServiceImpl {
 
-    ConcurrentHashMap<String, byte[]> cache = new ConcurrentHashMap<String, byte[]>(1024);
-    
-    public InMemoryCache() {}
-    
+    public static final String CACHE_SIZE = "eu.sqooss.service.cache.mem.size";
+
+    /** Approximate per entry bookkeeping cost, on top of key and value */
+    static final int ENTRY_OVERHEAD = 96;
+
+    private static final int SEGMENTS = 16;
+
+    /**
+     * Receives entries that have been evicted from the cache to make room
+     * for new ones. Called without any cache locks held.
+     */
+    public interface EvictionListener {
+        void evicted(String key, byte[] data);
+    }
+
+    private final Segment[] segments;
+    private final long maxSize;
+    private volatile EvictionListener listener;
+
+    public InMemoryCache() {
+        maxSize = sizeProperty(CACHE_SIZE, Runtime.getRuntime().maxMemory() / 8);
+        segments = segments(maxSize);
+    }
+
+    public InMemoryCache(long maxSize) {
+        this.maxSize = maxSize;
+        segments = segments(maxSize);
+    }
+
+    private static Segment[] segments(long maxSize) {
+        Segment[] segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(maxSize / SEGMENTS);
+        return segments;
+    }
+
     @Override
     public byte[] get(String key) {
-        return cache.get(key);
+        byte[] result = segmentFor(key).get(key);
+        if (result == null)
+            stats.miss();
+        else
+            stats.hit();
+        return result;
     }
 
     @Override
     public void set(String key, byte[] data) {
-        cache.put(key, data);
+        stats.write(data.length);
+        List<Node> evicted = segmentFor(key).put(key, data.clone());
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Store an entry unless the key is in the cache already.
+     *
+     * @return Whether the entry was stored and not evicted straight away
+     */
+    public boolean setIfAbsent(String key, byte[] data) {
+        Node n = new Node(key, data.clone());
+        List<Node> evicted = segmentFor(key).putIfAbsent(n);
+        if (evicted == null)
+            return false;
+        stats.write(data.length);
+        notifyEvicted(evicted);
+        return !evicted.contains(n);
+    }
+
+    /**
+     * Looks up the keys of each segment with a single lock acquisition.
+     */
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        List<List<String>> bySegment = new ArrayList<List<String>>(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            bySegment.add(new ArrayList<String>());
+        for (String key : keys)
+            bySegment.get(segmentIndex(key)).add(key);
+
+        Map<String, byte[]> result = new HashMap<String, byte[]>(keys.size() * 2);
+        for (int i = 0; i < SEGMENTS; i++)
+            if (!bySegment.get(i).isEmpty())
+                segments[i].getAll(bySegment.get(i), result);
+
+        stats.lookups(result.size(), keys.size() - result.size());
+        return result;
+    }
+
+    /**
+     * Stores the entries of each segment with a single lock acquisition.
+     */
+    @Override
+    public void setAll(Map<String, byte[]> entries) {
+        List<List<Node>> bySegment = new ArrayList<List<Node>>(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            bySegment.add(new ArrayList<Node>());
+        for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+            stats.write(e.getValue().length);
+            bySegment.get(segmentIndex(e.getKey())).add(
+                    new Node(e.getKey(), e.getValue().clone()));
+        }
+
+        List<Node> evicted = new ArrayList<Node>();
+        for (int i = 0; i < SEGMENTS; i++)
+            if (!bySegment.get(i).isEmpty())
+                segments[i].putAll(bySegment.get(i), evicted);
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Remove an entry from the cache. The eviction listener is not
+     * notified.
+     */
+    @Override
+    public void remove(String key) {
+        if (segmentFor(key).remove(key) != null)
+            stats.invalidation(1);
+    }
+
+    /**
+     * Remove the entries whose key starts with prefix, one segment at a
+     * time. The eviction listener is not notified.
+     */
+    @Override
+    public void invalidatePrefix(String prefix) {
+        for (Segment s : segments)
+            stats.invalidation(s.removePrefix(prefix));
+    }
+
+    /** Set the object to notify when entries are evicted. */
+    public void setEvictionListener(EvictionListener l) {
+        this.listener = l;
+    }
+
+    /** The configured maximum size of the cache, in bytes. */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * The largest entry the cache stores, in bytes, counting the key and
+     * {@link #ENTRY_OVERHEAD}: the main area of one segment.
+     */
+    public long getMaxEntrySize() {
+        return segments[0].mainMax;
+    }
+
+    /** Approximate number of bytes currently held in the cache. */
+    public long getSize() {
+        long size = 0;
+        for (Segment s : segments)
+            size += s.size();
+        return size;
+    }
+
+    /** Number of entries currently held in the cache. */
+    public int getEntryCount() {
+        int count = 0;
+        for (Segment s : segments)
+            count += s.count();
+        return count;
+    }
+
+    /** Number of entries evicted or rejected since the cache was created. */
+    public long getEvictionCount() {
+        return stats.getEvictions();
+    }
+
+    /** Number of value bytes evicted since the cache was created. */
+    public long getEvictedBytes() {
+        return stats.getBytesEvicted();
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = super.getStats();
+        m.put("entries", getEntryCount());
+        m.put("bytes.stored", getSize());
+        m.put("bytes.max", getMaxSize());
+        return m;
+    }
+
+    /** A copy of the current contents of the cache, for flushing. */
+    Map<String, byte[]> snapshot() {
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+        for (Segment s : segments)
+            s.copyTo(result);
+        return result;
+    }
+
+    /* The current value of a key, without counting it as an access */
+    byte[] peek(String key) {
+        return segmentFor(key).peek(key);
+    }
+
+    private void notifyEvicted(List<Node> evicted) {
+        if (evicted == null)
+            return;
+        EvictionListener l = listener;
+        for (Node n : evicted) {
+            stats.eviction(n.value.length);
+            if (l != null)
+                l.evicted(n.key, n.value);
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        return segments[segmentIndex(key)];
+    }
+
+    private static int segmentIndex(String key) {
+        return spread(key.hashCode()) & (SEGMENTS - 1);
+    }
+
+    static int spread(int h) {
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    static int weigh(String key, byte[] data) {
+        return ENTRY_OVERHEAD + 2 * key.length() + data.length;
+    }
+
+    /* Entry location in a segment */
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    static final class Node {
+        final String key;
+        final int hash;
+        final byte[] value;
+        final int weight;
+        int queue;
+        Node prev, next;
+
+        Node(String key, byte[] value) {
+            this.key = key;
+            this.hash = spread(key.hashCode());
+            this.value = value;
+            this.weight = weigh(key, value);
+        }
+    }
+
+    /** Doubly linked list of nodes, least recently used first */
+    static final class AccessQueue {
+        final Node head = new Node("", new byte[0]);
+        long bytes;
+
+        AccessQueue() {
+            head.prev = head.next = head;
+        }
+
+        boolean isEmpty() {
+            return head.next == head;
+        }
+
+        Node first() {
+            return head.next;
+        }
+
+        void add(Node n) {
+            n.prev = head.prev;
+            n.next = head;
+            head.prev.next = n;
+            head.prev = n;
+            bytes += n.weight;
+        }
+
+        void remove(Node n) {
+            n.prev.next = n.next;
+            n.next.prev = n.prev;
+            n.prev = n.next = null;
+            bytes -= n.weight;
+        }
+
+        void moveToBack(Node n) {
+            remove(n);
+            add(n);
+        }
+    }
+
+    private static final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final HashMap<String, Node> data = new HashMap<String, Node>();
+        private final AccessQueue window = new AccessQueue();
+        private final AccessQueue probation = new AccessQueue();
+        private final AccessQueue protect = new AccessQueue();
+        private final FrequencySketch sketch;
+        private final long windowMax;
+        private final long mainMax;
+        private final long protectedMax;
+
+        Segment(long maxSize) {
+            this.windowMax = Math.max(1, maxSize / 100);
+            this.mainMax = maxSize - windowMax;
+            this.protectedMax = mainMax * 8 / 10;
+            /* Assume 4K average entries for sizing the sketch */
+            this.sketch = new FrequencySketch((int) Math.min(maxSize / 4096, 1 << 20));
+        }
+
+        long size() {
+            lock.lock();
+            try {
+                return window.bytes + probation.bytes + protect.bytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int count() {
+            lock.lock();
+            try {
+                return data.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void copyTo(Map<String, byte[]> result) {
+            lock.lock();
+            try {
+                for (Node n : data.values())
+                    result.put(n.key, n.value);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        byte[] get(String key) {
+            lock.lock();
+            try {
+                return lookup(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* Look up several keys with a single lock acquisition */
+        void getAll(List<String> keys, Map<String, byte[]> result) {
+            lock.lock();
+            try {
+                for (String key : keys) {
+                    byte[] value = lookup(key);
+                    if (value != null)
+                        result.put(key, value);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private byte[] lookup(String key) {
+            Node n = data.get(key);
+            sketch.increment(n == null ? spread(key.hashCode()) : n.hash);
+            if (n == null)
+                return null;
+
+            switch (n.queue) {
+            case WINDOW:
+                window.moveToBack(n);
+                break;
+            case PROBATION:
+                probation.remove(n);
+                n.queue = PROTECTED;
+                protect.add(n);
+                demoteProtected();
+                break;
+            case PROTECTED:
+                protect.moveToBack(n);
+                break;
+            }
+            return n.value;
+        }
+
+        byte[] remove(String key) {
+            lock.lock();
+            try {
+                Node n = data.remove(key);
+                if (n == null)
+                    return null;
+                queueOf(n).remove(n);
+                return n.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int removePrefix(String prefix) {
+            lock.lock();
+            try {
+                int removed = 0;
+                Iterator<Node> i = data.values().iterator();
+                while (i.hasNext()) {
+                    Node n = i.next();
+                    if (n.key.startsWith(prefix)) {
+                        i.remove();
+                        queueOf(n).remove(n);
+                        removed++;
+                    }
+                }
+                return removed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<Node> put(String key, byte[] value) {
+            Node n = new Node(key, value);
+            List<Node> evicted = new ArrayList<Node>(2);
+            lock.lock();
+            try {
+                insert(n, evicted);
+            } finally {
+                lock.unlock();
+            }
+            return evicted;
+        }
+
+        /* Insert the node unless its key is present; null if it was */
+        List<Node> putIfAbsent(Node n) {
+            List<Node> evicted = new ArrayList<Node>(2);
+            lock.lock();
+            try {
+                if (data.containsKey(n.key))
+                    return null;
+                insert(n, evicted);
+            } finally {
+                lock.unlock();
+            }
+            return evicted;
+        }
+
+        byte[] peek(String key) {
+            lock.lock();
+            try {
+                Node n = data.get(key);
+                return n == null ? null : n.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* Insert several nodes with a single lock acquisition */
+        void putAll(List<Node> nodes, List<Node> evicted) {
+            lock.lock();
+            try {
+                for (Node n : nodes)
+                    insert(n, evicted);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void insert(Node n, List<Node> evicted) {
+            sketch.increment(n.hash);
+            Node old = data.remove(n.key);
+            if (old != null)
+                queueOf(old).remove(old);
+
+            /* Could never be admitted to the main area */
+            if (n.weight > mainMax) {
+                evicted.add(n);
+                return;
+            }
+
+            data.put(n.key, n);
+            n.queue = WINDOW;
+            window.add(n);
+            evictFromWindow(evicted);
+        }
+
+        private AccessQueue queueOf(Node n) {
+            switch (n.queue) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protect;
+            }
+        }
+
+        /* Keep the protected area within its budget */
+        private void demoteProtected() {
+            while (protect.bytes > protectedMax && !protect.isEmpty()) {
+                Node n = protect.first();
+                protect.remove(n);
+                n.queue = PROBATION;
+                probation.add(n);
+            }
+        }
+
+        /*
+         * Move entries that fell out of the admission window to the main
+         * area, if there is space or if they are more popular than the
+         * entries they would replace.
+         */
+        private void evictFromWindow(List<Node> evicted) {
+            while (window.bytes > windowMax && !window.isEmpty()) {
+                Node candidate = window.first();
+                window.remove(candidate);
+
+                long needed = probation.bytes + protect.bytes
+                    + candidate.weight - mainMax;
+                if (needed > 0 && !admit(candidate, needed, evicted)) {
+                    data.remove(candidate.key);
+                    evicted.add(candidate);
+                    continue;
+                }
+                candidate.queue = PROBATION;
+                probation.add(candidate);
+            }
+        }
+
+        /*
+         * Evict enough main area entries to make room for the candidate,
+         * provided that all of them are less popular than the candidate.
+         */
+        private boolean admit(Node candidate, long needed, List<Node> evicted) {
+            int freq = sketch.frequency(candidate.hash);
+            List<Node> victims = new ArrayList<Node>();
+            long freed = 0;
+
+            AccessQueue q = probation;
+            Node victim = q.first();
+            while (freed < needed) {
+                if (victim == q.head) {
+                    if (q == protect)
+                        return false; /* Candidate is larger than main area */
+                    q = protect;
+                    victim = q.first();
+                    continue;
+                }
+                if (sketch.frequency(victim.hash) >= freq)
+                    return false;
+                victims.add(victim);
+                freed += victim.weight;
+                victim = victim.next;
+            }
+
+            for (Node v : victims) {
+                queueOf(v).remove(v);
+                data.remove(v.key);
+                evicted.add(v);
+            }
+            return true;
+        }
     }
 }
@@ -0,0 +1,310 @@
+package eu.sqooss.service.cache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The LZF compression format: a byte oriented LZ77 variant that trades
+ * compression ratio for speed. Data is split in blocks of up to 64K, each
+ * preceded by its raw length and its stored length (two bytes each). Blocks
+ * that do not compress are stored as is, in which case both lengths are
+ * equal.
+ */
+final class Lzf {
+
+    static final int BLOCK_SIZE = 65535;
+
+    private static final int HASH_LOG = 14;
+    private static final int MAX_LITERAL = 32;
+    private static final int MAX_OFFSET = 1 << 13;
+    private static final int MAX_REFERENCE = (1 << 8) + (1 << 3);
+
+    private Lzf() {}
+
+    /**
+     * Compress len bytes of in, starting at off, to out, starting at outOff.
+     * out must have room for max + 1 bytes after outOff.
+     *
+     * @return The number of bytes written, or -1 if the compressed data
+     * would be longer than max bytes.
+     */
+    static int compress(byte[] in, int off, int len, byte[] out, int outOff,
+            int max) {
+        int hashLog = 8;
+        while (hashLog < HASH_LOG && (1 << hashLog) < len)
+            hashLog++;
+        int[] table = new int[1 << hashLog]; /* positions + 1, 0 is empty */
+        int shift = 32 - hashLog;
+
+        int end = off + len;
+        int ip = off;
+        int op = outOff + 1; /* leave room for the first literal run length */
+        int outEnd = outOff + max;
+        int literals = 0;
+
+        while (ip < end - 2) {
+            int h = hash(in, ip, shift);
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            int distance = ip - ref - 1;
+
+            if (ref >= off && distance < MAX_OFFSET && ip + 4 < end
+                    && in[ref] == in[ip] && in[ref + 1] == in[ip + 1]
+                    && in[ref + 2] == in[ip + 2]) {
+                if (op + 4 >= outEnd)
+                    return -1;
+
+                /* Close the literal run, or take back its length byte */
+                out[op - literals - 1] = (byte) (literals - 1);
+                if (literals == 0)
+                    op--;
+
+                int longest = Math.min(end - ip - 2, MAX_REFERENCE);
+                int matched = 3;
+                while (matched < longest && in[ref + matched] == in[ip + matched])
+                    matched++;
+
+                int encoded = matched - 2;
+                if (encoded < 7) {
+                    out[op++] = (byte) ((distance >> 8) + (encoded << 5));
+                } else {
+                    out[op++] = (byte) ((distance >> 8) + (7 << 5));
+                    out[op++] = (byte) (encoded - 7);
+                }
+                out[op++] = (byte) distance;
+
+                literals = 0;
+                op++;
+
+                ip += matched;
+                if (ip >= end - 2)
+                    break;
+                /* Index the last position of the match as well */
+                table[hash(in, ip - 1, shift)] = ip;
+            } else {
+                if (op >= outEnd)
+                    return -1;
+                literals++;
+                out[op++] = in[ip++];
+                if (literals == MAX_LITERAL) {
+                    out[op - literals - 1] = (byte) (literals - 1);
+                    literals = 0;
+                    op++;
+                }
+            }
+        }
+
+        while (ip < end) {
+            if (op >= outEnd)
+                return -1;
+            literals++;
+            out[op++] = in[ip++];
+            if (literals == MAX_LITERAL) {
+                out[op - literals - 1] = (byte) (literals - 1);
+                literals = 0;
+                op++;
+            }
+        }
+
+        out[op - literals - 1] = (byte) (literals - 1);
+        if (literals == 0)
+            op--;
+        return op - outOff;
+    }
+
+    /**
+     * Decompress len bytes of in, starting at off, to out, which must be
+     * exactly as long as the original data.
+     */
+    static void decompress(byte[] in, int off, int len, byte[] out)
+            throws IOException {
+        int ip = off;
+        int end = off + len;
+        int op = 0;
+
+        while (ip < end) {
+            int ctrl = in[ip++] & 0xff;
+            if (ctrl < MAX_LITERAL) {
+                ctrl++;
+                if (op + ctrl > out.length || ip + ctrl > end)
+                    throw new IOException("Corrupt LZF data");
+                System.arraycopy(in, ip, out, op, ctrl);
+                ip += ctrl;
+                op += ctrl;
+            } else {
+                int length = ctrl >> 5;
+                if (length == 7) {
+                    if (ip >= end)
+                        throw new IOException("Corrupt LZF data");
+                    length += in[ip++] & 0xff;
+                }
+                if (ip >= end)
+                    throw new IOException("Corrupt LZF data");
+                int ref = op - ((ctrl & 0x1f) << 8) - 1 - (in[ip++] & 0xff);
+                length += 2;
+                if (ref < 0 || op + length > out.length)
+                    throw new IOException("Corrupt LZF data");
+                for (int i = 0; i < length; i++)
+                    out[op++] = out[ref++];
+            }
+        }
+
+        if (op != out.length)
+            throw new IOException("Corrupt LZF data");
+    }
+
+    private static int hash(byte[] b, int p, int shift) {
+        int v = ((b[p] & 0xff) << 16) | ((b[p + 1] & 0xff) << 8) | (b[p + 2] & 0xff);
+        return (v * 0x9E3779B1) >>> shift;
+    }
+
+    /* Read exactly len bytes, or fail */
+    static void readFully(InputStream in, byte[] b, int off, int len)
+            throws IOException {
+        while (len > 0) {
+            int n = in.read(b, off, len);
+            if (n < 0)
+                throw new EOFException();
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Reads raw data from a stream and returns it in the block format.
+     */
+    static final class EncodingStream extends InputStream {
+        private final InputStream in;
+        private final byte[] raw = new byte[BLOCK_SIZE];
+        private final byte[] block = new byte[BLOCK_SIZE + 4];
+        private int pos;
+        private int limit;
+        private boolean eof;
+
+        EncodingStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !fill())
+                return -1;
+            return block[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (pos == limit && !fill())
+                return -1;
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private boolean fill() throws IOException {
+            if (eof)
+                return false;
+            int n = 0;
+            while (n < raw.length) {
+                int read = in.read(raw, n, raw.length - n);
+                if (read < 0) {
+                    eof = true;
+                    break;
+                }
+                n += read;
+            }
+            if (n == 0)
+                return false;
+
+            byte[] out = block;
+            int stored = compress(raw, 0, n, out, 4, n - 1);
+            if (stored < 0) {
+                stored = n;
+                System.arraycopy(raw, 0, out, 4, n);
+            }
+            out[0] = (byte) (n >> 8);
+            out[1] = (byte) n;
+            out[2] = (byte) (stored >> 8);
+            out[3] = (byte) stored;
+            pos = 0;
+            limit = stored + 4;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads data in the block format from a stream and returns the raw data.
+     */
+    static final class DecodingStream extends InputStream {
+        private final InputStream in;
+        private final byte[] header = new byte[4];
+        private final byte[] stored = new byte[BLOCK_SIZE];
+        private byte[] raw = new byte[0];
+        private int pos;
+        private int limit;
+
+        DecodingStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !fill())
+                return -1;
+            return raw[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (pos == limit && !fill())
+                return -1;
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(raw, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        private boolean fill() throws IOException {
+            int first = in.read();
+            if (first < 0)
+                return false;
+            header[0] = (byte) first;
+            readFully(in, header, 1, 3);
+            int rawLength = ((header[0] & 0xff) << 8) | (header[1] & 0xff);
+            int storedLength = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+
+            if (raw.length != rawLength)
+                raw = new byte[rawLength];
+            if (storedLength == rawLength) {
+                readFully(in, raw, 0, rawLength);
+            } else {
+                readFully(in, stored, 0, storedLength);
+                decompress(stored, 0, storedLength, raw);
+            }
+            pos = 0;
+            limit = rawLength;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,891 @@
+package eu.sqooss.service.cache;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Memory based implementation of the cache service that keeps entries
+ * outside the Java heap, in direct buffers (slabs), so that large caches do
+ * not add to the work of the garbage collector. Each slab is cut in chunks
+ * of a single size class. An entry takes a chunk of the smallest class it
+ * fits in, or a chain of chunks if it is larger than a slab. The index is an
+ * open addressing hash table, also kept off-heap, pointing to the first
+ * chunk of each entry.
+ *
+ * Slabs are allocated as needed until the configured size is reached. After
+ * that, storing an entry evicts the least recently used entries of the size
+ * class it needs. If that class has nothing to evict, for example because
+ * it has no slab yet, a slab of another class is emptied and cut again.
+ *
+ * Streams read directly from the slabs. An entry that is read, even if it is
+ * removed or replaced in the meantime, keeps its chunks until all its
+ * readers are done.
+ *
+ * Accepts the following system properties:
+ *
+ *  <dl>
+ *      <dt>eu.sqooss.service.cache.offheap.size</dt>
+ *      <dd>Maximum size of all slabs. Accepts the k, m and g suffixes.
+ *      Default is 256m. The JVM must be allowed to allocate as much direct
+ *      memory (-XX:MaxDirectMemorySize).</dd>
+ *      <dt>eu.sqooss.service.cache.offheap.slab</dt>
+ *      <dd>Size of each slab, which is also the largest chunk size. Accepts
+ *      the k, m and g suffixes. Default is 1m.</dd>
+ * </dl>
+ */
+public class OffHeapCache extends CacheServiceImpl {
+
+    public static final String CACHE_SIZE = "eu.sqooss.service.cache.offheap.size";
+    public static final String SLAB_SIZE = "eu.sqooss.service.cache.offheap.slab";
+
+    private static final int MIN_CHUNK = 64;
+    private static final double GROWTH = 1.25;
+    private static final long NIL = -1;
+
+    /* Layout of the first chunk of an entry, followed by key and value */
+    private static final int HASH = 0;
+    private static final int KEY_LENGTH = 4;
+    private static final int VALUE_LENGTH = 8;
+    private static final int READERS = 12;
+    private static final int FLAGS = 16;
+    private static final int NEXT = 24;
+    private static final int LRU_PREV = 32;
+    private static final int LRU_NEXT = 40;
+    static final int HEAD_SIZE = 48;
+
+    /* Further chunks start with the address of the next one */
+    static final int LINK_SIZE = 8;
+
+    /* Set on entries removed while being read */
+    private static final int DEAD = 1;
+
+    private static final int MIN_TABLE = 1024;
+
+    private final int slabSize;
+    private final long maxSize;
+    private final ByteBuffer[] slabs;
+    private final int[] slabClass;
+    private final int[] slabUsed;
+    private int slabCount;
+    private int slabLimit;
+
+    /* Where the search for a slab to move to another class resumes */
+    private int reassignNext;
+    private long reassigned;
+
+    private final int[] chunkSizes;
+    private final long[] free;
+    private final long[] lruHead;
+    private final long[] lruTail;
+
+    /* Entry addresses + 1, 0 for empty slots, with linear probing */
+    private ByteBuffer table;
+    private int tableSize;
+    private int count;
+
+    private long chunkBytes;
+    private long storedBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public OffHeapCache() {
+        this(0, 0, true);
+    }
+
+    public OffHeapCache(long maxSize, int slabSize) {
+        this(maxSize, slabSize, false);
+    }
+
+    /* Sizes are read from the system properties if configured is set */
+    private OffHeapCache(long maxSize, int slabSize, boolean configured) {
+        if (configured) {
+            maxSize = sizeProperty(CACHE_SIZE, 256L * 1024 * 1024);
+            slabSize = (int) sizeProperty(SLAB_SIZE, 1024 * 1024);
+        }
+        if (slabSize < 16 * MIN_CHUNK)
+            throw new IllegalArgumentException("Slab size too small: " + slabSize);
+        this.slabSize = slabSize;
+        this.maxSize = maxSize;
+        int maxSlabs = (int) Math.max(1, maxSize / slabSize);
+        this.slabs = new ByteBuffer[maxSlabs];
+        this.slabClass = new int[maxSlabs];
+        this.slabUsed = new int[maxSlabs];
+        this.slabLimit = maxSlabs;
+
+        List<Integer> sizes = new ArrayList<Integer>();
+        int size = MIN_CHUNK;
+        while (size < slabSize) {
+            sizes.add(size);
+            size = Math.max(size + 8, ((int) (size * GROWTH) + 7) & ~7);
+        }
+        sizes.add(slabSize);
+        chunkSizes = new int[sizes.size()];
+        for (int i = 0; i < chunkSizes.length; i++)
+            chunkSizes[i] = sizes.get(i);
+
+        free = new long[chunkSizes.length];
+        lruHead = new long[chunkSizes.length];
+        lruTail = new long[chunkSizes.length];
+        Arrays.fill(free, NIL);
+        Arrays.fill(lruHead, NIL);
+        Arrays.fill(lruTail, NIL);
+
+        tableSize = MIN_TABLE;
+        table = ByteBuffer.allocateDirect(tableSize * 8);
+    }
+
+    @Override
+    public byte[] get(String key) {
+        long a = acquire(key);
+        if (a == NIL) {
+            stats.miss();
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            byte[] result = new byte[getInt(a, VALUE_LENGTH)];
+            transfer(a, result, false);
+            stats.hit();
+            stats.load(System.nanoTime() - start);
+            return result;
+        } finally {
+            release(a);
+        }
+    }
+
+    /**
+     * Returns a stream that copies the value from the slabs directly to the
+     * caller's buffers. The entry is kept in memory until the stream is
+     * closed.
+     */
+    @Override
+    public InputStream getStream(String key) {
+        long a = acquire(key);
+        if (a == NIL) {
+            stats.miss();
+            return null;
+        }
+        stats.hit();
+        return new SlabInputStream(a);
+    }
+
+    /**
+     * Chunks are allocated with the cache locked, but the value is copied
+     * to them without holding the lock.
+     */
+    @Override
+    public void set(String key, byte[] data) {
+        byte[] k = key.getBytes(SegmentCache.UTF8);
+        int hash = InMemoryCache.spread(key.hashCode());
+        if (HEAD_SIZE + k.length > slabSize) {
+            stats.eviction(data.length);
+            return;
+        }
+
+        long a;
+        lock.lock();
+        try {
+            a = allocateEntry(k.length, data.length);
+        } finally {
+            lock.unlock();
+        }
+        if (a == NIL) {
+            stats.eviction(data.length);
+            return;
+        }
+
+        fill(a, hash, k, data);
+        lock.lock();
+        try {
+            publish(a, hash, k, data.length);
+        } finally {
+            lock.unlock();
+        }
+        stats.write(data.length);
+    }
+
+    /**
+     * Finds and pins the entries with a single lock acquisition, then copies
+     * their values without holding the lock.
+     */
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        long start = System.nanoTime();
+        List<String> found = new ArrayList<String>(keys.size());
+        long[] addresses = new long[keys.size()];
+        lock.lock();
+        try {
+            for (String key : keys) {
+                long a = pin(key);
+                if (a != NIL) {
+                    addresses[found.size()] = a;
+                    found.add(key);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Map<String, byte[]> result = new HashMap<String, byte[]>(keys.size() * 2);
+        try {
+            for (int i = 0; i < found.size(); i++) {
+                byte[] value = new byte[getInt(addresses[i], VALUE_LENGTH)];
+                transfer(addresses[i], value, false);
+                result.put(found.get(i), value);
+            }
+        } finally {
+            lock.lock();
+            try {
+                for (int i = 0; i < found.size(); i++)
+                    unpin(addresses[i]);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        stats.lookups(result.size(), keys.size() - result.size());
+        if (!result.isEmpty())
+            stats.load(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Allocates the chunks of all entries with a single lock acquisition,
+     * copies the values without holding the lock and publishes them with
+     * a second one.
+     */
+    @Override
+    public void setAll(Map<String, byte[]> entries) {
+        int n = entries.size();
+        byte[][] keys = new byte[n][];
+        byte[][] values = new byte[n][];
+        int[] hashes = new int[n];
+        int i = 0;
+        for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+            keys[i] = e.getKey().getBytes(SegmentCache.UTF8);
+            values[i] = e.getValue();
+            hashes[i] = InMemoryCache.spread(e.getKey().hashCode());
+            i++;
+        }
+
+        long[] addresses = new long[n];
+        lock.lock();
+        try {
+            for (i = 0; i < n; i++)
+                addresses[i] = (HEAD_SIZE + keys[i].length > slabSize) ? NIL
+                    : allocateEntry(keys[i].length, values[i].length);
+        } finally {
+            lock.unlock();
+        }
+
+        for (i = 0; i < n; i++)
+            if (addresses[i] != NIL)
+                fill(addresses[i], hashes[i], keys[i], values[i]);
+
+        lock.lock();
+        try {
+            for (i = 0; i < n; i++)
+                if (addresses[i] != NIL)
+                    publish(addresses[i], hashes[i], keys[i], values[i].length);
+        } finally {
+            lock.unlock();
+        }
+
+        for (i = 0; i < n; i++) {
+            if (addresses[i] == NIL)
+                stats.eviction(values[i].length);
+            else
+                stats.write(values[i].length);
+        }
+    }
+
+    /*
+     * Write the header, key and value of a new entry. The chunks are not
+     * reachable yet, so this needs no lock.
+     */
+    private void fill(long a, int hash, byte[] k, byte[] data) {
+        putInt(a, HASH, hash);
+        putInt(a, KEY_LENGTH, k.length);
+        putInt(a, VALUE_LENGTH, data.length);
+        putInt(a, READERS, 0);
+        putInt(a, FLAGS, 0);
+        ByteBuffer b = slabs[slab(a)].duplicate();
+        b.position(offset(a) + HEAD_SIZE);
+        b.put(k);
+        transfer(a, data, true);
+    }
+
+    /* Make a filled entry visible, replacing any older one. Called locked. */
+    private void publish(long a, int hash, byte[] k, int valueLength) {
+        int slot = find(k, hash);
+        if (slot >= 0)
+            drop(slot);
+        insert(a, hash);
+        lruPush(a);
+        count++;
+        storedBytes += k.length + valueLength;
+    }
+
+    @Override
+    public void remove(String key) {
+        byte[] k = key.getBytes(SegmentCache.UTF8);
+        int hash = InMemoryCache.spread(key.hashCode());
+        lock.lock();
+        try {
+            int slot = find(k, hash);
+            if (slot >= 0) {
+                drop(slot);
+                stats.invalidation(1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidatePrefix(String prefix) {
+        lock.lock();
+        try {
+            List<Long> matching = new ArrayList<Long>();
+            for (int i = 0; i < tableSize; i++) {
+                long a = slot(i);
+                if (a != NIL && key(a).startsWith(prefix))
+                    matching.add(a);
+            }
+            for (long a : matching)
+                drop(findAddress(a));
+            stats.invalidation(matching.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Number of entries in the cache. */
+    public int getEntryCount() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Bytes of key and value data held in the cache. */
+    public long getSize() {
+        lock.lock();
+        try {
+            return storedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fraction of the memory of used chunks that does not hold key and value
+     * data, because entries are smaller than their chunks.
+     */
+    public double getFragmentation() {
+        lock.lock();
+        try {
+            return chunkBytes == 0 ? 0 : 1 - (double) storedBytes / chunkBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = super.getStats();
+        lock.lock();
+        try {
+            int classes = 0;
+            for (long head : lruHead)
+                if (head != NIL)
+                    classes++;
+            m.put("entries", count);
+            m.put("bytes.stored", storedBytes);
+            m.put("bytes.chunks", chunkBytes);
+            m.put("bytes.slabs", (long) slabCount * slabSize);
+            m.put("bytes.max", maxSize);
+            m.put("slabs", slabCount);
+            m.put("slabs.reassigned", reassigned);
+            m.put("size.classes", classes);
+            m.put("fragmentation", String.format("%.3f", getFragmentation()));
+        } finally {
+            lock.unlock();
+        }
+        return m;
+    }
+
+    /* Find an entry, mark it used and keep it from being freed */
+    private long acquire(String key) {
+        lock.lock();
+        try {
+            return pin(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long a) {
+        lock.lock();
+        try {
+            unpin(a);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* As above, with the lock held */
+    private long pin(String key) {
+        int slot = find(key.getBytes(SegmentCache.UTF8),
+                InMemoryCache.spread(key.hashCode()));
+        if (slot < 0)
+            return NIL;
+        long a = slot(slot);
+        lruRemove(a);
+        lruPush(a);
+        putInt(a, READERS, getInt(a, READERS) + 1);
+        return a;
+    }
+
+    private void unpin(long a) {
+        int readers = getInt(a, READERS) - 1;
+        putInt(a, READERS, readers);
+        if (readers == 0 && (getInt(a, FLAGS) & DEAD) != 0)
+            freeChain(a);
+    }
+
+    /* Copy the value of an entry from or to b */
+    private void transfer(long head, byte[] b, boolean write) {
+        long a = head;
+        int start = HEAD_SIZE + getInt(head, KEY_LENGTH);
+        int done = 0;
+        while (done < b.length) {
+            if (start == chunkSize(a)) {
+                a = next(a, head);
+                start = LINK_SIZE;
+            }
+            int n = Math.min(b.length - done, chunkSize(a) - start);
+            ByteBuffer v = slabs[slab(a)].duplicate();
+            v.position(offset(a) + start);
+            if (write)
+                v.put(b, done, n);
+            else
+                v.get(b, done, n);
+            done += n;
+            start += n;
+        }
+    }
+
+    private long next(long a, long head) {
+        return getLong(a, a == head ? NEXT : 0);
+    }
+
+    private String key(long a) {
+        byte[] k = new byte[getInt(a, KEY_LENGTH)];
+        ByteBuffer b = slabs[slab(a)].duplicate();
+        b.position(offset(a) + HEAD_SIZE);
+        b.get(k);
+        return new String(k, SegmentCache.UTF8);
+    }
+
+    /* Chunk allocation, called with the lock held */
+
+    /*
+     * Allocate the chunks for an entry and link them, or return NIL if there
+     * is not enough memory.
+     */
+    private long allocateEntry(int keyLength, int valueLength) {
+        long total = (long) HEAD_SIZE + keyLength + valueLength;
+        long head = allocate(classFor((int) Math.min(total, slabSize)));
+        if (head == NIL)
+            return NIL;
+        putLong(head, NEXT, NIL);
+
+        long last = head;
+        long remaining = total - slabSize;
+        while (remaining > 0) {
+            int size = (int) Math.min(remaining + LINK_SIZE, slabSize);
+            long a = allocate(classFor(size));
+            if (a == NIL) {
+                freeChain(head);
+                return NIL;
+            }
+            putLong(a, 0, NIL);
+            putLong(last, last == head ? NEXT : 0, a);
+            last = a;
+            remaining -= slabSize - LINK_SIZE;
+        }
+        return head;
+    }
+
+    private long allocate(int cls) {
+        if (free[cls] == NIL && slabCount < slabLimit)
+            addSlab(cls);
+        if (free[cls] == NIL)
+            evict(cls);
+        if (free[cls] == NIL)
+            reassignSlab(cls);
+        long a = free[cls];
+        if (a == NIL)
+            return NIL;
+        free[cls] = getLong(a, 0);
+        chunkBytes += chunkSizes[cls];
+        slabUsed[slab(a)]++;
+        return a;
+    }
+
+    private void addSlab(int cls) {
+        ByteBuffer slab;
+        try {
+            slab = ByteBuffer.allocateDirect(slabSize);
+        } catch (OutOfMemoryError e) {
+            warn("OffHeapCache: Cannot allocate slab, limiting the cache to "
+                    + slabCount + " slabs: " + e.getMessage());
+            slabLimit = slabCount;
+            return;
+        }
+        int id = slabCount++;
+        slabs[id] = slab;
+        split(id, cls);
+    }
+
+    /* Cut a slab into free chunks of a class */
+    private void split(int id, int cls) {
+        slabClass[id] = cls;
+        int size = chunkSizes[cls];
+        for (int off = (slabSize / size - 1) * size; off >= 0; off -= size) {
+            long a = address(id, off);
+            putLong(a, 0, free[cls]);
+            free[cls] = a;
+        }
+    }
+
+    /*
+     * Give cls a slab of another class, evicting the entries with chunks in
+     * it. Slabs with chunks that are being read or filled are skipped.
+     */
+    private void reassignSlab(int cls) {
+        for (int n = 0; n < slabCount; n++) {
+            int id = (reassignNext + n) % slabCount;
+            if (slabClass[id] == cls)
+                continue;
+            List<Long> entries = entriesIn(id);
+            if (entries == null)
+                continue;
+
+            for (long a : entries) {
+                stats.eviction(getInt(a, VALUE_LENGTH));
+                drop(findAddress(a));
+            }
+            unlinkFree(id);
+            split(id, cls);
+            reassignNext = id + 1;
+            reassigned++;
+            return;
+        }
+    }
+
+    /*
+     * The entries with chunks in a slab, or null if some chunk of it is used
+     * by an entry that is being read or is not in the index.
+     */
+    private List<Long> entriesIn(int id) {
+        List<Long> entries = new ArrayList<Long>();
+        int chunks = 0;
+        for (int i = 0; i < tableSize && chunks < slabUsed[id]; i++) {
+            long head = slot(i);
+            if (head == NIL)
+                continue;
+            int inSlab = 0;
+            for (long a = head; a != NIL; a = next(a, head))
+                if (slab(a) == id)
+                    inSlab++;
+            if (inSlab == 0)
+                continue;
+            if (getInt(head, READERS) > 0)
+                return null;
+            entries.add(head);
+            chunks += inSlab;
+        }
+        return chunks == slabUsed[id] ? entries : null;
+    }
+
+    /* Take the chunks of a slab off the free list of its class */
+    private void unlinkFree(int id) {
+        int cls = slabClass[id];
+        long prev = NIL;
+        for (long a = free[cls]; a != NIL; ) {
+            long next = getLong(a, 0);
+            if (slab(a) != id)
+                prev = a;
+            else if (prev == NIL)
+                free[cls] = next;
+            else
+                putLong(prev, 0, next);
+            a = next;
+        }
+    }
+
+    /* Evict the least recently used entry of a class that is not being read */
+    private void evict(int cls) {
+        for (long a = lruTail[cls]; a != NIL; a = getLong(a, LRU_PREV)) {
+            if (getInt(a, READERS) > 0)
+                continue;
+            stats.eviction(getInt(a, VALUE_LENGTH));
+            drop(findAddress(a));
+            return;
+        }
+    }
+
+    private void freeChain(long head) {
+        long a = head;
+        while (a != NIL) {
+            long next = next(a, head);
+            int cls = slabClass[slab(a)];
+            putLong(a, 0, free[cls]);
+            free[cls] = a;
+            chunkBytes -= chunkSizes[cls];
+            slabUsed[slab(a)]--;
+            a = next;
+        }
+    }
+
+    private int classFor(int size) {
+        for (int i = 0; i < chunkSizes.length; i++)
+            if (chunkSizes[i] >= size)
+                return i;
+        throw new IllegalArgumentException("Chunk too large: " + size);
+    }
+
+    /* Remove the entry in a slot; it is freed when its last reader is done */
+    private void drop(int slot) {
+        long a = slot(slot);
+        removeSlot(slot);
+        lruRemove(a);
+        count--;
+        storedBytes -= getInt(a, KEY_LENGTH) + getInt(a, VALUE_LENGTH);
+        if (getInt(a, READERS) > 0)
+            putInt(a, FLAGS, getInt(a, FLAGS) | DEAD);
+        else
+            freeChain(a);
+    }
+
+    /* Per class LRU lists, most recently used first */
+
+    private void lruPush(long a) {
+        int cls = slabClass[slab(a)];
+        putLong(a, LRU_PREV, NIL);
+        putLong(a, LRU_NEXT, lruHead[cls]);
+        if (lruHead[cls] != NIL)
+            putLong(lruHead[cls], LRU_PREV, a);
+        else
+            lruTail[cls] = a;
+        lruHead[cls] = a;
+    }
+
+    private void lruRemove(long a) {
+        int cls = slabClass[slab(a)];
+        long prev = getLong(a, LRU_PREV);
+        long next = getLong(a, LRU_NEXT);
+        if (prev != NIL)
+            putLong(prev, LRU_NEXT, next);
+        else
+            lruHead[cls] = next;
+        if (next != NIL)
+            putLong(next, LRU_PREV, prev);
+        else
+            lruTail[cls] = prev;
+    }
+
+    /* Index, called with the lock held */
+
+    private long slot(int i) {
+        return table.getLong(i * 8) - 1;
+    }
+
+    private void setSlot(int i, long a) {
+        table.putLong(i * 8, a + 1);
+    }
+
+    private int find(byte[] k, int hash) {
+        int mask = tableSize - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            long a = slot(i);
+            if (a == NIL)
+                return -1;
+            if (getInt(a, HASH) == hash && keyEquals(a, k))
+                return i;
+        }
+    }
+
+    private int findAddress(long a) {
+        int mask = tableSize - 1;
+        for (int i = getInt(a, HASH) & mask; ; i = (i + 1) & mask) {
+            long b = slot(i);
+            if (b == a)
+                return i;
+            if (b == NIL)
+                throw new IllegalStateException("Entry not in index");
+        }
+    }
+
+    private boolean keyEquals(long a, byte[] k) {
+        if (getInt(a, KEY_LENGTH) != k.length)
+            return false;
+        ByteBuffer slab = slabs[slab(a)];
+        int off = offset(a) + HEAD_SIZE;
+        for (int i = 0; i < k.length; i++)
+            if (slab.get(off + i) != k[i])
+                return false;
+        return true;
+    }
+
+    private void insert(long a, int hash) {
+        if ((count + 1) * 10L > tableSize * 7L)
+            resize(tableSize * 2);
+        int mask = tableSize - 1;
+        int i = hash & mask;
+        while (slot(i) != NIL)
+            i = (i + 1) & mask;
+        setSlot(i, a);
+    }
+
+    private void resize(int size) {
+        ByteBuffer old = table;
+        int oldSize = tableSize;
+        table = ByteBuffer.allocateDirect(size * 8);
+        tableSize = size;
+        int mask = size - 1;
+        for (int j = 0; j < oldSize; j++) {
+            long a = old.getLong(j * 8) - 1;
+            if (a == NIL)
+                continue;
+            int i = getInt(a, HASH) & mask;
+            while (slot(i) != NIL)
+                i = (i + 1) & mask;
+            setSlot(i, a);
+        }
+    }
+
+    /* Empty a slot, moving back later entries of the same probe sequence */
+    private void removeSlot(int i) {
+        int mask = tableSize - 1;
+        int j = i;
+        for (;;) {
+            j = (j + 1) & mask;
+            long a = slot(j);
+            if (a == NIL)
+                break;
+            int home = getInt(a, HASH) & mask;
+            boolean stays = (i <= j) ? (i < home && home <= j)
+                                     : (i < home || home <= j);
+            if (!stays) {
+                setSlot(i, a);
+                i = j;
+            }
+        }
+        setSlot(i, NIL);
+    }
+
+    /* Addresses: slab number in the high half, offset in the low half */
+
+    private static long address(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slab(long a) {
+        return (int) (a >>> 32);
+    }
+
+    private static int offset(long a) {
+        return (int) a;
+    }
+
+    private int chunkSize(long a) {
+        return chunkSizes[slabClass[slab(a)]];
+    }
+
+    private int getInt(long a, int field) {
+        return slabs[slab(a)].getInt(offset(a) + field);
+    }
+
+    private void putInt(long a, int field, int value) {
+        slabs[slab(a)].putInt(offset(a) + field, value);
+    }
+
+    private long getLong(long a, int field) {
+        return slabs[slab(a)].getLong(offset(a) + field);
+    }
+
+    private void putLong(long a, int field, long value) {
+        slabs[slab(a)].putLong(offset(a) + field, value);
+    }
+
+    /** Reads a value from its chunks, without copying it to the heap first */
+    private final class SlabInputStream extends InputStream {
+        private final long head;
+        private long chunk;
+        private ByteBuffer view;
+        private long remaining;
+        private boolean closed;
+
+        SlabInputStream(long head) {
+            this.head = head;
+            this.chunk = head;
+            this.remaining = getInt(head, VALUE_LENGTH);
+            this.view = view(head, HEAD_SIZE + getInt(head, KEY_LENGTH));
+        }
+
+        private ByteBuffer view(long a, int start) {
+            ByteBuffer b = slabs[slab(a)].duplicate();
+            int len = (int) Math.min(remaining, chunkSize(a) - start);
+            b.limit(offset(a) + start + len);
+            b.position(offset(a) + start);
+            return b;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (closed || remaining == 0)
+                return -1;
+            if (!view.hasRemaining()) {
+                chunk = next(chunk, head);
+                view = view(chunk, LINK_SIZE);
+            }
+            int n = Math.min(len, view.remaining());
+            view.get(b, off, n);
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return closed ? 0 : (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(head);
+            }
+        }
+    }
+}
@@ -1,11 +1,17 @@
 package eu.sqooss.service.cache;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
@@ -14,14 +20,23 @@ import java.nio.channels.FileLock;
 import java.nio.channels.FileLockInterruptionException;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-import eu.sqooss.service.logging.Logger;
 
 /**
  * Disk based implementation of the cache service. Does not manage any resource
- * and puts all cached in a single directory. On a busy system, it may easily
+ * and stores each entry in its own file. Each namespace of a key gets its own
+ * directory, so a namespace can be invalidated by deleting its directory
+ * without looking at the rest of the cache. On a busy system, it may easily
  * hit system limits (e.g. files per directory).
  * 
  * Accepts the following system property:
@@ -39,11 +54,23 @@ import eu.sqooss.service.logging.Logger;
 public class OnDiskCache extends CacheServiceImpl {
 
     public static final String CACHE_DIR = "eu.sqooss.service.cache.dir";
+
+    /*
+     * Directory names start with DIR_PREFIX and entry file names end with
+     * ENTRY_SUFFIX. Key parts that are too long for a file name are hashed.
+     * Temporary files, and directories being deleted, start with TEMP_PREFIX.
+     */
+    private static final String DIR_PREFIX = "=";
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String HASHED_PREFIX = "#";
+    private static final String TEMP_PREFIX = "~cache-";
+    private static final int MAX_NAME = 128;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final AtomicLong trashCount = new AtomicLong();
     
     private File dir;
     
-    private Logger log;
-    
     public OnDiskCache(String cachedir) throws Exception {
         initDir(cachedir);
     }
@@ -66,6 +93,16 @@ public class OnDiskCache extends CacheServiceImpl {
 
         if (!dir.exists())
             dir.mkdirs();
+
+        /* Leftovers of interrupted writes and invalidations */
+        File[] temp = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(TEMP_PREFIX);
+            }
+        });
+        if (temp != null)
+            for (File f : temp)
+                deleteTree(f);
     }
     
     @Override
@@ -74,8 +111,9 @@ public class OnDiskCache extends CacheServiceImpl {
         MappedByteBuffer buff;
         FileLock lock = null;
         byte[] result = null;
+        long start = System.nanoTime();
         try {
-            String fname = dir.getAbsolutePath() + File.separatorChar + md5(key);
+            String fname = file(key).getPath();
             file = new FileInputStream(fname).getChannel();
             try {
                 lock = file.lock(0, Long.MAX_VALUE, true);
@@ -100,7 +138,11 @@ public class OnDiskCache extends CacheServiceImpl {
             buff = file.map(MapMode.READ_ONLY, 0, file.size());
             result = new byte[(int)file.size()]; // 4GB should be enough for everybody :-)
             buff.get(result);
+        } catch (FileNotFoundException e) {
+            stats.miss();
+            return null;
         } catch (Exception e) {
+            stats.error();
             return null;
         } finally {
             try {
@@ -113,18 +155,32 @@ public class OnDiskCache extends CacheServiceImpl {
             }
         }
 
+        stats.hit();
+        stats.load(System.nanoTime() - start);
         return result;
     }
         
     @Override
     public void set(String key, byte[] data) {
+        try {
+            File f = file(key);
+            f.getParentFile().mkdirs();
+            write(key, f, data);
+        } catch (NoSuchAlgorithmException e) {
+            warn("Cannot store key " + key + 
+                    " An exception occured: "+ e.getMessage());
+        }
+    }
+
+    /* Store data to the file of key, whose directory must exist */
+    private void write(String key, File f, byte[] data) {
         FileChannel file = null;
         MappedByteBuffer buff;
         FileLock lock = null;
         RandomAccessFile raf;
 
         try {
-            String fname = dir.getAbsolutePath() + File.separatorChar + md5(key);
+            String fname = f.getPath();
             raf = new RandomAccessFile(fname, "rw");
             file = raf.getChannel();
             try {
@@ -147,8 +203,10 @@ public class OnDiskCache extends CacheServiceImpl {
                 file.close();
                 return;
             }
+            file.truncate(data.length);
             buff = file.map(MapMode.READ_WRITE, 0, data.length);
             buff.put(data);
+            stats.write(data.length);
         } catch (FileNotFoundException e) {
             warn("Cannot store key " + key + 
                     " An exception occured: "+ e.getMessage());
@@ -167,6 +225,289 @@ public class OnDiskCache extends CacheServiceImpl {
         }
     }
 
+    /**
+     * Reads the files of the keys in path order, so that entries of the same
+     * namespace are read together, and with plain reads, which are cheaper
+     * than memory mapping for small files.
+     */
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        long start = System.nanoTime();
+        Map<String, byte[]> result = new HashMap<String, byte[]>(keys.size() * 2);
+        for (Map.Entry<File, String> e : files(keys).entrySet()) {
+            try {
+                byte[] value = read(e.getKey());
+                if (value != null)
+                    result.put(e.getValue(), value);
+            } catch (IOException ioe) {
+                warn("Cannot read key " + e.getValue() + " An exception occured: "
+                        + ioe.getMessage());
+            }
+        }
+        stats.lookups(result.size(), keys.size() - result.size());
+        if (!result.isEmpty())
+            stats.load(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Writes the files of the entries in path order, creating each namespace
+     * directory once.
+     */
+    @Override
+    public void setAll(Map<String, byte[]> entries) {
+        File parent = null;
+        for (Map.Entry<File, String> e : files(entries.keySet()).entrySet()) {
+            File f = e.getKey();
+            if (!f.getParentFile().equals(parent)) {
+                parent = f.getParentFile();
+                parent.mkdirs();
+            }
+            write(e.getValue(), f, entries.get(e.getValue()));
+        }
+    }
+
+    /* The files of the provided keys, sorted by path */
+    private SortedMap<File, String> files(Collection<String> keys) {
+        SortedMap<File, String> files = new TreeMap<File, String>();
+        for (String key : keys) {
+            try {
+                files.put(file(key), key);
+            } catch (NoSuchAlgorithmException e) {
+                warn("Cannot find file for key " + key + " An exception occured: "
+                        + e.getMessage());
+            }
+        }
+        return files;
+    }
+
+    /* Read a file under a shared lock, or return null if it does not exist */
+    private static byte[] read(File f) throws IOException {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(f);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            FileChannel channel = in.getChannel();
+            try {
+                channel.lock(0, Long.MAX_VALUE, true);
+            } catch (OverlappingFileLockException ofle) {
+                // ignored
+            }
+            byte[] result = new byte[(int) channel.size()];
+            ByteBuffer buff = ByteBuffer.wrap(result);
+            while (buff.hasRemaining() && channel.read(buff) >= 0)
+                ;
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a stream reading directly from the cache file. The file is
+     * share-locked until the stream is closed.
+     */
+    @Override
+    public InputStream getStream(String key) {
+        FileInputStream in = null;
+        try {
+            String fname = file(key).getPath();
+            in = new FileInputStream(fname);
+            try {
+                in.getChannel().lock(0, Long.MAX_VALUE, true);
+            } catch (OverlappingFileLockException ofle) {
+                // ignored
+            } catch (FileLockInterruptionException ace) {
+                // ignored
+            }
+            stats.hit();
+            return new BufferedInputStream(in, 65536);
+        } catch (FileNotFoundException e) {
+            stats.miss();
+            return null;
+        } catch (Exception e) {
+            warn("Cannot read key " + key + " An exception occured: "
+                    + e.getMessage());
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException ignored) {}
+            return null;
+        }
+    }
+
+    /**
+     * Copies the stream to a temporary file in the cache directory and
+     * renames it over the cache file, so readers never see partial contents.
+     * Temporary files are kept at the top of the directory, where startup
+     * removes the ones left by a crash.
+     */
+    @Override
+    public void setStream(String key, InputStream in) {
+        File tmp = null;
+        try {
+            File f = file(key);
+            f.getParentFile().mkdirs();
+            tmp = File.createTempFile(TEMP_PREFIX, ".tmp", dir);
+            OutputStream out = new FileOutputStream(tmp);
+            long length = 0;
+            try {
+                byte[] buff = new byte[65536];
+                int read;
+                while ((read = in.read(buff)) != -1) {
+                    out.write(buff, 0, read);
+                    length += read;
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), f.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            stats.write(length);
+        } catch (Exception e) {
+            warn("Cannot store key " + key + 
+                    " An exception occured: "+ e.getMessage());
+        } finally {
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        try {
+            if (file(key).delete())
+                stats.invalidation(1);
+        } catch (NoSuchAlgorithmException e) {
+            warn("Cannot remove key " + key + " An exception occured: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the directory of the namespace the prefix ends with, or the
+     * matching files and directories of the namespace the prefix is in.
+     * Other namespaces are not looked at. Files and directories of key
+     * parts that were hashed are always removed.
+     */
+    @Override
+    public void invalidatePrefix(String prefix) {
+        int sep = prefix.lastIndexOf(NAMESPACE_SEPARATOR);
+        String partial = prefix.substring(sep + 1);
+        try {
+            File parent = (sep < 0) ? dir : directory(prefix.substring(0, sep));
+            if (sep >= 0 && partial.length() == 0) {
+                stats.invalidation(delete(parent));
+                return;
+            }
+
+            File[] children = parent.listFiles();
+            if (children == null)
+                return;
+            String match = escape(partial);
+            long removed = 0;
+            for (File f : children) {
+                String name = f.getName();
+                boolean isDir = name.startsWith(DIR_PREFIX);
+                if (isDir)
+                    name = name.substring(DIR_PREFIX.length());
+                else if (!name.endsWith(ENTRY_SUFFIX))
+                    continue;
+                if (!name.startsWith(match) && !name.startsWith(HASHED_PREFIX))
+                    continue;
+                if (isDir)
+                    removed += delete(f);
+                else if (f.delete())
+                    removed++;
+            }
+            stats.invalidation(removed);
+        } catch (NoSuchAlgorithmException e) {
+            warn("Cannot invalidate prefix " + prefix + " An exception occured: "
+                    + e.getMessage());
+        }
+    }
+
+    /* The file of an entry, in the directory of its namespace */
+    private File file(String key) throws NoSuchAlgorithmException {
+        int sep = key.lastIndexOf(NAMESPACE_SEPARATOR);
+        File parent = (sep < 0) ? dir : directory(key.substring(0, sep));
+        return new File(parent, name(key.substring(sep + 1)) + ENTRY_SUFFIX);
+    }
+
+    /* The directory of a namespace, nested in the ones of its parents */
+    private File directory(String namespace) throws NoSuchAlgorithmException {
+        File f = dir;
+        int start = 0;
+        for (;;) {
+            int sep = namespace.indexOf(NAMESPACE_SEPARATOR, start);
+            String part = namespace.substring(start,
+                    sep < 0 ? namespace.length() : sep);
+            f = new File(f, DIR_PREFIX + name(part));
+            if (sep < 0)
+                return f;
+            start = sep + NAMESPACE_SEPARATOR.length();
+        }
+    }
+
+    /* The file name of a key part */
+    private String name(String part) throws NoSuchAlgorithmException {
+        String name = escape(part);
+        if (name.length() == 0)
+            return "%";
+        if (name.length() > MAX_NAME)
+            return HASHED_PREFIX + md5(part);
+        return name;
+    }
+
+    /*
+     * Escape characters that are not safe in file names. The escaped form of
+     * a prefix is a prefix of the escaped form of the whole string.
+     */
+    static String escape(String s) {
+        byte[] bytes = s.getBytes(SegmentCache.UTF8);
+        StringBuilder b = new StringBuilder(bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            int c = bytes[i] & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '-' || c == '_'
+                    || (c == '.' && i > 0))
+                b.append((char) c);
+            else
+                b.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+        }
+        return b.toString();
+    }
+
+    /*
+     * Move a directory out of the way, so that new entries are not mixed
+     * with the ones being deleted, and delete it. Returns the number of
+     * entries deleted.
+     */
+    private long delete(File d) {
+        File trash = new File(dir, TEMP_PREFIX + "trash-"
+                + trashCount.incrementAndGet() + "-" + System.nanoTime());
+        if (!d.renameTo(trash))
+            return 0;
+        return deleteTree(trash);
+    }
+
+    private static long deleteTree(File f) {
+        long entries = 0;
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c : children)
+                entries += deleteTree(c);
+        if (f.getName().endsWith(ENTRY_SUFFIX))
+            entries++;
+        f.delete();
+        return entries;
+    }
+
     private String md5(String...args) throws NoSuchAlgorithmException {
         MessageDigest m = MessageDigest.getInstance("MD5");
         
@@ -175,10 +516,9 @@ public class OnDiskCache extends CacheServiceImpl {
         return new BigInteger(1, m.digest()).toString(16);
     }
     
-    private void warn(String message) {
-        if (log != null)
-            log.warn(message);
-        else 
-            System.err.println(message);
+    @Override
+    protected void warn(String message) {
+        stats.error();
+        super.warn(message);
     }
 }
@@ -0,0 +1,1208 @@
+package eu.sqooss.service.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Disk based implementation of the cache service that appends all entries to
+ * a small number of large segment files instead of creating one file per key.
+ * An in-memory index maps each key to the location of its latest value;
+ * the index is periodically checkpointed to disk so that restarts only need
+ * to replay the segment data written after the last checkpoint. Records are
+ * checksummed and a torn write at the end of the log is truncated on
+ * recovery.
+ *
+ * Overwritten entries leave garbage in older segments. A background thread
+ * copies the live entries out of mostly-garbage segments and deletes them.
+ * Removed entries are recorded with a tombstone record, so that they are
+ * not brought back when segments are replayed.
+ *
+ * Accepts the following system properties:
+ *
+ *  <dl>
+ *      <dt>eu.sqooss.service.cache.dir</dt>
+ *      <dd>The directory to store cache files to. Segments are kept in the
+ *      <code>segments</code> subdirectory.</dd>
+ *      <dt>eu.sqooss.service.cache.segment.size</dt>
+ *      <dd>Size after which a new segment file is started. Accepts the k, m
+ *      and g suffixes. Default is 64m.</dd>
+ *      <dt>eu.sqooss.service.cache.segment.maxsize</dt>
+ *      <dd>Upper bound for the total size of the segment files. When it is
+ *      exceeded, the oldest segments are dropped along with their entries.
+ *      Accepts the k, m and g suffixes. Default is 0, which means no
+ *      bound.</dd>
+ *      <dt>eu.sqooss.service.cache.segment.compact</dt>
+ *      <dd>Ratio of live data under which a segment is compacted. Default
+ *      is 0.5.</dd>
+ *      <dt>eu.sqooss.service.cache.segment.interval</dt>
+ *      <dd>Seconds between compaction and index checkpoint runs. Default
+ *      is 60.</dd>
+ * </dl>
+ */
+public class SegmentCache extends CacheServiceImpl {
+
+    public static final String SEGMENT_SIZE = "eu.sqooss.service.cache.segment.size";
+    public static final String MAX_SIZE = "eu.sqooss.service.cache.segment.maxsize";
+    public static final String COMPACT_RATIO = "eu.sqooss.service.cache.segment.compact";
+    public static final String INTERVAL = "eu.sqooss.service.cache.segment.interval";
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* Record layout: magic, key length, value length, key, value, crc32 of key and value */
+    private static final int RECORD_MAGIC = 0x5ECCA4E1;
+    /* Tombstones have the same layout and no value */
+    private static final int TOMBSTONE_MAGIC = 0x5ECCDEAD;
+    static final int HEADER_SIZE = 12;
+    static final int TRAILER_SIZE = 4;
+
+    private static final int INDEX_MAGIC = 0x5ECC1DE4;
+    private static final String INDEX_FILE = "index";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SPOOL_PREFIX = "spool-";
+    private static final String SPOOL_SUFFIX = ".tmp";
+    private static final int STREAM_BUFFER = 65536;
+
+    /* Batched reads fetch records less than READ_GAP apart, up to READ_RUN */
+    private static final int READ_GAP = 16 * 1024;
+    private static final int READ_RUN = 1024 * 1024;
+
+    private final File dir;
+    private final long maxSegmentSize;
+    private final double compactRatio;
+    private final long maxDiskSize;
+
+    private final ConcurrentHashMap<String, Location> index =
+        new ConcurrentHashMap<String, Location>(1024);
+    private final ConcurrentSkipListMap<Integer, Segment> segments =
+        new ConcurrentSkipListMap<Integer, Segment>();
+
+    /* Serialises appends to the active segment and index updates */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile Segment active;
+    private final AtomicLong writesSinceCheckpoint = new AtomicLong();
+
+    private volatile Maintainer maintainer;
+
+    public SegmentCache() throws IOException {
+        this.dir = new File(cacheDir(), "segments");
+        this.maxSegmentSize = sizeProperty(SEGMENT_SIZE, 64L * 1024 * 1024);
+        this.compactRatio = doubleProperty(COMPACT_RATIO, 0.5);
+        this.maxDiskSize = sizeProperty(MAX_SIZE, 0);
+        open();
+        maintainer = new Maintainer(1000L * (long) doubleProperty(INTERVAL, 60));
+        maintainer.start();
+    }
+
+    /**
+     * Open or create a segment store in the provided directory. No background
+     * maintenance is performed; call {@link #compact()}, {@link #trim()} and
+     * {@link #checkpoint()} explicitly.
+     */
+    public SegmentCache(String path, long maxSegmentSize, double compactRatio)
+            throws IOException {
+        this(path, maxSegmentSize, compactRatio, 0);
+    }
+
+    /**
+     * As above, but limit the total size of the segment files to
+     * maxDiskSize bytes (0 for no limit) when {@link #trim()} runs.
+     */
+    public SegmentCache(String path, long maxSegmentSize, double compactRatio,
+            long maxDiskSize) throws IOException {
+        this.dir = new File(path);
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactRatio = compactRatio;
+        this.maxDiskSize = maxDiskSize;
+        open();
+    }
+
+    private void open() throws IOException {
+        if (!dir.exists())
+            dir.mkdirs();
+        recover();
+    }
+
+    @Override
+    public byte[] get(String key) {
+        long start = System.nanoTime();
+        byte[] result = read(key);
+        if (result == null) {
+            stats.miss();
+        } else {
+            stats.hit();
+            stats.load(System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    private byte[] read(String key) {
+        for (int retries = 0; retries < 3; retries++) {
+            Location l = index.get(key);
+            if (l == null)
+                break;
+            Segment s = segments.get(l.segment);
+            if (s == null || !s.retain())
+                continue; /* Compacted in the meantime */
+            try {
+                byte[] result = new byte[l.valueLength];
+                s.read(ByteBuffer.wrap(result), l.valueOffset());
+                return result;
+            } catch (IOException e) {
+                warn("Cannot read key " + key + ": " + e.getMessage());
+                return null;
+            } finally {
+                s.release();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the values in the order they are stored. Values that are close
+     * to each other in a segment are fetched with a single read.
+     */
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        long start = System.nanoTime();
+        List<String> found = new ArrayList<String>(keys.size());
+        final Map<String, Location> locations = new HashMap<String, Location>();
+        for (String key : keys) {
+            Location l = index.get(key);
+            if (l != null && locations.put(key, l) == null)
+                found.add(key);
+        }
+        Collections.sort(found, new Comparator<String>() {
+            public int compare(String a, String b) {
+                Location la = locations.get(a), lb = locations.get(b);
+                if (la.segment != lb.segment)
+                    return la.segment < lb.segment ? -1 : 1;
+                return la.offset < lb.offset ? -1 : (la.offset == lb.offset ? 0 : 1);
+            }
+        });
+
+        Map<String, byte[]> result = new HashMap<String, byte[]>(keys.size() * 2);
+        int i = 0;
+        while (i < found.size()) {
+            /* Find the records that can be read along with the first one */
+            Location first = locations.get(found.get(i));
+            long end = first.offset + first.recordLength();
+            int j = i + 1;
+            while (j < found.size()) {
+                Location l = locations.get(found.get(j));
+                if (l.segment != first.segment || l.offset - end > READ_GAP
+                        || l.offset + l.recordLength() - first.offset > READ_RUN)
+                    break;
+                end = Math.max(end, l.offset + l.recordLength());
+                j++;
+            }
+
+            Segment s = segments.get(first.segment);
+            if (s != null && s.retain()) {
+                try {
+                    byte[] run = new byte[(int) (end - first.offset)];
+                    s.read(ByteBuffer.wrap(run), first.offset);
+                    for (int k = i; k < j; k++) {
+                        Location l = locations.get(found.get(k));
+                        int from = (int) (l.valueOffset() - first.offset);
+                        result.put(found.get(k), Arrays.copyOfRange(run,
+                                from, from + l.valueLength));
+                    }
+                } catch (IOException e) {
+                    warn("Cannot read segment " + s.file + ": " + e.getMessage());
+                } finally {
+                    s.release();
+                }
+            } else {
+                /* Compacted in the meantime, look up the new locations */
+                for (int k = i; k < j; k++) {
+                    byte[] value = read(found.get(k));
+                    if (value != null)
+                        result.put(found.get(k), value);
+                }
+            }
+            i = j;
+        }
+
+        stats.lookups(result.size(), keys.size() - result.size());
+        if (!result.isEmpty())
+            stats.load(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Returns a stream that reads the value from its segment file in chunks.
+     * The segment is kept open until the stream is closed, even if it is
+     * compacted in the meantime.
+     */
+    @Override
+    public InputStream getStream(String key) {
+        for (int retries = 0; retries < 3; retries++) {
+            Location l = index.get(key);
+            if (l == null)
+                break;
+            Segment s = segments.get(l.segment);
+            if (s == null || !s.retain())
+                continue;
+            stats.hit();
+            return new SegmentInputStream(s, l.valueOffset(), l.valueLength);
+        }
+        stats.miss();
+        return null;
+    }
+
+    @Override
+    public void set(String key, byte[] data) {
+        try {
+            append(key, data, null);
+            stats.write(data.length);
+        } catch (IOException e) {
+            warn("Cannot store key " + key + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Small values are stored as with {@link #set(String, byte[])}. Larger
+     * ones are spooled to a temporary file and then copied to the active
+     * segment with a channel transfer, so memory use does not depend on the
+     * size of the value.
+     */
+    @Override
+    public void setStream(String key, InputStream in) {
+        byte[] k = key.getBytes(UTF8);
+        byte[] buff = new byte[STREAM_BUFFER];
+        File tmp = null;
+        FileChannel spool = null;
+        try {
+            int n = fill(in, buff);
+            if (n < buff.length) {
+                append(key, Arrays.copyOf(buff, n), null);
+                stats.write(n);
+                return;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(k);
+            tmp = File.createTempFile(SPOOL_PREFIX, SPOOL_SUFFIX, dir);
+            spool = new RandomAccessFile(tmp, "rw").getChannel();
+            long length = 0;
+            while (n > 0) {
+                if (length + n > Integer.MAX_VALUE - k.length - HEADER_SIZE
+                        - TRAILER_SIZE)
+                    throw new IOException("Value too large");
+                crc.update(buff, 0, n);
+                ByteBuffer b = ByteBuffer.wrap(buff, 0, n);
+                while (b.hasRemaining())
+                    spool.write(b);
+                length += n;
+                n = fill(in, buff);
+            }
+            append(key, k, spool, 0, (int) length, (int) crc.getValue(), null);
+            stats.write(length);
+        } catch (IOException e) {
+            warn("Cannot store key " + key + ": " + e.getMessage());
+        } finally {
+            try {
+                if (spool != null)
+                    spool.close();
+            } catch (IOException ignored) {}
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    /**
+     * Appends all records with a single acquisition of the write lock and a
+     * single gathering write for the records that go to the same segment.
+     */
+    @Override
+    public void setAll(Map<String, byte[]> entries) {
+        int n = entries.size();
+        String[] keys = new String[n];
+        ByteBuffer[] records = new ByteBuffer[n];
+        int[] keyLengths = new int[n];
+        int[] valueLengths = new int[n];
+        int i = 0;
+        for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+            byte[] k = e.getKey().getBytes(UTF8);
+            keys[i] = e.getKey();
+            records[i] = encode(RECORD_MAGIC, k, e.getValue());
+            keyLengths[i] = k.length;
+            valueLengths[i] = e.getValue().length;
+            i++;
+        }
+
+        writeLock.lock();
+        try {
+            i = 0;
+            while (i < n) {
+                Segment s = segmentFor(records[i].capacity());
+                long length = records[i].capacity();
+                int j = i + 1;
+                while (j < n && s.size + length + records[j].capacity()
+                        <= maxSegmentSize)
+                    length += records[j++].capacity();
+
+                long offset = s.size;
+                s.write(records, i, j - i, offset);
+                for (int k = i; k < j; k++) {
+                    publish(keys[k], s, offset, keyLengths[k], valueLengths[k]);
+                    offset += records[k].capacity();
+                    stats.write(valueLengths[k]);
+                }
+                i = j;
+            }
+        } catch (IOException e) {
+            warn("Cannot store " + n + " keys: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        try {
+            if (delete(key))
+                stats.invalidation(1);
+        } catch (IOException e) {
+            warn("Cannot remove key " + key + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the entries whose key starts with prefix. Only the in-memory
+     * index is searched; a tombstone is appended for each removed entry.
+     */
+    @Override
+    public void invalidatePrefix(String prefix) {
+        long removed = 0;
+        try {
+            for (String key : index.keySet())
+                if (key.startsWith(prefix) && delete(key))
+                    removed++;
+        } catch (IOException e) {
+            warn("Cannot invalidate prefix " + prefix + ": " + e.getMessage());
+        }
+        stats.invalidation(removed);
+    }
+
+    /* Read from the stream until the buffer is full or the stream ends */
+    private static int fill(InputStream in, byte[] buff) throws IOException {
+        int n = 0;
+        while (n < buff.length) {
+            int read = in.read(buff, n, buff.length - n);
+            if (read < 0)
+                break;
+            n += read;
+        }
+        return n;
+    }
+
+    /** Number of entries in the index. */
+    public int size() {
+        return index.size();
+    }
+
+    /** Number of segment files in use. */
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    /** Total size of the records reachable through the index. */
+    public long liveSize() {
+        long size = 0;
+        for (Segment s : segments.values())
+            size += s.live.get();
+        return size;
+    }
+
+    /** Total size of all segment files, including garbage. */
+    public long diskSize() {
+        long size = 0;
+        for (Segment s : segments.values())
+            size += s.size;
+        return size;
+    }
+
+    /**
+     * Append a record and point the index to it. If expected is not null,
+     * the write only happens if the index still maps the key to expected.
+     */
+    private Location append(String key, byte[] data, Location expected)
+            throws IOException {
+        byte[] k = key.getBytes(UTF8);
+        ByteBuffer record = encode(RECORD_MAGIC, k, data);
+
+        writeLock.lock();
+        try {
+            if (expected != null && index.get(key) != expected)
+                return null;
+
+            Segment s = segmentFor(record.capacity());
+            long offset = s.size;
+            s.write(record, offset);
+            return publish(key, s, offset, k.length, data.length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Append a record whose value is copied from the provided channel.
+     * The crc must cover the key and the value.
+     */
+    private Location append(String key, byte[] k, FileChannel src,
+            long position, int length, int crc, Location expected)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + k.length);
+        header.putInt(RECORD_MAGIC).putInt(k.length).putInt(length).put(k);
+        header.flip();
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        trailer.putInt(crc).flip();
+
+        writeLock.lock();
+        try {
+            if (expected != null && index.get(key) != expected)
+                return null;
+
+            Segment s = segmentFor(header.capacity() + length + TRAILER_SIZE);
+            long offset = s.size;
+            s.write(header, offset);
+            s.transferFrom(src, position, length, offset + header.capacity());
+            s.write(trailer, offset + header.capacity() + length);
+            return publish(key, s, offset, k.length, length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /* The segment to write a record to. Called with writeLock held. */
+    private Segment segmentFor(long recordLength) throws IOException {
+        Segment s = active;
+        if (s.size > 0 && s.size + recordLength > maxSegmentSize)
+            s = roll();
+        return s;
+    }
+
+    /* Make a written record visible. Called with writeLock held. */
+    private Location publish(String key, Segment s, long offset, int keyLength,
+            int valueLength) {
+        Location l = new Location(s.id, offset, keyLength, valueLength);
+        s.size += l.recordLength();
+        s.live.addAndGet(l.recordLength());
+        release(index.put(key, l));
+        writesSinceCheckpoint.incrementAndGet();
+        return l;
+    }
+
+    /*
+     * Append a tombstone for key and drop it from the index. Returns false
+     * if there was no entry for key.
+     */
+    private boolean delete(String key) throws IOException {
+        ByteBuffer record = encode(TOMBSTONE_MAGIC, key.getBytes(UTF8),
+                new byte[0]);
+
+        writeLock.lock();
+        try {
+            if (!index.containsKey(key))
+                return false;
+            Segment s = segmentFor(record.capacity());
+            long offset = s.size;
+            s.write(record, offset);
+            s.size += record.capacity();
+            release(index.remove(key));
+            writesSinceCheckpoint.incrementAndGet();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    static ByteBuffer encode(int magic, byte[] key, byte[] data) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length
+                + data.length + TRAILER_SIZE);
+        record.putInt(magic);
+        record.putInt(key.length);
+        record.putInt(data.length);
+        record.put(key);
+        record.put(data);
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(data);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /* Account for a record that is no longer reachable through the index */
+    private void release(Location old) {
+        if (old == null)
+            return;
+        Segment s = segments.get(old.segment);
+        if (s != null)
+            s.live.addAndGet(-old.recordLength());
+    }
+
+    /* Seal the active segment and start a new one. Called with writeLock held. */
+    private Segment roll() throws IOException {
+        Segment old = active;
+        old.channel.force(false);
+        Segment s = new Segment(old.id + 1, segmentFile(old.id + 1));
+        segments.put(s.id, s);
+        active = s;
+        if (maintainer != null && maxDiskSize > 0 && diskSize() > maxDiskSize)
+            maintainer.wakeUp();
+        return s;
+    }
+
+    /**
+     * Copy the live entries of segments whose live data ratio is below the
+     * compaction threshold to the active segment and delete them.
+     */
+    public synchronized void compact() {
+        for (Segment s : segments.values()) {
+            if (s == active || s.size == 0)
+                continue;
+            if ((double) s.live.get() / s.size >= compactRatio)
+                continue;
+            try {
+                compact(s);
+            } catch (IOException e) {
+                warn("Cannot compact segment " + s.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void compact(Segment s) throws IOException {
+        boolean tombstones = false;
+        RecordReader r = new RecordReader(s, 0, false);
+        while (r.next()) {
+            tombstones |= r.tombstone;
+            Location l = index.get(r.key);
+            if (l == null || l.segment != s.id || l.offset != r.offset)
+                continue;
+            append(r.key, r.key.getBytes(UTF8), s.channel, r.valueOffset(),
+                    r.valueLength, r.crc, l);
+        }
+
+        writeLock.lock();
+        try {
+            active.channel.force(false);
+        } finally {
+            writeLock.unlock();
+        }
+        /* Tombstones are not copied, so the index must not need them */
+        if (tombstones)
+            checkpoint();
+        segments.remove(s.id);
+        s.retire();
+    }
+
+    /**
+     * Drop the oldest segments, and the entries still stored in them, until
+     * the segment files fit in the configured maximum size.
+     */
+    public synchronized void trim() {
+        while (maxDiskSize > 0 && diskSize() > maxDiskSize) {
+            Segment s = segments.firstEntry().getValue();
+            if (s == active)
+                break;
+            try {
+                boolean tombstones = false;
+                RecordReader r = new RecordReader(s, 0, false);
+                while (r.next()) {
+                    tombstones |= r.tombstone;
+                    Location l = index.get(r.key);
+                    if (l != null && l.segment == s.id && l.offset == r.offset
+                            && index.remove(r.key, l))
+                        stats.eviction(l.valueLength);
+                }
+                if (tombstones)
+                    checkpoint();
+            } catch (IOException e) {
+                warn("Cannot read segment " + s.file + ": " + e.getMessage());
+            }
+            segments.remove(s.id);
+            s.retire();
+        }
+    }
+
+    /**
+     * Write the index to disk, so that a restart does not need to replay
+     * segments written before this point.
+     */
+    public synchronized void checkpoint() throws IOException {
+        int segment;
+        long position;
+
+        writeLock.lock();
+        try {
+            active.channel.force(false);
+            segment = active.id;
+            position = active.size;
+            writesSinceCheckpoint.set(0);
+        } finally {
+            writeLock.unlock();
+        }
+
+        File tmp = new File(dir, INDEX_FILE + ".tmp");
+        CheckedOutputStream cos = new CheckedOutputStream(
+                new FileOutputStream(tmp), new CRC32());
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(cos, 65536));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(segment);
+            out.writeLong(position);
+            for (Map.Entry<String, Location> e : index.entrySet()) {
+                Location l = e.getValue();
+                out.writeBoolean(true);
+                out.writeUTF(e.getKey());
+                out.writeInt(l.segment);
+                out.writeLong(l.offset);
+                out.writeInt(l.keyLength);
+                out.writeInt(l.valueLength);
+            }
+            out.writeBoolean(false);
+            out.flush();
+            out.writeLong(cos.getChecksum().getValue());
+        } finally {
+            out.close();
+        }
+
+        Files.move(tmp.toPath(), new File(dir, INDEX_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Load the latest checkpoint. Returns the replay position or null. */
+    private long[] loadCheckpoint() {
+        File f = new File(dir, INDEX_FILE);
+        if (!f.exists())
+            return null;
+
+        try {
+            byte[] data = Files.readAllBytes(f.toPath());
+            if (data.length < 8)
+                return null;
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(data));
+            in.skip(data.length - 8);
+            if (in.readLong() != crc.getValue()) {
+                warn("Corrupt cache index checkpoint, ignoring");
+                return null;
+            }
+
+            in = new DataInputStream(new ByteArrayInputStream(data, 0,
+                    data.length - 8));
+            if (in.readInt() != INDEX_MAGIC)
+                return null;
+            long[] replay = new long[] {in.readInt(), in.readLong()};
+            while (in.readBoolean()) {
+                String key = in.readUTF();
+                index.put(key, new Location(in.readInt(), in.readLong(),
+                        in.readInt(), in.readInt()));
+            }
+            return replay;
+        } catch (IOException e) {
+            warn("Cannot read cache index checkpoint: " + e.getMessage());
+            index.clear();
+            return null;
+        }
+    }
+
+    /*
+     * Rebuild the index from the last checkpoint and the segment data written
+     * after it.
+     */
+    private void recover() throws IOException {
+        /* Values that were being spooled when the system went down */
+        File[] spooled = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(SPOOL_PREFIX)
+                    && name.endsWith(SPOOL_SUFFIX);
+            }
+        });
+        for (File f : spooled)
+            f.delete();
+
+        String[] names = dir.list(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(SEGMENT_PREFIX)
+                    && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(names);
+        for (String name : names) {
+            int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+            segments.put(id, new Segment(id, new File(dir, name)));
+        }
+
+        long[] replay = loadCheckpoint();
+        if (replay == null) {
+            index.clear();
+            replay = new long[] {Integer.MIN_VALUE, 0};
+        }
+
+        for (Segment s : segments.tailMap((int) replay[0]).values()) {
+            long start = (s.id == replay[0]) ? replay[1] : 0;
+            RecordReader r = new RecordReader(s, start, true);
+            while (r.next()) {
+                if (r.tombstone)
+                    index.remove(r.key);
+                else
+                    index.put(r.key, new Location(s.id, r.offset,
+                            r.keyLength, r.valueLength));
+            }
+            if (r.end < s.size) {
+                warn("Truncating damaged cache segment " + s.file + " at "
+                        + r.end + " (was " + s.size + " bytes)");
+                s.channel.truncate(r.end);
+                s.size = r.end;
+            }
+        }
+
+        /* Drop entries pointing to lost data and recalculate live sizes */
+        List<String> lost = new ArrayList<String>();
+        for (Map.Entry<String, Location> e : index.entrySet()) {
+            Location l = e.getValue();
+            Segment s = segments.get(l.segment);
+            if (s == null || l.offset + l.recordLength() > s.size) {
+                lost.add(e.getKey());
+                continue;
+            }
+            s.live.addAndGet(l.recordLength());
+        }
+        for (String key : lost)
+            index.remove(key);
+
+        if (segments.isEmpty()) {
+            active = new Segment(1, segmentFile(1));
+            segments.put(active.id, active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, id,
+                SEGMENT_SUFFIX));
+    }
+
+    @Override
+    public void shutDown() {
+        if (maintainer != null)
+            maintainer.finish();
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            warn("Cannot checkpoint cache index: " + e.getMessage());
+        }
+        for (Segment s : segments.values())
+            s.close();
+    }
+
+    static String cacheDir() {
+        String dirpath = System.getProperty(OnDiskCache.CACHE_DIR);
+        if (dirpath == null) {
+            dirpath = System.getProperty("java.io.tmpdir");
+            if (dirpath == null)
+                dirpath = "tmp";
+        }
+        return dirpath;
+    }
+
+    static double doubleProperty(String name, double def) {
+        String value = System.getProperty(name);
+        if (value == null)
+            return def;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = super.getStats();
+        m.put("entries", size());
+        m.put("segments", segmentCount());
+        m.put("bytes.stored", liveSize());
+        m.put("bytes.disk", diskSize());
+        return m;
+    }
+
+    /* Cache warnings also count as errors in the statistics */
+    @Override
+    protected void warn(String message) {
+        stats.error();
+        super.warn("SegmentCache: " + message);
+    }
+
+    /** Position of a record in the segment files */
+    static final class Location {
+        final int segment;
+        final long offset;
+        final int keyLength;
+        final int valueLength;
+
+        Location(int segment, long offset, int keyLength, int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        long valueOffset() {
+            return offset + HEADER_SIZE + keyLength;
+        }
+
+        int recordLength() {
+            return HEADER_SIZE + keyLength + valueLength + TRAILER_SIZE;
+        }
+    }
+
+    /**
+     * A segment file. Reads are positional and need no locking. Readers
+     * retain the segment while using it, so that a segment that is dropped
+     * by compaction is only closed and deleted after the last reader is done.
+     */
+    final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final AtomicLong live = new AtomicLong();
+        /* One reference is held by the cache until the segment is retired */
+        private final AtomicInteger refs = new AtomicInteger(1);
+        volatile long size;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = channel.size();
+        }
+
+        boolean retain() {
+            for (;;) {
+                int r = refs.get();
+                if (r == 0)
+                    return false;
+                if (refs.compareAndSet(r, r + 1))
+                    return true;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                close();
+                if (!file.delete())
+                    warn("Cannot delete segment " + file);
+            }
+        }
+
+        /* Drop the cache's reference; the file goes with the last reader */
+        void retire() {
+            release();
+        }
+
+        void read(ByteBuffer b, long position) throws IOException {
+            while (b.hasRemaining()) {
+                int read = channel.read(b, position);
+                if (read < 0)
+                    throw new IOException("Unexpected end of segment " + file);
+                position += read;
+            }
+        }
+
+        void write(ByteBuffer b, long position) throws IOException {
+            while (b.hasRemaining())
+                position += channel.write(b, position);
+        }
+
+        /* Write several buffers at once. Called with writeLock held. */
+        void write(ByteBuffer[] bs, int offset, int length, long position)
+                throws IOException {
+            long remaining = 0;
+            for (int i = offset; i < offset + length; i++)
+                remaining += bs[i].remaining();
+            channel.position(position);
+            while (remaining > 0)
+                remaining -= channel.write(bs, offset, length);
+        }
+
+        /* Copy count bytes from src, starting at srcPosition, to position */
+        void transferFrom(FileChannel src, long srcPosition, long count,
+                long position) throws IOException {
+            src.position(srcPosition);
+            while (count > 0) {
+                long n = channel.transferFrom(src, position, count);
+                if (n <= 0)
+                    throw new IOException("Unexpected end of input");
+                position += n;
+                count -= n;
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Sequentially reads the records of a segment, optionally validating
+     * their checksums. Stops at the end of the segment or at the first
+     * damaged record. Values are not loaded in memory.
+     */
+    static final class RecordReader {
+        private final Segment s;
+        private final boolean verify;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        private ByteBuffer chunk;
+        long end;
+        long offset;
+        String key;
+        int keyLength;
+        int valueLength;
+        int crc;
+        boolean tombstone;
+
+        RecordReader(Segment s, long start, boolean verify) {
+            this.s = s;
+            this.end = start;
+            this.verify = verify;
+        }
+
+        long valueOffset() {
+            return offset + HEADER_SIZE + keyLength;
+        }
+
+        boolean next() throws IOException {
+            offset = end;
+            if (offset + HEADER_SIZE + TRAILER_SIZE > s.size)
+                return false;
+
+            header.clear();
+            s.read(header, offset);
+            header.flip();
+            int magic = header.getInt();
+            keyLength = header.getInt();
+            valueLength = header.getInt();
+            long length = (long) HEADER_SIZE + keyLength + valueLength + TRAILER_SIZE;
+            if ((magic != RECORD_MAGIC && magic != TOMBSTONE_MAGIC)
+                    || keyLength < 0 || valueLength < 0
+                    || offset + length > s.size)
+                return false;
+            tombstone = magic == TOMBSTONE_MAGIC;
+
+            byte[] k = new byte[keyLength];
+            s.read(ByteBuffer.wrap(k), offset + HEADER_SIZE);
+            trailer.clear();
+            s.read(trailer, offset + length - TRAILER_SIZE);
+            trailer.flip();
+            crc = trailer.getInt();
+
+            if (verify) {
+                CRC32 check = new CRC32();
+                check.update(k);
+                if (chunk == null)
+                    chunk = ByteBuffer.allocate(STREAM_BUFFER);
+                long pos = valueOffset();
+                long remaining = valueLength;
+                while (remaining > 0) {
+                    chunk.clear();
+                    chunk.limit((int) Math.min(remaining, chunk.capacity()));
+                    s.read(chunk, pos);
+                    check.update(chunk.array(), 0, chunk.limit());
+                    pos += chunk.limit();
+                    remaining -= chunk.limit();
+                }
+                if ((int) check.getValue() != crc)
+                    return false;
+            }
+
+            key = new String(k, UTF8);
+            end = offset + length;
+            return true;
+        }
+    }
+
+    /** Reads a value from a segment in chunks */
+    static final class SegmentInputStream extends InputStream {
+        private final Segment s;
+        private final ByteBuffer buff;
+        private long position;
+        private long remaining;
+        private boolean closed;
+
+        SegmentInputStream(Segment s, long position, int length) {
+            this.s = s;
+            this.position = position;
+            this.remaining = length;
+            this.buff = ByteBuffer.allocate((int) Math.min(length, 8192));
+            buff.flip();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buff.hasRemaining() && !refill())
+                return -1;
+            return buff.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (buff.hasRemaining()) {
+                int n = Math.min(len, buff.remaining());
+                buff.get(b, off, n);
+                return n;
+            }
+            if (closed || remaining == 0)
+                return -1;
+            if (len >= buff.capacity()) {
+                /* Large reads go directly to the caller's array */
+                int n = (int) Math.min(len, remaining);
+                s.read(ByteBuffer.wrap(b, off, n), position);
+                position += n;
+                remaining -= n;
+                return n;
+            }
+            if (!refill())
+                return -1;
+            int n = Math.min(len, buff.remaining());
+            buff.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.min(n, buff.remaining());
+            buff.position(buff.position() + (int) skipped);
+            long more = Math.min(n - skipped, remaining);
+            position += more;
+            remaining -= more;
+            return skipped + more;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, buff.remaining() + remaining);
+        }
+
+        private boolean refill() throws IOException {
+            if (closed || remaining == 0)
+                return false;
+            buff.clear();
+            buff.limit((int) Math.min(remaining, buff.capacity()));
+            s.read(buff, position);
+            buff.flip();
+            position += buff.limit();
+            remaining -= buff.limit();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                s.release();
+            }
+        }
+    }
+
+    /**
+     * Periodically compacts segments, enforces the size limit and
+     * checkpoints the index
+     */
+    private class Maintainer extends Thread {
+        private final long interval;
+        private volatile boolean stopped;
+
+        Maintainer(long interval) {
+            super("cache-segment-maintenance");
+            this.interval = interval;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                synchronized (this) {
+                    try {
+                        if (!stopped)
+                            wait(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped)
+                    return;
+                compact();
+                trim();
+                if (writesSinceCheckpoint.get() > 0) {
+                    try {
+                        checkpoint();
+                    } catch (IOException e) {
+                        warn("Cannot checkpoint cache index: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        synchronized void wakeUp() {
+            notify();
+        }
+
+        /*
+         * Stop after the current pass and wait for it. The thread is not
+         * interrupted, as that would close the channel it is using.
+         */
+        void finish() {
+            stopped = true;
+            wakeUp();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package eu.sqooss.service.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import eu.sqooss.service.util.StripedCounter;
+
+/**
+ * Cache service that keeps a bounded {@link InMemoryCache} on top of a disk
+ * based cache. Frequently used entries are served from memory, entries found
+ * on disk are promoted to memory and entries evicted from memory are demoted
+ * to disk instead of being lost.
+ *
+ * By default, new entries are only written to memory and reach the disk
+ * when they are evicted or when the cache shuts down (write-back). In
+ * write-through mode every write goes to both tiers.
+ *
+ * Accepts the following system properties, in addition to the ones of the
+ * tier implementations:
+ *
+ *  <dl>
+ *      <dt>eu.sqooss.service.cache.mem.size</dt>
+ *      <dd>Size of the memory tier, see {@link InMemoryCache}.</dd>
+ *      <dt>eu.sqooss.service.cache.tiered.disk</dt>
+ *      <dd>Class name of the disk tier. Defaults to
+ *      {@link SegmentCache}.</dd>
+ *      <dt>eu.sqooss.service.cache.tiered.promote</dt>
+ *      <dd>Number of recent disk hits after which an entry is promoted to
+ *      memory, between 1 and 15. Default is 1.</dd>
+ *      <dt>eu.sqooss.service.cache.tiered.writethrough</dt>
+ *      <dd>If true, write new entries to disk immediately. Default is
+ *      false.</dd>
+ * </dl>
+ */
+public class TwoTierCache extends CacheServiceImpl {
+
+    public static final String DISK_IMPL = "eu.sqooss.service.cache.tiered.disk";
+    public static final String PROMOTE = "eu.sqooss.service.cache.tiered.promote";
+    public static final String WRITE_THROUGH = "eu.sqooss.service.cache.tiered.writethrough";
+
+    private final InMemoryCache memory;
+    private final CacheService disk;
+    private final int promoteAfter;
+    private final boolean writeThrough;
+
+    /* Disk hit counts of entries not in memory */
+    private final FrequencySketch diskHits;
+
+    private final StripedCounter promotions = new StripedCounter();
+    private final StripedCounter demotions = new StripedCounter();
+
+    /* Entries in memory which are known to be identical on disk */
+    private final Map<String, Boolean> clean =
+        new ConcurrentHashMap<String, Boolean>();
+
+    /*
+     * Writes and promotions of a key are serialised on the lock of its
+     * stripe. Writes also bump the version of the stripe, so that a value
+     * read from disk is not promoted over a newer one written meanwhile.
+     */
+    private static final int STRIPES = 256;
+    private final Object[] locks = new Object[STRIPES];
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+    public TwoTierCache() throws Exception {
+        this(new InMemoryCache(), createDisk(),
+             Integer.getInteger(PROMOTE, 1),
+             Boolean.getBoolean(WRITE_THROUGH));
+    }
+
+    public TwoTierCache(InMemoryCache memory, CacheService disk,
+            int promoteAfter, boolean writeThrough) {
+        this.memory = memory;
+        this.disk = disk;
+        this.promoteAfter = Math.max(1, Math.min(promoteAfter, 15));
+        this.writeThrough = writeThrough;
+        this.diskHits = new FrequencySketch(
+                (int) Math.min(memory.getMaxSize() / 4096, 1 << 20));
+        for (int i = 0; i < STRIPES; i++)
+            locks[i] = new Object();
+
+        memory.setEvictionListener(new InMemoryCache.EvictionListener() {
+            public void evicted(String key, byte[] data) {
+                demote(key, data);
+            }
+        });
+    }
+
+    private static CacheService createDisk() throws Exception {
+        String impl = System.getProperty(DISK_IMPL);
+        if (impl == null || impl.trim().length() == 0)
+            return new SegmentCache();
+        return (CacheService) TwoTierCache.class.getClassLoader()
+            .loadClass(impl.trim()).newInstance();
+    }
+
+    @Override
+    public byte[] get(String key) {
+        byte[] result = memory.get(key);
+        if (result != null) {
+            stats.hit();
+            return result;
+        }
+
+        long version = versions.get(stripe(key));
+        long start = System.nanoTime();
+        result = disk.get(key);
+        if (result == null) {
+            stats.miss();
+            return null;
+        }
+        stats.hit();
+        stats.load(System.nanoTime() - start);
+        if (shouldPromote(key))
+            promote(key, result, version);
+        return result;
+    }
+
+    @Override
+    public void set(String key, byte[] data) {
+        stats.write(data.length);
+        int s = stripe(key);
+        synchronized (locks[s]) {
+            versions.incrementAndGet(s);
+            if (writeThrough) {
+                disk.set(key, data);
+                clean.put(key, Boolean.TRUE);
+            } else {
+                clean.remove(key);
+            }
+            memory.set(key, data);
+        }
+    }
+
+    /**
+     * Looks up all keys in memory first and the missing ones on disk, each
+     * tier with a single batch.
+     */
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        Map<String, byte[]> result = memory.getAll(keys);
+        if (result.size() < keys.size()) {
+            List<String> missing = new ArrayList<String>();
+            for (String key : keys)
+                if (!result.containsKey(key))
+                    missing.add(key);
+
+            long[] before = new long[STRIPES];
+            for (int i = 0; i < STRIPES; i++)
+                before[i] = versions.get(i);
+            long start = System.nanoTime();
+            Map<String, byte[]> found = disk.getAll(missing);
+            if (!found.isEmpty())
+                stats.load(System.nanoTime() - start);
+            for (Map.Entry<String, byte[]> e : found.entrySet()) {
+                result.put(e.getKey(), e.getValue());
+                if (shouldPromote(e.getKey()))
+                    promote(e.getKey(), e.getValue(),
+                            before[stripe(e.getKey())]);
+            }
+        }
+        stats.lookups(result.size(), keys.size() - result.size());
+        return result;
+    }
+
+    @Override
+    public void setAll(final Map<String, byte[]> entries) {
+        for (byte[] value : entries.values())
+            stats.write(value.length);
+        locked(stripes(entries.keySet()), 0, new Runnable() {
+            public void run() {
+                for (String key : entries.keySet())
+                    versions.incrementAndGet(stripe(key));
+                if (writeThrough) {
+                    disk.setAll(entries);
+                    for (String key : entries.keySet())
+                        clean.put(key, Boolean.TRUE);
+                } else {
+                    for (String key : entries.keySet())
+                        clean.remove(key);
+                }
+                memory.setAll(entries);
+            }
+        });
+    }
+
+    /**
+     * Entries in memory are returned from there. Others are streamed from
+     * the disk tier without being promoted, as they may be large.
+     */
+    @Override
+    public InputStream getStream(String key) {
+        byte[] result = memory.get(key);
+        if (result != null) {
+            stats.hit();
+            return new ByteArrayInputStream(result);
+        }
+        InputStream in = disk.getStream(key);
+        if (in == null)
+            stats.miss();
+        else
+            stats.hit();
+        return in;
+    }
+
+    /**
+     * Streams go directly to the disk tier; any older value in memory is
+     * discarded.
+     */
+    @Override
+    public void setStream(String key, InputStream in) {
+        disk.setStream(key, in);
+        int s = stripe(key);
+        synchronized (locks[s]) {
+            versions.incrementAndGet(s);
+            memory.remove(key);
+            clean.remove(key);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        int s = stripe(key);
+        synchronized (locks[s]) {
+            versions.incrementAndGet(s);
+            clean.remove(key);
+            memory.remove(key);
+            disk.remove(key);
+        }
+    }
+
+    /**
+     * Holds all stripe locks, so no promotion can bring back an entry that
+     * is being invalidated.
+     */
+    @Override
+    public void invalidatePrefix(final String prefix) {
+        boolean[] all = new boolean[STRIPES];
+        Arrays.fill(all, true);
+        locked(all, 0, new Runnable() {
+            public void run() {
+                for (int i = 0; i < STRIPES; i++)
+                    versions.incrementAndGet(i);
+                for (String key : clean.keySet())
+                    if (key.startsWith(prefix))
+                        clean.remove(key);
+                memory.invalidatePrefix(prefix);
+                disk.invalidatePrefix(prefix);
+            }
+        });
+    }
+
+    private boolean shouldPromote(String key) {
+        if (promoteAfter <= 1)
+            return true;
+        int hash = InMemoryCache.spread(key.hashCode());
+        synchronized (diskHits) {
+            diskHits.increment(hash);
+            return diskHits.frequency(hash) >= promoteAfter;
+        }
+    }
+
+    /*
+     * Store a value read from disk in memory, unless the key was written
+     * since version was read or is in memory already.
+     */
+    private void promote(String key, byte[] data, long version) {
+        int s = stripe(key);
+        synchronized (locks[s]) {
+            if (versions.get(s) != version || !memory.setIfAbsent(key, data))
+                return;
+            clean.put(key, Boolean.TRUE);
+        }
+        promotions.increment();
+    }
+
+    private static int stripe(String key) {
+        return InMemoryCache.spread(key.hashCode()) & (STRIPES - 1);
+    }
+
+    private static boolean[] stripes(Collection<String> keys) {
+        boolean[] used = new boolean[STRIPES];
+        for (String key : keys)
+            used[stripe(key)] = true;
+        return used;
+    }
+
+    /*
+     * Run the action holding the locks of the given stripes, taken in
+     * ascending order so that batches cannot deadlock each other.
+     */
+    private void locked(boolean[] stripes, int from, Runnable action) {
+        for (int i = from; i < STRIPES; i++) {
+            if (stripes[i]) {
+                synchronized (locks[i]) {
+                    locked(stripes, i + 1, action);
+                }
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /* Write an entry leaving the memory tier to disk, unless it is there */
+    private void demote(String key, byte[] data) {
+        if (clean.remove(key) == null) {
+            demotions.increment();
+            disk.set(key, data);
+        }
+    }
+
+    /** The memory tier */
+    public InMemoryCache getMemoryTier() {
+        return memory;
+    }
+
+    /** The disk tier */
+    public CacheService getDiskTier() {
+        return disk;
+    }
+
+    /** Write all entries that only exist in memory to disk. */
+    public void flush() {
+        for (String key : memory.snapshot().keySet()) {
+            synchronized (locks[stripe(key)]) {
+                byte[] data = memory.peek(key);
+                if (data != null && clean.put(key, Boolean.TRUE) == null)
+                    disk.set(key, data);
+            }
+        }
+    }
+
+    /**
+     * Statistics of the cache as a whole, followed by the ones of each tier
+     * prefixed with memory. and disk.
+     */
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> m = super.getStats();
+        m.put("promotions", promotions.sum());
+        m.put("demotions", demotions.sum());
+        for (Map.Entry<String, Object> e : memory.getStats().entrySet())
+            m.put("memory." + e.getKey(), e.getValue());
+        for (Map.Entry<String, Object> e : disk.getStats().entrySet())
+            m.put("disk." + e.getKey(), e.getValue());
+        return m;
+    }
+
+    @Override
+    public void shutDown() {
+        flush();
+        disk.shutDown();
+    }
+}
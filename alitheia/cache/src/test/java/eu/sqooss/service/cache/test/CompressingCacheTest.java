@@ -0,0 +1,129 @@
+package eu.sqooss.service.cache.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import eu.sqooss.service.cache.CompressingCache;
+import eu.sqooss.service.cache.InMemoryCache;
+
+public class CompressingCacheTest {
+
+    private static byte[] text(int size) {
+        StringBuilder b = new StringBuilder();
+        Random r = new Random(42);
+        while (b.length() < size)
+            b.append("<measurement metric=\"loc\" file=\"src/File")
+             .append(r.nextInt(100)).append(".java\" value=\"")
+             .append(r.nextInt(10000)).append("\"/>\n");
+        return b.substring(0, size).getBytes();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buff = new byte[1000];
+        int read;
+        while ((read = in.read(buff)) != -1)
+            out.write(buff, 0, read);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private void roundTrip(String codec) throws IOException {
+        InMemoryCache backend = new InMemoryCache(64 * 1024 * 1024);
+        CompressingCache cache = new CompressingCache(backend, codec, 512, 0.9);
+
+        byte[] small = "small".getBytes();
+        byte[] large = text(200 * 1024);
+        byte[] random = new byte[10 * 1024];
+        new Random(42).nextBytes(random);
+
+        cache.set("small", small);
+        cache.set("large", large);
+        cache.set("random", random);
+        assertArrayEquals(small, cache.get("small"));
+        assertArrayEquals(large, cache.get("large"));
+        assertArrayEquals(random, cache.get("random"));
+        assertNull(cache.get("none"));
+
+        /* Text shrinks, random data is stored as is plus the header */
+        assertTrue(backend.get("large").length < large.length / 2);
+        assertTrue(backend.get("random").length > random.length);
+
+        cache.setStream("stream", new ByteArrayInputStream(large));
+        assertArrayEquals(large, readAll(cache.getStream("stream")));
+        assertArrayEquals(large, cache.get("stream"));
+        assertArrayEquals(large, readAll(cache.getStream("large")));
+        assertTrue(backend.get("stream").length < large.length / 2);
+        assertNull(cache.getStream("none"));
+
+        assertEquals(codec, cache.getStats().get("compression.codec"));
+        cache.shutDown();
+    }
+
+    @Test
+    public void testLzf() throws IOException {
+        roundTrip("lzf");
+    }
+
+    @Test
+    public void testDeflate() throws IOException {
+        roundTrip("deflate");
+    }
+
+    @Test
+    public void testUncompressedEntries() throws IOException {
+        InMemoryCache backend = new InMemoryCache(1024 * 1024);
+        backend.set("old", "written before compression".getBytes());
+        backend.set("tiny", "x".getBytes());
+
+        CompressingCache cache = new CompressingCache(backend, "lzf", 512, 0.9);
+        assertEquals("written before compression", new String(cache.get("old")));
+        assertEquals("written before compression",
+                new String(readAll(cache.getStream("old"))));
+        assertEquals("x", new String(cache.get("tiny")));
+        assertEquals("x", new String(readAll(cache.getStream("tiny"))));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        InMemoryCache backend = new InMemoryCache(1024 * 1024);
+        CompressingCache cache = new CompressingCache(backend, "lzf", 512, 0.9);
+        cache.set("short", "short".getBytes(), 50);
+        cache.set("long", text(4096), 60 * 1000);
+        cache.set("forever", "forever".getBytes(), 0);
+        assertEquals("short", new String(cache.get("short")));
+        assertArrayEquals(text(4096), readAll(cache.getStream("long")));
+
+        Thread.sleep(100);
+        assertNull(cache.get("short"));
+        assertNull(backend.get("short"));
+        assertArrayEquals(text(4096), cache.get("long"));
+        assertEquals("forever", new String(cache.get("forever")));
+        assertEquals(1L, cache.getStats().get("expired"));
+
+        cache.set("short", "short".getBytes(), 50);
+        Map<String, byte[]> batch = new HashMap<String, byte[]>();
+        batch.put("batch", text(4096));
+        cache.setAll(batch);
+        Thread.sleep(100);
+        Map<String, byte[]> result = cache.getAll(
+                Arrays.asList("short", "long", "batch", "none"));
+        assertEquals(2, result.size());
+        assertArrayEquals(text(4096), result.get("batch"));
+        assertTrue(backend.get("batch").length < 4096);
+        assertEquals(2L, cache.getStats().get("expired"));
+    }
+}
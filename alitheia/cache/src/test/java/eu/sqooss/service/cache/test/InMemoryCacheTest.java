@@ -0,0 +1,192 @@
+package eu.sqooss.service.cache.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.sqooss.service.cache.InMemoryCache;
+import org.junit.Test;
+
+public class InMemoryCacheTest {
+
+    @Test
+    public void testGetSet() {
+        InMemoryCache cache = new InMemoryCache(1024 * 1024);
+        cache.set("foo", "this is val1".getBytes());
+        assertEquals("this is val1", new String(cache.get("foo")));
+        assertNull(cache.get("bar"));
+    }
+
+    @Test
+    public void testSetCopies() {
+        InMemoryCache cache = new InMemoryCache(1024 * 1024);
+        byte[] b = "abc".getBytes();
+        cache.set("foo", b);
+        b[0] = 'x';
+        assertEquals("abc", new String(cache.get("foo")));
+    }
+
+    @Test
+    public void testBounded() {
+        long max = 256 * 1024;
+        InMemoryCache cache = new InMemoryCache(max);
+        byte[] data = new byte[1024];
+
+        for (int i = 0; i < 10000; i++)
+            cache.set("key" + i, data);
+
+        assertTrue(cache.getSize() <= max);
+        assertTrue(cache.getEvictionCount() > 0);
+    }
+
+    @Test
+    public void testFrequentEntriesSurviveScan() {
+        InMemoryCache cache = new InMemoryCache(512 * 1024);
+        byte[] data = new byte[1024];
+
+        for (int i = 0; i < 50; i++)
+            cache.set("hot" + i, data);
+        for (int round = 0; round < 5; round++)
+            for (int i = 0; i < 50; i++)
+                cache.get("hot" + i);
+
+        /* A one-off scan much larger than the cache */
+        for (int i = 0; i < 5000; i++)
+            cache.set("cold" + i, data);
+
+        int found = 0;
+        for (int i = 0; i < 50; i++)
+            if (cache.get("hot" + i) != null)
+                found++;
+        assertTrue("Only " + found + " hot entries survived", found > 40);
+    }
+
+    @Test
+    public void testEvictionListener() {
+        InMemoryCache cache = new InMemoryCache(64 * 1024);
+        final List<String> evicted = new ArrayList<String>();
+        cache.setEvictionListener(new InMemoryCache.EvictionListener() {
+            public void evicted(String key, byte[] data) {
+                synchronized (evicted) {
+                    evicted.add(key);
+                }
+            }
+        });
+
+        for (int i = 0; i < 1000; i++)
+            cache.set("key" + i, new byte[512]);
+
+        assertEquals(cache.getEvictionCount(), evicted.size());
+    }
+
+    @Test
+    public void testMaxEntrySize() {
+        long max = 1024 * 1024;
+        InMemoryCache cache = new InMemoryCache(max);
+        final List<String> evicted = new ArrayList<String>();
+        cache.setEvictionListener(new InMemoryCache.EvictionListener() {
+            public void evicted(String key, byte[] data) {
+                evicted.add(key);
+            }
+        });
+        long limit = cache.getMaxEntrySize();
+        assertTrue(limit > 0 && limit <= max / 16);
+
+        cache.set("fits", new byte[(int) limit / 2]);
+        assertNotNull(cache.get("fits"));
+
+        /* Too large for any segment, rejected rather than stored */
+        cache.set("large", new byte[(int) limit + 1]);
+        assertNull(cache.get("large"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(1, evicted.size());
+        assertEquals("large", evicted.get(0));
+        assertNotNull(cache.get("fits"));
+    }
+
+    @Test
+    public void testStats() {
+        InMemoryCache cache = new InMemoryCache(1024 * 1024);
+        cache.set("foo", new byte[100]);
+        cache.get("foo");
+        cache.get("foo");
+        cache.get("bar");
+
+        Map<String, Object> stats = cache.getStats();
+        assertEquals(2L, stats.get("hits"));
+        assertEquals(1L, stats.get("misses"));
+        assertEquals(1L, stats.get("writes"));
+        assertEquals(100L, stats.get("entry.size.avg"));
+        assertEquals(1, stats.get("entries"));
+    }
+
+    @Test
+    public void testStress() throws InterruptedException {
+        final InMemoryCache cache = new InMemoryCache(4 * 1024 * 1024);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < 8; t++) {
+            Thread th = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        cache.set("foo" + i, ("bar" + i).getBytes());
+                        int random = (int) (Math.random() * (double) i);
+                        byte[] b = cache.get("foo" + random);
+                        if (b != null)
+                            assertArrayEquals(("bar" + random).getBytes(), b);
+                    }
+                }
+            };
+            threads.add(th);
+            th.start();
+        }
+
+        for (Thread t : threads)
+            t.join();
+        assertNotNull(cache.get("foo4999"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        InMemoryCache cache = new InMemoryCache(1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            cache.set("project/1/" + i, ("a" + i).getBytes());
+            cache.set("project/2/" + i, ("b" + i).getBytes());
+        }
+        cache.invalidate("project/1");
+        assertEquals(100, cache.getEntryCount());
+        assertNull(cache.get("project/1/5"));
+        assertEquals("b5", new String(cache.get("project/2/5")));
+
+        cache.remove("project/2/5");
+        assertNull(cache.get("project/2/5"));
+        assertEquals(101L, cache.getStats().get("invalidated"));
+    }
+
+    @Test
+    public void testGetAllSetAll() {
+        InMemoryCache cache = new InMemoryCache(1024 * 1024);
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        for (int i = 0; i < 100; i++)
+            entries.put("key" + i, ("value" + i).getBytes());
+        cache.setAll(entries);
+        assertEquals(100, cache.getEntryCount());
+
+        List<String> keys = new ArrayList<String>();
+        for (int i = 90; i < 110; i++)
+            keys.add("key" + i);
+        Map<String, byte[]> result = cache.getAll(keys);
+        assertEquals(10, result.size());
+        assertEquals("value95", new String(result.get("key95")));
+        assertNull(result.get("key105"));
+        assertEquals(10L, cache.getStats().get("hits"));
+        assertEquals(10L, cache.getStats().get("misses"));
+    }
+}
@@ -0,0 +1,179 @@
+package eu.sqooss.service.cache.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import eu.sqooss.service.cache.OffHeapCache;
+
+public class OffHeapCacheTest {
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buff = new byte[1000];
+        int read;
+        while ((read = in.read(buff)) != -1)
+            out.write(buff, 0, read);
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testGetSet() {
+        OffHeapCache cache = new OffHeapCache(1024 * 1024, 64 * 1024);
+        cache.set("foo", "this is val1".getBytes());
+        cache.set("bar", "this is val2".getBytes());
+        cache.set("foo", "this is val3".getBytes());
+        cache.set("empty", new byte[0]);
+        assertEquals("this is val3", new String(cache.get("foo")));
+        assertEquals("this is val2", new String(cache.get("bar")));
+        assertEquals(0, cache.get("empty").length);
+        assertNull(cache.get("baz"));
+        assertEquals(3, cache.getEntryCount());
+    }
+
+    @Test
+    public void testLargeValues() throws IOException {
+        OffHeapCache cache = new OffHeapCache(4 * 1024 * 1024, 64 * 1024);
+        byte[] large = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(large);
+        cache.set("large", large);
+        assertArrayEquals(large, cache.get("large"));
+        assertArrayEquals(large, readAll(cache.getStream("large")));
+
+        /* Key and value exactly fill a slab, after the 48 byte header */
+        byte[] edge = new byte[64 * 1024 - 48 - "edge".length()];
+        new Random(43).nextBytes(edge);
+        cache.set("edge", edge);
+        assertArrayEquals(edge, cache.get("edge"));
+    }
+
+    @Test
+    public void testBounded() {
+        long max = 512 * 1024;
+        OffHeapCache cache = new OffHeapCache(max, 64 * 1024);
+        byte[] data = new byte[1000];
+        for (int i = 0; i < 2000; i++)
+            cache.set("key" + i, data);
+        assertTrue(cache.getSize() <= max);
+        assertTrue(cache.getEntryCount() < 2000);
+        assertNotNull(cache.get("key1999"));
+        assertNull(cache.get("key0"));
+        assertTrue(cache.getFragmentation() < 0.5);
+    }
+
+    @Test
+    public void testStreamSurvivesRemoval() throws IOException {
+        OffHeapCache cache = new OffHeapCache(256 * 1024, 64 * 1024);
+        byte[] value = new byte[100 * 1024];
+        new Random(42).nextBytes(value);
+        cache.set("foo", value);
+        InputStream in = cache.getStream("foo");
+
+        cache.remove("foo");
+        assertNull(cache.get("foo"));
+        /* Fill the cache, so that free chunks are reused */
+        for (int i = 0; i < 100; i++)
+            cache.set("other" + i, new byte[10 * 1024]);
+        assertArrayEquals(value, readAll(in));
+    }
+
+    @Test
+    public void testInvalidate() {
+        OffHeapCache cache = new OffHeapCache(1024 * 1024, 64 * 1024);
+        for (int i = 0; i < 500; i++) {
+            cache.set("project/1/" + i, ("a" + i).getBytes());
+            cache.set("project/2/" + i, ("b" + i).getBytes());
+        }
+        cache.invalidate("project/1");
+        assertEquals(500, cache.getEntryCount());
+        for (int i = 0; i < 500; i++) {
+            assertNull(cache.get("project/1/" + i));
+            assertEquals("b" + i, new String(cache.get("project/2/" + i)));
+        }
+    }
+
+    @Test
+    public void testStress() throws InterruptedException {
+        final OffHeapCache cache = new OffHeapCache(2 * 1024 * 1024, 64 * 1024);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < 4; t++) {
+            Thread th = new Thread() {
+                public void run() {
+                    Random r = new Random();
+                    for (int i = 0; i < 5000; i++) {
+                        cache.set("foo" + (i % 300), ("bar" + i).getBytes());
+                        cache.set("big" + (i % 50), new byte[r.nextInt(8192)]);
+                        int random = r.nextInt(300);
+                        byte[] b = cache.get("foo" + random);
+                        if (b != null)
+                            assertTrue(new String(b).startsWith("bar"));
+                    }
+                }
+            };
+            threads.add(th);
+            th.start();
+        }
+
+        for (Thread t : threads)
+            t.join();
+        assertTrue(cache.getSize() <= 2 * 1024 * 1024);
+    }
+
+    @Test
+    public void testGetAllSetAll() {
+        OffHeapCache cache = new OffHeapCache(1024 * 1024, 64 * 1024);
+        cache.set("key3", "old".getBytes());
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        for (int i = 0; i < 100; i++)
+            entries.put("key" + i, ("value" + i).getBytes());
+        entries.put("large", new byte[200 * 1024]);
+        cache.setAll(entries);
+        assertEquals(101, cache.getEntryCount());
+
+        List<String> keys = new ArrayList<String>(entries.keySet());
+        keys.add("missing");
+        Map<String, byte[]> result = cache.getAll(keys);
+        assertEquals(101, result.size());
+        assertEquals("value3", new String(result.get("key3")));
+        assertEquals(200 * 1024, result.get("large").length);
+        assertNull(result.get("missing"));
+
+        /* Entries read in a batch are released again */
+        cache.invalidatePrefix("key");
+        assertEquals(1, cache.getEntryCount());
+    }
+
+    @Test
+    public void testSlabsMoveBetweenClasses() {
+        OffHeapCache cache = new OffHeapCache(256 * 1024, 64 * 1024);
+        for (int i = 0; i < 5000; i++)
+            cache.set("small" + i, new byte[100]);
+        assertEquals(4, cache.getStats().get("slabs"));
+
+        /* Every slab belongs to the class of the small entries by now */
+        byte[] large = new byte[10 * 1024];
+        byte[] huge = new byte[100 * 1024];
+        new Random(7).nextBytes(huge);
+        cache.set("large", large);
+        cache.set("huge", huge);
+        assertArrayEquals(large, cache.get("large"));
+        assertArrayEquals(huge, cache.get("huge"));
+        assertTrue(cache.getEntryCount() > 2);
+        assertEquals(3L, cache.getStats().get("slabs.reassigned"));
+    }
+}
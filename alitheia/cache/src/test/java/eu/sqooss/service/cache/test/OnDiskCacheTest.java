@@ -1,9 +1,18 @@
 package eu.sqooss.service.cache.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import eu.sqooss.service.cache.OnDiskCache;
 import org.junit.BeforeClass;
@@ -35,6 +44,25 @@ public class OnDiskCacheTest {
         assertEquals(s, "this is val1");
     }
     
+    @Test
+    public void testStream() throws IOException {
+        byte[] large = new byte[200 * 1024];
+        new Random(42).nextBytes(large);
+        cache.setStream("stream", new ByteArrayInputStream(large));
+
+        InputStream in = cache.getStream("stream");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buff = new byte[4096];
+        int read;
+        while ((read = in.read(buff)) != -1)
+            out.write(buff, 0, read);
+        in.close();
+        assertArrayEquals(large, out.toByteArray());
+
+        cache.set("stream", "short".getBytes());
+        assertEquals("short", new String(cache.get("stream")));
+    }
+    
     @Test
     public void testStress() throws InterruptedException {
         Thread old = null;
@@ -75,4 +103,47 @@ public class OnDiskCacheTest {
             }
         }
     }
+
+    @Test
+    public void testInvalidate() {
+        cache.set("outside", "kept".getBytes());
+        cache.set("project/1/a", "1a".getBytes());
+        cache.set("project/1/b", "1b".getBytes());
+        cache.set("project/1/files/c", "1c".getBytes());
+        cache.set("project/2/a", "2a".getBytes());
+        cache.set("project/20/a", "20a".getBytes());
+
+        cache.invalidate("project/1");
+        assertNull(cache.get("project/1/a"));
+        assertNull(cache.get("project/1/files/c"));
+        assertEquals("2a", new String(cache.get("project/2/a")));
+        assertEquals("kept", new String(cache.get("outside")));
+
+        cache.invalidatePrefix("project/2");
+        assertNull(cache.get("project/2/a"));
+        assertNull(cache.get("project/20/a"));
+        assertEquals("kept", new String(cache.get("outside")));
+
+        /* Entries can be added again after invalidation */
+        cache.set("project/1/a", "new".getBytes());
+        assertEquals("new", new String(cache.get("project/1/a")));
+        cache.remove("project/1/a");
+        assertNull(cache.get("project/1/a"));
+    }
+
+    @Test
+    public void testGetAllSetAll() {
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        for (int i = 0; i < 20; i++)
+            entries.put("batch/" + (i % 3) + "/" + i, ("value" + i).getBytes());
+        cache.setAll(entries);
+
+        List<String> keys = new ArrayList<String>(entries.keySet());
+        keys.add("batch/missing");
+        keys.add("batch/0/missing");
+        Map<String, byte[]> result = cache.getAll(keys);
+        assertEquals(20, result.size());
+        assertEquals("value4", new String(result.get("batch/1/4")));
+        assertNull(result.get("batch/missing"));
+    }
 }
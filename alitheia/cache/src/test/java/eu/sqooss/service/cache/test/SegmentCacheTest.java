@@ -0,0 +1,301 @@
+package eu.sqooss.service.cache.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.sqooss.service.cache.SegmentCache;
+
+public class SegmentCacheTest {
+
+    static File dir = new File("tmp" + File.separator + "segments");
+
+    @Before
+    public void setUp() {
+        clean();
+    }
+
+    @After
+    public void tearDown() {
+        clean();
+    }
+
+    private void clean() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    private SegmentCache open(long segmentSize) throws IOException {
+        return new SegmentCache(dir.getPath(), segmentSize, 0.5);
+    }
+
+    @Test
+    public void testGetSet() throws IOException {
+        SegmentCache cache = open(1024 * 1024);
+        cache.set("foo", "this is val1".getBytes());
+        cache.set("bar", "this is val2".getBytes());
+        cache.set("foo", "this is val3".getBytes());
+        assertEquals("this is val3", new String(cache.get("foo")));
+        assertEquals("this is val2", new String(cache.get("bar")));
+        assertNull(cache.get("baz"));
+        cache.shutDown();
+    }
+
+    @Test
+    public void testRecoverFromLog() throws IOException {
+        SegmentCache cache = open(4096);
+        for (int i = 0; i < 100; i++)
+            cache.set("key" + i, ("val" + i).getBytes());
+        cache.set("key5", "changed".getBytes());
+        /* No shutdown, so there is no checkpoint to start from */
+
+        SegmentCache reopened = open(4096);
+        assertEquals(100, reopened.size());
+        assertEquals("changed", new String(reopened.get("key5")));
+        assertEquals("val99", new String(reopened.get("key99")));
+        reopened.shutDown();
+        cache.shutDown();
+    }
+
+    @Test
+    public void testRecoverFromCheckpoint() throws IOException {
+        SegmentCache cache = open(4096);
+        for (int i = 0; i < 100; i++)
+            cache.set("key" + i, ("val" + i).getBytes());
+        cache.checkpoint();
+        cache.set("key0", "after".getBytes());
+        cache.set("new", "entry".getBytes());
+
+        SegmentCache reopened = open(4096);
+        assertEquals(101, reopened.size());
+        assertEquals("after", new String(reopened.get("key0")));
+        assertEquals("entry", new String(reopened.get("new")));
+        assertEquals("val50", new String(reopened.get("key50")));
+        reopened.shutDown();
+        cache.shutDown();
+    }
+
+    @Test
+    public void testTornWrite() throws IOException {
+        SegmentCache cache = open(1024 * 1024);
+        cache.set("foo", "complete".getBytes());
+        cache.set("bar", "will be damaged".getBytes());
+        cache.shutDown();
+        new File(dir, "index").delete();
+
+        File[] segments = dir.listFiles();
+        assertEquals(1, segments.length);
+        RandomAccessFile raf = new RandomAccessFile(segments[0], "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        SegmentCache reopened = open(1024 * 1024);
+        assertEquals("complete", new String(reopened.get("foo")));
+        assertNull(reopened.get("bar"));
+
+        /* New writes go after the truncated record */
+        reopened.set("bar", "rewritten".getBytes());
+        reopened.shutDown();
+        reopened = open(1024 * 1024);
+        assertEquals("rewritten", new String(reopened.get("bar")));
+        reopened.shutDown();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        SegmentCache cache = open(8 * 1024);
+        byte[] data = new byte[512];
+        for (int round = 0; round < 10; round++)
+            for (int i = 0; i < 20; i++)
+                cache.set("key" + i, data);
+        cache.set("last", "last".getBytes());
+
+        int before = cache.segmentCount();
+        long sizeBefore = cache.diskSize();
+        cache.compact();
+        assertTrue(cache.segmentCount() < before);
+        assertTrue(cache.diskSize() < sizeBefore);
+        for (int i = 0; i < 20; i++)
+            assertArrayEquals(data, cache.get("key" + i));
+        assertEquals("last", new String(cache.get("last")));
+        cache.shutDown();
+
+        SegmentCache reopened = open(8 * 1024);
+        assertEquals(21, reopened.size());
+        for (int i = 0; i < 20; i++)
+            assertArrayEquals(data, reopened.get("key" + i));
+        reopened.shutDown();
+    }
+
+    @Test
+    public void testTrim() throws IOException {
+        SegmentCache cache = new SegmentCache(dir.getPath(), 8 * 1024, 0.5,
+                32 * 1024);
+        byte[] data = new byte[1024];
+        for (int i = 0; i < 200; i++)
+            cache.set("key" + i, data);
+
+        cache.trim();
+        assertTrue(cache.diskSize() <= 32 * 1024);
+        assertTrue(cache.size() < 200);
+        assertNull(cache.get("key0"));
+        assertArrayEquals(data, cache.get("key199"));
+        cache.shutDown();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buff = new byte[1000];
+        int read;
+        while ((read = in.read(buff)) != -1)
+            out.write(buff, 0, read);
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testStreams() throws IOException {
+        SegmentCache cache = open(1024 * 1024);
+        byte[] large = new byte[300 * 1024];
+        new Random(42).nextBytes(large);
+
+        cache.setStream("large", new ByteArrayInputStream(large));
+        cache.setStream("small", new ByteArrayInputStream("small".getBytes()));
+        assertArrayEquals(large, readAll(cache.getStream("large")));
+        assertArrayEquals(large, cache.get("large"));
+        assertEquals("small", new String(readAll(cache.getStream("small"))));
+        assertNull(cache.getStream("none"));
+        cache.shutDown();
+
+        /* Streamed records are checksummed like the others */
+        new File(dir, "index").delete();
+        SegmentCache reopened = open(1024 * 1024);
+        assertArrayEquals(large, reopened.get("large"));
+        reopened.shutDown();
+    }
+
+    @Test
+    public void testStreamSurvivesCompaction() throws IOException {
+        SegmentCache cache = open(8 * 1024);
+        cache.set("foo", "first".getBytes());
+        InputStream in = cache.getStream("foo");
+
+        byte[] data = new byte[1024];
+        for (int i = 0; i < 50; i++)
+            cache.set("foo", data);
+        cache.compact();
+
+        assertEquals("first", new String(readAll(in)));
+        assertArrayEquals(data, cache.get("foo"));
+        cache.shutDown();
+    }
+
+    @Test
+    public void testStress() throws Exception {
+        final SegmentCache cache = open(64 * 1024);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < 4; t++) {
+            Thread th = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        cache.set("foo" + i, ("bar" + i).getBytes());
+                        int random = (int) (Math.random() * (double) i);
+                        byte[] b = cache.get("foo" + random);
+                        if (b != null)
+                            assertArrayEquals(("bar" + random).getBytes(), b);
+                        if (i % 500 == 0)
+                            cache.compact();
+                    }
+                }
+            };
+            threads.add(th);
+            th.start();
+        }
+
+        for (Thread t : threads)
+            t.join();
+        assertNotNull(cache.get("foo1999"));
+        cache.shutDown();
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        SegmentCache cache = open(4096);
+        for (int i = 0; i < 50; i++) {
+            cache.set("project/1/" + i, ("a" + i).getBytes());
+            cache.set("project/2/" + i, ("b" + i).getBytes());
+        }
+        cache.invalidate("project/1");
+        cache.remove("project/2/0");
+        assertEquals(49, cache.size());
+        assertNull(cache.get("project/1/7"));
+        assertNull(cache.get("project/2/0"));
+        assertEquals("b7", new String(cache.get("project/2/7")));
+
+        /* Removed entries stay removed when the log is replayed */
+        SegmentCache reopened = open(4096);
+        assertEquals(49, reopened.size());
+        assertNull(reopened.get("project/1/7"));
+
+        /* and when the segments holding the tombstones are compacted away */
+        byte[] data = new byte[512];
+        for (int i = 0; i < 50; i++)
+            reopened.set("filler", data);
+        reopened.compact();
+        SegmentCache third = open(4096);
+        assertEquals(50, third.size());
+        assertNull(third.get("project/1/7"));
+        assertNull(third.get("project/2/0"));
+        third.shutDown();
+        reopened.shutDown();
+        cache.shutDown();
+    }
+
+    @Test
+    public void testGetAllSetAll() throws IOException {
+        SegmentCache cache = open(4096);
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        for (int i = 0; i < 100; i++)
+            entries.put("key" + i, ("value" + i).getBytes());
+        cache.setAll(entries);
+        cache.set("key7", "replaced".getBytes());
+
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 110; i++)
+            keys.add("key" + i);
+        Map<String, byte[]> result = cache.getAll(keys);
+        assertEquals(100, result.size());
+        assertEquals("value42", new String(result.get("key42")));
+        assertEquals("replaced", new String(result.get("key7")));
+        assertNull(result.get("key105"));
+
+        /* Batched writes are replayed like single ones */
+        SegmentCache reopened = open(4096);
+        assertEquals("value99", new String(reopened.get("key99")));
+        assertEquals(100, reopened.getAll(keys).size());
+        reopened.shutDown();
+        cache.shutDown();
+    }
+}
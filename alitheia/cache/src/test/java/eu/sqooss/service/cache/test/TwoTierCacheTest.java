@@ -0,0 +1,170 @@
+package eu.sqooss.service.cache.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.sqooss.service.cache.InMemoryCache;
+import eu.sqooss.service.cache.SegmentCache;
+import eu.sqooss.service.cache.TwoTierCache;
+
+public class TwoTierCacheTest {
+
+    static File dir = new File("tmp" + File.separator + "tiered");
+
+    @Before
+    public void setUp() {
+        clean();
+    }
+
+    @After
+    public void tearDown() {
+        clean();
+    }
+
+    private void clean() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    private SegmentCache disk() throws IOException {
+        return new SegmentCache(dir.getPath(), 1024 * 1024, 0.5);
+    }
+
+    @Test
+    public void testEvictionsDemoted() throws IOException {
+        SegmentCache disk = disk();
+        TwoTierCache cache = new TwoTierCache(new InMemoryCache(64 * 1024),
+                disk, 1, false);
+        byte[] data = new byte[1024];
+
+        for (int i = 0; i < 500; i++)
+            cache.set("key" + i, data);
+
+        assertTrue(cache.getMemoryTier().getEvictionCount() > 0);
+        assertTrue(disk.size() > 0);
+        for (int i = 0; i < 500; i++)
+            assertArrayEquals(data, cache.get("key" + i));
+        cache.shutDown();
+    }
+
+    @Test
+    public void testPromotion() throws IOException {
+        SegmentCache disk = disk();
+        disk.set("foo", "bar".getBytes());
+        TwoTierCache cache = new TwoTierCache(new InMemoryCache(1024 * 1024),
+                disk, 2, false);
+
+        assertEquals("bar", new String(cache.get("foo")));
+        assertNull(cache.getMemoryTier().get("foo"));
+        assertEquals("bar", new String(cache.get("foo")));
+        assertNotNull(cache.getMemoryTier().get("foo"));
+        cache.shutDown();
+    }
+
+    @Test
+    public void testWriteThrough() throws IOException {
+        SegmentCache disk = disk();
+        TwoTierCache cache = new TwoTierCache(new InMemoryCache(1024 * 1024),
+                disk, 1, true);
+        cache.set("foo", "bar".getBytes());
+        assertEquals("bar", new String(disk.get("foo")));
+        cache.shutDown();
+    }
+
+    @Test
+    public void testFlushOnShutdown() throws IOException {
+        TwoTierCache cache = new TwoTierCache(new InMemoryCache(1024 * 1024),
+                disk(), 1, false);
+        cache.set("foo", "bar".getBytes());
+        cache.shutDown();
+
+        SegmentCache reopened = disk();
+        assertEquals("bar", new String(reopened.get("foo")));
+        reopened.shutDown();
+    }
+
+    @Test
+    public void testGetAllSetAll() throws IOException {
+        SegmentCache disk = disk();
+        disk.set("disk", "on disk".getBytes());
+        TwoTierCache cache = new TwoTierCache(new InMemoryCache(1024 * 1024),
+                disk, 1, true);
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        entries.put("foo", "bar".getBytes());
+        entries.put("baz", "qux".getBytes());
+        cache.setAll(entries);
+        assertEquals("bar", new String(disk.get("foo")));
+
+        Map<String, byte[]> result = cache.getAll(
+                Arrays.asList("foo", "baz", "disk", "missing"));
+        assertEquals(3, result.size());
+        assertEquals("on disk", new String(result.get("disk")));
+        assertNotNull(cache.getMemoryTier().get("disk"));
+        cache.shutDown();
+    }
+
+    /* A disk tier that stalls reads once it has loaded a value */
+    private static class SlowDisk extends SegmentCache {
+        final CountDownLatch read = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+
+        SlowDisk() throws IOException {
+            super(dir.getPath(), 1024 * 1024, 0.5);
+        }
+
+        @Override
+        public byte[] get(String key) {
+            byte[] result = super.get(key);
+            read.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return result;
+        }
+    }
+
+    @Test
+    public void testPromotionDoesNotOverwriteNewerValue() throws Exception {
+        final SlowDisk disk = new SlowDisk();
+        disk.set("foo", "old".getBytes());
+        final TwoTierCache cache = new TwoTierCache(
+                new InMemoryCache(1024 * 1024), disk, 1, false);
+
+        Thread reader = new Thread() {
+            public void run() {
+                cache.get("foo");
+            }
+        };
+        reader.start();
+        disk.read.await();
+        cache.set("foo", "new".getBytes());
+        disk.proceed.countDown();
+        reader.join();
+
+        assertEquals("new", new String(cache.getMemoryTier().get("foo")));
+        cache.shutDown();
+
+        SegmentCache reopened = disk();
+        assertEquals("new", new String(reopened.get("foo")));
+        reopened.shutDown();
+    }
+}
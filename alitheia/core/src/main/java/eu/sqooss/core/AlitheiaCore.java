@@ -414,6 +414,18 @@ public class AlitheiaCore {
     public AdminService getAdminService() {
     	return (AdminService)instances.get(AdminService.class);
     }
+
+    /**
+     * Returns the instance of any running service, including services
+     * registered by external bundles through 
+     * {@link #registerService(Class, Class)}.
+     * 
+     * @param service The service interface to look up
+     * @return The service instance or null if it is not running.
+     */
+    public <T extends AlitheiaCoreService> T getService(Class<T> service) {
+        return service.cast(instances.get(service));
+    }
 	
 	private void err(String msg) {
 		System.err.println("AlitheiaCore: " + msg);
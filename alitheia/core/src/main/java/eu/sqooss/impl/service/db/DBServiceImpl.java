@@ -50,6 +50,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.HibernateException;
 import org.hibernate.LockMode;
@@ -124,6 +125,16 @@ public class DBServiceImpl implements DBService, AlitheiaCoreService {
     private SessionFactory sessionFactory = null;
     private BundleContext bc = null;
     private AtomicBoolean isInitialised = new AtomicBoolean(false);
+    /* Time spent starting sessions and their number, for the scheduler */
+    private final AtomicLong sessionStartTime = new AtomicLong();
+    private final AtomicLong sessionsStarted = new AtomicLong();
+    /* Time each thread spent in sessions it closed, and when it started
+     * the open one, 0 if none */
+    private final ThreadLocal<long[]> sessionTime = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
     private Properties conProp = new Properties();
     
     private void logSQLException(SQLException e) {
@@ -613,10 +624,14 @@ public class DBServiceImpl implements DBService, AlitheiaCoreService {
         }
         
         Session s = null;
+        long start = System.nanoTime();
         try {
             s = sessionFactory.getCurrentSession();
             //logger.debug("startDBSession: " + s + "[hashcode=" + s.hashCode() + ",open=" + s.isOpen() + "]");
             s.beginTransaction();
+            sessionStartTime.addAndGet(System.nanoTime() - start);
+            sessionsStarted.incrementAndGet();
+            sessionTime.get()[1] = start;
         } catch (HibernateException e) {
             logger.error("startDBSession() - error while initializing session: " + e.getMessage());
             if ( s != null ) {
@@ -630,6 +645,28 @@ public class DBServiceImpl implements DBService, AlitheiaCoreService {
         return true;
     }
 
+    public long getSessionStartTime() {
+        return sessionStartTime.get();
+    }
+
+    public long getSessionsStarted() {
+        return sessionsStarted.get();
+    }
+
+    public long getSessionTime() {
+        long[] t = sessionTime.get();
+        return (t[1] == 0) ? t[0] : t[0] + System.nanoTime() - t[1];
+    }
+
+    /* Add the time of the current thread's session, which is ending */
+    private void sessionEnded() {
+        long[] t = sessionTime.get();
+        if (t[1] != 0) {
+            t[0] += System.nanoTime() - t[1];
+            t[1] = 0;
+        }
+    }
+
     public boolean commitDBSession() {
         if ( !checkSession() )
             return false;
@@ -639,7 +676,9 @@ public class DBServiceImpl implements DBService, AlitheiaCoreService {
             s = sessionFactory.getCurrentSession();
             //logger.debug("commitDBSession: " + s + "[hashcode=" + s.hashCode() + ",open=" + s.isOpen() + "]");
             s.getTransaction().commit();
+            sessionEnded();
         } catch (HibernateException e) {
+            sessionEnded();
             logger.error("commitDBSession() - error while committing transaction: " + e.getMessage());
             if ( s != null ) {
                 // The docs say to do so
@@ -665,7 +704,9 @@ public class DBServiceImpl implements DBService, AlitheiaCoreService {
         try {
             s = sessionFactory.getCurrentSession();
             s.getTransaction().rollback();
+            sessionEnded();
         } catch (HibernateException e) {
+            sessionEnded();
             logger.error("commitDBSession() - error while rolling back transaction: " + e.getMessage());
             if ( s != null ) {
                 try {
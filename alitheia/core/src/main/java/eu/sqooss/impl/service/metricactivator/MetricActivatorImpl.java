@@ -38,6 +38,10 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import eu.sqooss.service.abstractmetric.InvocationOrder;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
 
 import eu.sqooss.core.AlitheiaCore;
 import eu.sqooss.service.abstractmetric.AbstractMetric;
@@ -66,11 +70,12 @@ import eu.sqooss.service.metricactivator.MetricActivator;
 import eu.sqooss.service.pa.PluginAdmin;
 import eu.sqooss.service.pa.PluginInfo;
 import eu.sqooss.service.scheduler.Job;
+import eu.sqooss.service.scheduler.JobFactory;
 import eu.sqooss.service.scheduler.Scheduler;
 import eu.sqooss.service.scheduler.SchedulerException;
 import eu.sqooss.service.util.GraphTS;
 
-public class MetricActivatorImpl  implements MetricActivator {
+public class MetricActivatorImpl  implements MetricActivator, ServiceListener {
 
     /** The parent bundle's context object. */
     private BundleContext bc;
@@ -81,6 +86,9 @@ public class MetricActivatorImpl  implements MetricActivator {
     private DBService db;
     private Scheduler sched;
     private boolean fastSync = false;
+    /* Objects per metric job, and per commit within a job */
+    private int batchSize = 1;
+    private int commitInterval = 1;
 
     private AtomicLong priority;
     
@@ -262,20 +270,31 @@ public class MetricActivatorImpl  implements MetricActivator {
     	return sorted;
     }
     
+    /*
+     * Jobs a MetricSchedulerJob holds before queuing them. Queuing from a
+     * job does not wait for the scheduler to drain, so it waits for room
+     * itself before each chunk; this bounds the jobs that wait in memory
+     * for a backfill of many objects.
+     */
+    private static final int ENQUEUE_CHUNK = 1000;
+
     /**
      * Job that creates metric jobs. Used to avoid blocking the UI or user
      * scipts while scheduling large metric updates. Its priority ensures
      * that it will not fill up queues while updater jobs are running, 
      * leaving memory free till it is really required. 
      */
+
     private class MetricSchedulerJob extends Job {
 
         private AlitheiaPlugin m;
         private StoredProject sp;
+        private Long projectId;
         
         public MetricSchedulerJob(AlitheiaPlugin m, StoredProject sp) {
             this.m = m;
             this.sp = sp;
+            this.projectId = sp.getId();
         }
         
         @Override
@@ -283,6 +302,21 @@ public class MetricActivatorImpl  implements MetricActivator {
             return 0x2;
         }
 
+        @Override
+        public Long projectId() {
+            return projectId;
+        }
+
+        @Override
+        public String key() {
+            return projectId + " " + m.getUniqueKey();
+        }
+
+        @Override
+        public String plugin() {
+            return m.getName();
+        }
+
         @Override
         protected void run() throws Exception {
             DBService dbs = AlitheiaCore.getInstance().getDBService();
@@ -314,6 +348,10 @@ public class MetricActivatorImpl  implements MetricActivator {
             	}
             }
             
+            /* Queuing may wait for the scheduler to drain, do not hold
+             * on to the session meanwhile */
+            dbs.commitDBSession();
+
             AbstractMetric metric = 
                 (AbstractMetric) bc.getService(mi.getServiceRef());
             HashSet<Job> jobs = new HashSet<Job>();
@@ -356,23 +394,70 @@ public class MetricActivatorImpl  implements MetricActivator {
                     ids = tmp;
                 }
 
+                List<Long> batch = new ArrayList<Long>();
                 for (Long l : ids) {
-            		jobs.add(new MetricActivatorJob(metric, l, logger, 
-            			metricTypesToActivators.get(actType),
-            			priority.incrementAndGet(),
-            			fastSync));
-            	}
+                    batch.add(l);
+                    if (batch.size() < batchSize)
+                        continue;
+                    jobs.add(batchJob(metric, batch, actType));
+                    batch = new ArrayList<Long>();
+                    if (jobs.size() >= ENQUEUE_CHUNK) {
+                        sched.awaitAdmission();
+                        sched.enqueueNoDependencies(jobs);
+                        jobs = new HashSet<Job>();
+                    }
+                }
+                if (!batch.isEmpty())
+                    jobs.add(batchJob(metric, batch, actType));
             }
+            sched.awaitAdmission();
             sched.enqueueNoDependencies(jobs);
-            dbs.commitDBSession();
         }
         
+        private Job batchJob(AbstractMetric metric, List<Long> batch,
+                MetricType.Type actType) {
+            MetricActivatorJob j = new MetricActivatorJob(metric, batch, logger,
+                    metricTypesToActivators.get(actType),
+                    priority.incrementAndGet(),
+                    fastSync, commitInterval);
+            j.setProjectId(projectId);
+            return j;
+        }
+
         @Override
         public String toString() {
             return "MetricSchedulerJob - Project:{" + sp + "} Metric:{" + m + "}";
         }
     }
 
+    /*
+     * Queue again the plug-in's metric jobs that were pending in the
+     * scheduler's journal when the system stopped.
+     */
+    private void restoreJobs(final AbstractMetric m) {
+        try {
+            int n = sched.restoreJobs(MetricActivatorJob.JOURNAL_TYPE,
+                    new JobFactory() {
+                public Job restore(String record) throws Exception {
+                    return MetricActivatorJob.restore(m, record, logger);
+                }
+            });
+            if (n > 0)
+                logger.info("Restored " + n + " pending jobs of plug-in " + m.getName());
+        } catch (SchedulerException e) {
+            logger.error("Could not restore the jobs of plug-in " + m.getName());
+        }
+    }
+
+    /* Plug-ins that start after the activator get their jobs back here */
+    public void serviceChanged(ServiceEvent event) {
+        if (event.getType() != ServiceEvent.REGISTERED)
+            return;
+        Object o = bc.getService(event.getServiceReference());
+        if (o instanceof AbstractMetric)
+            restoreJobs((AbstractMetric) o);
+    }
+
     class DecreasingLongComparator implements Comparator<Long> {
         @Override
         public int compare(Long a, Long b) {
@@ -413,6 +498,18 @@ public class MetricActivatorImpl  implements MetricActivator {
         metricTypesToActivators.put(Type.MAILTHREAD, MailingListThread.class);
 	}
 
+    private int intProperty(String name, int def) {
+        String value = bc.getProperty(name);
+        if (value == null)
+            return def;
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException nfe) {
+            logger.warn("Invalid value for " + name + ":" + value);
+            return def;
+        }
+    }
+
 	@Override
 	public void shutDown() {
 	}
@@ -433,6 +530,22 @@ public class MetricActivatorImpl  implements MetricActivator {
         
         if (sync != null && sync.equalsIgnoreCase("fast"))
             this.fastSync = true;
+
+        batchSize = intProperty("eu.sqooss.metricactivator.batch", batchSize);
+        commitInterval = intProperty("eu.sqooss.metricactivator.batch.commit",
+                commitInterval);
+
+        try {
+            bc.addServiceListener(this, "(" + Constants.OBJECTCLASS + "="
+                    + PluginAdmin.PLUGIN_CLASS + ")");
+        } catch (InvalidSyntaxException e) {
+            logger.error("Invalid filter syntax ", e);
+        }
+        for (PluginInfo pi : pa.listPlugins()) {
+            Object o = bc.getService(pi.getServiceRef());
+            if (o instanceof AbstractMetric)
+                restoreJobs((AbstractMetric) o);
+        }
 	
         return true;
 	}
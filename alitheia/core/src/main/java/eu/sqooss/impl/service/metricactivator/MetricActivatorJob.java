@@ -33,7 +33,11 @@
 
 package eu.sqooss.impl.service.metricactivator;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.hibernate.exception.LockAcquisitionException;
 
@@ -41,39 +45,76 @@ import eu.sqooss.core.AlitheiaCore;
 import eu.sqooss.service.abstractmetric.AbstractMetric;
 import eu.sqooss.service.abstractmetric.AlreadyProcessingException;
 import eu.sqooss.service.abstractmetric.MetricMismatchException;
+import eu.sqooss.service.abstractmetric.SchedulerHints;
 import eu.sqooss.service.db.DAObject;
 import eu.sqooss.service.db.DBService;
 import eu.sqooss.service.db.Metric;
 import eu.sqooss.service.logging.Logger;
-import eu.sqooss.service.metricactivator.MetricActivator;
+import eu.sqooss.service.scheduler.DurableJob;
 import eu.sqooss.service.scheduler.Job;
+import eu.sqooss.service.scheduler.RetryException;
+import eu.sqooss.service.scheduler.SchedulerException;
 
 /**
  * Generic metric job. Manages database sessions and job restarts
  * on interesting exceptions.
+ * 
+ * A job may calculate the metric on a batch of objects of the same type,
+ * in one database session that is committed every few objects. An object
+ * the plug-in fails on gets a job of its own, and the objects since the
+ * last commit are calculated again without it. Lock and commit failures
+ * retry the job from the last commit.
  */
-public class MetricActivatorJob extends Job {
+public class MetricActivatorJob extends Job implements DurableJob {
+
+    static final String JOURNAL_TYPE = "metric";
 
     private Logger logger;
     private DBService dbs;
-    private MetricActivator ma;
-    private Long daoID;
+    private List<Long> daoIDs;
     private AbstractMetric metric;
     private long priority;
     Class<? extends DAObject> daoType;
     private boolean fastSync = false; 
+    private int commitInterval;
+    /* The project the objects belong to, if known */
+    private Long projectId;
+    /* Objects of the batch committed so far, and those the plug-in failed
+     * on; kept when the job is retried */
+    private int committed = 0;
+    private final Set<Long> failed = new HashSet<Long>();
     
     MetricActivatorJob(AbstractMetric m, Long daoID, Logger l,
             Class<? extends DAObject> daoType, long priority, 
             boolean fastSync) {
+        this(m, Collections.singletonList(daoID), l, daoType, priority,
+                fastSync, 1);
+    }
+
+    /**
+     * A job for a batch of objects, committing the results every
+     * <tt>commitInterval</tt> objects.
+     */
+    MetricActivatorJob(AbstractMetric m, List<Long> daoIDs, Logger l,
+            Class<? extends DAObject> daoType, long priority, 
+            boolean fastSync, int commitInterval) {
+        this(m, daoIDs, l, daoType, priority, fastSync, commitInterval,
+                AlitheiaCore.getInstance().getDBService());
+    }
+
+    /** Constructor allowing dependency injection */
+    MetricActivatorJob(AbstractMetric m, List<Long> daoIDs, Logger l,
+            Class<? extends DAObject> daoType, long priority, 
+            boolean fastSync, int commitInterval, DBService dbs) {
+        super(dbs);
     	this.metric = m;
         this.logger = l;
-        this.daoID = daoID;
+        this.daoIDs = daoIDs;
         this.daoType = daoType;
-        this.dbs = AlitheiaCore.getInstance().getDBService();
-        this.ma = AlitheiaCore.getInstance().getMetricActivator(); 
+        this.dbs = dbs;
         this.priority = priority;
         this.fastSync = fastSync;
+        this.commitInterval = Math.max(1, commitInterval);
     }
     
     @Override
@@ -81,28 +122,71 @@ public class MetricActivatorJob extends Job {
         return priority;
     }
 
+    /**
+     * The plug-in's class name and the tags from its scheduler hints, so
+     * that the jobs of a plug-in can be limited together.
+     */
+    @Override
+    public String[] tags() {
+        SchedulerHints hints = metric.getClass().getAnnotation(SchedulerHints.class);
+        String[] tags = (hints == null) ? new String[0] : hints.tags();
+        String[] result = new String[tags.length + 1];
+        result[0] = metric.getClass().getName();
+        System.arraycopy(tags, 0, result, 1, tags.length);
+        return result;
+    }
+
+    /** The time budget from the plug-in's scheduler hints */
+    @Override
+    public long timeBudget() {
+        SchedulerHints hints = metric.getClass().getAnnotation(SchedulerHints.class);
+        return (hints == null) ? 0 : hints.timeBudget();
+    }
+
+    /** Lets other jobs calculate the DAOs this one got stuck on */
+    @Override
+    protected void timedOut(Thread t) {
+        metric.releaseLocks(this);
+    }
+
+    /**
+     * Plug-in, activator class and DAO ids. Jobs are only merged with jobs
+     * of exactly the same objects, so a single object job and a batch that
+     * holds the object both run; the second one to get to the object finds
+     * it locked or its results calculated, and does not redo the work.
+     */
+    @Override
+    public String key() {
+        return metric.getUniqueKey() + " " + daoType.getName() + " " + daoIDs;
+    }
+
+    @Override
+    public String plugin() {
+        return metric.getName();
+    }
+
+    @Override
+    public Long projectId() {
+        return projectId;
+    }
+
+    void setProjectId(Long projectId) {
+        this.projectId = projectId;
+    }
+
     @Override
     protected void run() throws Exception {
+        if (daoIDs.size() > 1) {
+            runBatch();
+            return;
+        }
+        Long daoID = daoIDs.get(0);
         dbs.startDBSession();
         metric.setJob(this);
         DAObject obj = dbs.findObjectById(daoType, daoID);
 
         try {
-            if (fastSync) {
-                /*
-                * This reduces the number of queries performed when triggering
-                * synchronization of metrics on large databases. We trust that
-                * if there is a value in the database for one of the metric a
-                * plug-in provides, there will be a value for all metrics. For
-                * example, on the size (wc) metric this will save 5-6 queries
-                * per projectfile. If the metric syncs 20M files
-                * this optimisation prevents 100M queries from being executed.
-                */
-                List<Metric> supported = metric.getSupportedMetrics(obj.getClass());
-                metric.getResult(obj, supported.subList(0, 1));
-            } else {
-                metric.getResult(obj, metric.getSupportedMetrics(obj.getClass()));
-            }
+            measure(obj);
         } catch (MetricMismatchException e) {
             logger.warn("Metric " + metric.getName() + " failed");
         } catch (AlreadyProcessingException ape) {
@@ -111,18 +195,142 @@ public class MetricActivatorJob extends Job {
             dbs.rollbackDBSession();
             return;
         } catch (LockAcquisitionException lae) {
-            dbs.rollbackDBSession();
+            throw new RetryException(RetryException.Failure.LOCK,
+                    "DAO id " + daoID + " is locked", lae);
         }
 
         if (!dbs.commitDBSession()) {
-            logger.warn("commit failed - restarting metric job");
-            restart();
+            logger.warn("commit failed - retrying metric job later");
+            throw new RetryException(RetryException.Failure.LOCK,
+                    "commit failed");
         }
     }
 
+    private void measure(DAObject obj) throws Exception {
+        if (fastSync) {
+            /*
+            * This reduces the number of queries performed when triggering
+            * synchronization of metrics on large databases. We trust that
+            * if there is a value in the database for one of the metric a
+            * plug-in provides, there will be a value for all metrics. For
+            * example, on the size (wc) metric this will save 5-6 queries
+            * per projectfile. If the metric syncs 20M files
+            * this optimisation prevents 100M queries from being executed.
+            */
+            List<Metric> supported = metric.getSupportedMetrics(obj.getClass());
+            metric.getResult(obj, supported.subList(0, 1));
+        } else {
+            metric.getResult(obj, metric.getSupportedMetrics(obj.getClass()));
+        }
+    }
+
+    /*
+     * Calculate the metric on all objects, committing every commitInterval
+     * of them. An object the plug-in fails on is queued on its own, and
+     * the objects since the last commit are calculated again without it.
+     */
+    private void runBatch() throws Exception {
+        dbs.startDBSession();
+        metric.setJob(this);
+        int i = committed;
+        while (i < daoIDs.size()) {
+            Long id = daoIDs.get(i);
+            if (!failed.contains(id)) {
+                try {
+                    measure(dbs.findObjectById(daoType, id));
+                } catch (MetricMismatchException e) {
+                    logger.warn("Metric " + metric.getName() + " failed");
+                } catch (AlreadyProcessingException ape) {
+                    logger.warn("DAO id " + id + " is locked, it has been " +
+                            "rescheduled");
+                } catch (LockAcquisitionException lae) {
+                    throw new RetryException(RetryException.Failure.LOCK,
+                            "DAO id " + id + " is locked", lae);
+                } catch (RetryException re) {
+                    throw re;
+                } catch (Exception e) {
+                    if (isCancelled())
+                        throw e;
+                    dbs.rollbackDBSession();
+                    failed.add(id);
+                    logger.warn("Metric " + metric.getName() + " failed on DAO id "
+                            + id + " (" + e.getMessage() + ") - retrying it on its own");
+                    retryAlone(id);
+                    dbs.startDBSession();
+                    i = committed;
+                    continue;
+                }
+            }
+            i++;
+            if (i == daoIDs.size() || i - committed >= commitInterval) {
+                if (!dbs.commitDBSession()) {
+                    logger.warn("commit failed - retrying metric job later");
+                    throw new RetryException(RetryException.Failure.LOCK,
+                            "commit failed");
+                }
+                committed = i;
+                if (i < daoIDs.size())
+                    dbs.startDBSession();
+            }
+        }
+    }
+
+    /* Queue a job for an object the batch failed on */
+    private void retryAlone(Long id) throws SchedulerException {
+        MetricActivatorJob retry = new MetricActivatorJob(metric,
+                Collections.singletonList(id), logger, daoType, priority,
+                fastSync, 1, dbs);
+        retry.setProjectId(projectId);
+        getScheduler().enqueueNoDependencies(Collections.<Job>singleton(retry));
+    }
+
+    public String journalType() {
+        return JOURNAL_TYPE;
+    }
+
+    /**
+     * Plug-in key, activator class, DAO ids, priority, sync mode, commit
+     * interval and, if known, project id
+     */
+    public String journalRecord() {
+        StringBuilder ids = new StringBuilder();
+        for (Long id : daoIDs) {
+            if (ids.length() > 0)
+                ids.append(',');
+            ids.append(id);
+        }
+        return metric.getUniqueKey() + " " + daoType.getName() + " " + ids
+            + " " + priority + " " + fastSync + " " + commitInterval
+            + (projectId == null ? "" : " " + projectId);
+    }
+
+    /**
+     * Recreate a journaled job of the plug-in.
+     * @return The job, or null if the record belongs to another plug-in
+     */
+    static MetricActivatorJob restore(AbstractMetric m, String record,
+            Logger l) throws Exception {
+        String[] f = record.split(" ");
+        if (!f[0].equals(m.getUniqueKey()))
+            return null;
+        Class<? extends DAObject> daoType = 
+            Class.forName(f[1]).asSubclass(DAObject.class);
+        List<Long> ids = new ArrayList<Long>();
+        for (String id : f[2].split(","))
+            ids.add(Long.valueOf(id));
+        MetricActivatorJob j = new MetricActivatorJob(m, ids, l, daoType,
+                Long.parseLong(f[3]), Boolean.parseBoolean(f[4]),
+                Integer.parseInt(f[5]));
+        if (f.length > 6)
+            j.setProjectId(Long.valueOf(f[6]));
+        return j;
+    }
+
     @Override
     public String toString() {
-        return "MetricActivatorJob: Metric:{" + metric.getName() +"} Activator:{" + daoType.getSimpleName() + "} DAO:{" + daoID + "}";
+        String dao = (daoIDs.size() == 1) ? daoIDs.get(0).toString() :
+            daoIDs.get(0) + ".." + daoIDs.get(daoIDs.size() - 1) + ", " + daoIDs.size() + " objects";
+        return "MetricActivatorJob: Metric:{" + metric.getName() +"} Activator:{" + daoType.getSimpleName() + "} DAO:{" + dao + "}";
     }
 }
 
@@ -0,0 +1,211 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,  
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package eu.sqooss.impl.service.scheduler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import eu.sqooss.service.scheduler.SchedulerException;
+import eu.sqooss.service.scheduler.SchedulerStats;
+
+/**
+ * Holds up threads queuing jobs while the scheduler has too many of them
+ * or the heap is nearly full, so that a large backfill cannot queue more
+ * jobs than fit in memory. Producers are let through again once the queue
+ * has shrunk to nine tenths of its limit and the heap is a tenth below its
+ * limit.
+ * 
+ * Heap occupancy is that of the tenured heap pools after their last
+ * collection, as garbage does not count. The young pools are left out:
+ * they are full or empty as the collector goes, and say nothing about
+ * the risk of running out of memory. As the figure only changes when the
+ * collector runs, it holds producers back only while jobs are waiting,
+ * whose completion eventually brings it down.
+ * 
+ * The scheduler does not hold up jobs queuing jobs, as the queue may only
+ * drain once they are done. Workers held up here on their own request are
+ * made up for by the pool.
+ */
+class AdmissionControl {
+
+    /* How long a heap reading is used for, in nanoseconds */
+    private static final long HEAP_SAMPLE_INTERVAL = 50 * 1000 * 1000;
+
+    private final long maxQueued;
+    private final double maxHeap;
+    private final SchedulerStats stats;
+    private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+
+    private final Object lock = new Object();
+    /* Set while producers are held up, until the pressure is gone */
+    private volatile boolean throttling;
+    private volatile boolean enabled = true;
+    private volatile int blocked;
+
+    private volatile double heap;
+    private volatile long heapSampled = System.nanoTime() - HEAP_SAMPLE_INTERVAL;
+
+    /**
+     * @param maxQueued Number of waiting jobs that holds up producers, 0
+     * for no limit
+     * @param maxHeap Share of the heap in use that holds up producers,
+     * 0 for no limit
+     */
+    AdmissionControl(long maxQueued, double maxHeap, SchedulerStats stats) {
+        this(maxQueued, maxHeap, stats, ManagementFactory.getMemoryPoolMXBeans());
+    }
+
+    /**
+     * @param memoryPools The memory pools to find the tenured heap pools
+     * in, which are the heap pools that support usage thresholds
+     */
+    AdmissionControl(long maxQueued, double maxHeap, SchedulerStats stats,
+            List<MemoryPoolMXBean> memoryPools) {
+        this.maxQueued = maxQueued;
+        this.maxHeap = maxHeap;
+        this.stats = stats;
+        for (MemoryPoolMXBean pool : memoryPools) {
+            if (pool.getType() == MemoryType.HEAP
+                    && pool.isUsageThresholdSupported())
+                pools.add(pool);
+        }
+    }
+
+    /**
+     * Wait until the scheduler can take another job.
+     * @throws SchedulerException If interrupted while waiting
+     */
+    void admit() throws SchedulerException {
+        if (!pressure())
+            return;
+        stats.addThrottledEnqueue();
+        stats.incBlockedProducers();
+        synchronized (lock) {
+            blocked++;
+        }
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                public boolean block() throws InterruptedException {
+                    synchronized (lock) {
+                        if (pressure())
+                            lock.wait(HEAP_SAMPLE_INTERVAL / 1000000);
+                    }
+                    return !pressure();
+                }
+
+                public boolean isReleasable() {
+                    return !pressure();
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SchedulerException("Interrupted while waiting to queue a job");
+        } finally {
+            synchronized (lock) {
+                blocked--;
+            }
+            stats.decBlockedProducers();
+        }
+    }
+
+    /**
+     * Called when a job leaves the queue, to let held up producers
+     * through as soon as the pressure is gone.
+     */
+    void released() {
+        if (blocked == 0 || !throttling)
+            return;
+        synchronized (lock) {
+            if (!pressure())
+                lock.notifyAll();
+        }
+    }
+
+    /** Let all producers through from now on */
+    void disable() {
+        enabled = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /* Whether producers are to be held up */
+    boolean pressure() {
+        if (!enabled)
+            return false;
+        long queued = stats.getWaitingJobs();
+        boolean full;
+        if (!throttling) {
+            full = (maxQueued > 0 && queued >= maxQueued)
+                || (maxHeap > 0 && queued > 0 && heapOccupancy() >= maxHeap);
+        } else {
+            full = (maxQueued > 0 && queued > maxQueued * 9 / 10)
+                || (maxHeap > 0 && queued > 0 && heapOccupancy() > maxHeap - 0.1);
+        }
+        throttling = full;
+        return full;
+    }
+
+    /* Share of the tenured heap in use after the last collection */
+    double heapOccupancy() {
+        long now = System.nanoTime();
+        if (now - heapSampled < HEAP_SAMPLE_INTERVAL)
+            return heap;
+        long used = 0;
+        long max = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null)
+                continue;
+            used += usage.getUsed();
+            max += (usage.getMax() > 0) ? usage.getMax() : usage.getCommitted();
+        }
+        double occupancy = (max > 0) ? (double) used / max : 0;
+        if (pools.isEmpty()) {
+            Runtime rt = Runtime.getRuntime();
+            occupancy = (double) (rt.totalMemory() - rt.freeMemory()) / rt.maxMemory();
+        }
+        heap = occupancy;
+        heapSampled = now;
+        return occupancy;
+    }
+}
+
+//vi: ai nosi sw=4 ts=4 expandtab
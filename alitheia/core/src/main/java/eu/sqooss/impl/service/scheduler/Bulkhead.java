@@ -0,0 +1,98 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,  
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package eu.sqooss.impl.service.scheduler;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import eu.sqooss.impl.service.scheduler.JobExecutor.JobTask;
+import eu.sqooss.service.logging.Logger;
+
+/**
+ * Caps the number of jobs of one class or tag that run at once. Jobs that
+ * find the bulkhead full wait in it, in queue order, until one of its
+ * running jobs finishes. All fields are guarded by the executor's
+ * bulkhead lock.
+ */
+class Bulkhead {
+
+    final String name;
+    final int limit;
+    int running;
+    final PriorityQueue<JobTask> waiting;
+
+    private Bulkhead(String name, int limit, Comparator<JobTask> order) {
+        this.name = name;
+        this.limit = limit;
+        this.waiting = new PriorityQueue<JobTask>(16, order);
+    }
+
+    boolean isFull() {
+        return running >= limit;
+    }
+
+    /**
+     * Creates bulkheads from limits in the form
+     * <tt>name=limit,name=limit</tt>, where a name is a job class name or
+     * a job tag. Invalid entries are logged and skipped.
+     */
+    static Map<String, Bulkhead> parse(String spec, Logger logger) {
+        Map<String, Bulkhead> bulkheads = new LinkedHashMap<String, Bulkhead>();
+        if (spec == null)
+            return bulkheads;
+        for (String entry : spec.split(",")) {
+            if (entry.trim().length() == 0)
+                continue;
+            int eq = entry.lastIndexOf('=');
+            try {
+                if (eq <= 0)
+                    throw new NumberFormatException();
+                int limit = Integer.parseInt(entry.substring(eq + 1).trim());
+                if (limit <= 0)
+                    throw new NumberFormatException();
+                String name = entry.substring(0, eq).trim();
+                bulkheads.put(name, new Bulkhead(name, limit, JobExecutor.ORDER));
+            } catch (NumberFormatException nfe) {
+                if (logger != null)
+                    logger.warn("Invalid bulkhead limit:" + entry);
+            }
+        }
+        return bulkheads;
+    }
+}
+
+//vi: ai nosi sw=4 ts=4 expandtab
@@ -0,0 +1,157 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,  
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package eu.sqooss.impl.service.scheduler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import eu.sqooss.service.db.DBService;
+import eu.sqooss.service.logging.Logger;
+import eu.sqooss.service.scheduler.SchedulerStats;
+
+/**
+ * Adapts the number of jobs an executor runs at once to what the database
+ * takes, as most jobs spend their time waiting on it. Running more jobs
+ * than there are connections only adds lock waits and retries.
+ * 
+ * Every tick, the controller looks at the jobs that finished since the
+ * last one. It takes the database as saturated if starting a session took
+ * longer than <tt>maxSessionWait</tt> on average, or if jobs ran more than
+ * twice as long as usual for their class. It then cuts the limit by a
+ * quarter; otherwise, if jobs were left waiting for a worker, it raises
+ * the limit by one. The limit stays within <tt>min</tt> and the number
+ * of workers.
+ */
+class ConcurrencyController implements Runnable {
+
+    /* Run time over the usual run time that counts as saturation */
+    private static final double LATENCY_TOLERANCE = 2.0;
+    /* Weight of a new run time in the usual run time of a class */
+    private static final double BASELINE_WEIGHT = 0.02;
+
+    private final JobExecutor executor;
+    private final int min;
+    private final int max;
+    private final long maxSessionWait;
+    private final DBService db;
+    private final SchedulerStats stats;
+    private final Logger logger;
+
+    /* Usual run time by job class name, in nanoseconds */
+    private final Map<String, Double> baseline = new HashMap<String, Double>();
+    /* Jobs finished since the last tick, and their run time over the usual */
+    private int completed;
+    private double slowdown;
+
+    private long sessionTime;
+    private long sessions;
+
+    /**
+     * @param min The lowest limit
+     * @param maxSessionWait Average nanoseconds to start a database
+     * session that count as saturation
+     * @param db The database whose sessions are watched, or null to
+     * watch job run times alone
+     */
+    ConcurrencyController(JobExecutor executor, int min, int max,
+            long maxSessionWait, DBService db, SchedulerStats stats,
+            Logger logger) {
+        this.executor = executor;
+        this.min = Math.max(1, Math.min(min, max));
+        this.max = max;
+        this.maxSessionWait = maxSessionWait;
+        this.db = db;
+        this.stats = stats;
+        this.logger = logger;
+        if (db != null) {
+            sessionTime = db.getSessionStartTime();
+            sessions = db.getSessionsStarted();
+        }
+        stats.setConcurrencyLimit(executor.getLimit());
+    }
+
+    /** Record the run time of a job */
+    synchronized void completed(String type, long nanos) {
+        Double usual = baseline.get(type);
+        if (usual == null) {
+            usual = (double) Math.max(nanos, 1);
+        } else {
+            slowdown += nanos / usual;
+            completed++;
+            usual += (nanos - usual) * BASELINE_WEIGHT;
+        }
+        baseline.put(type, Math.max(usual, 1));
+    }
+
+    /** Adjust the limit to the jobs finished since the last tick */
+    public void run() {
+        double latency;
+        synchronized (this) {
+            if (completed == 0)
+                return;
+            latency = slowdown / completed;
+            completed = 0;
+            slowdown = 0;
+        }
+
+        long wait = 0;
+        if (db != null) {
+            long time = db.getSessionStartTime();
+            long n = db.getSessionsStarted();
+            if (n > sessions)
+                wait = (time - sessionTime) / (n - sessions);
+            sessionTime = time;
+            sessions = n;
+        }
+
+        int limit = executor.getLimit();
+        int next = limit;
+        if (latency > LATENCY_TOLERANCE || (maxSessionWait > 0 && wait > maxSessionWait))
+            next = Math.max(min, limit * 3 / 4);
+        else if (executor.getReadyJobs() > 0)
+            next = Math.min(max, limit + 1);
+        if (next == limit)
+            return;
+
+        executor.setLimit(next);
+        stats.setConcurrencyLimit(next);
+        if (logger != null)
+            logger.debug("Running " + next + " jobs at once (run time "
+                    + String.format("%.1f", latency) + "x usual, session start "
+                    + wait / 1000 + "us)");
+    }
+}
+
+//vi: ai nosi sw=4 ts=4 expandtab
@@ -0,0 +1,580 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,  
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package eu.sqooss.impl.service.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.sqooss.service.db.DBService;
+import eu.sqooss.service.logging.Logger;
+import eu.sqooss.service.scheduler.Job;
+import eu.sqooss.service.scheduler.SchedulerException;
+import eu.sqooss.service.scheduler.SchedulerStats;
+import eu.sqooss.service.scheduler.WorkerThread;
+
+/**
+ * Executor for scheduler jobs. Runnable jobs wait in a queue per project,
+ * the lowest {@link Job#priority()} first. To keep low priority jobs from
+ * starving, a job gains one priority level for every <tt>aging</tt>
+ * milliseconds it waits: jobs are ordered by
+ * <tt>priority * aging + time queued</tt>. The projects take turns in
+ * proportion to their shares, so that a project with many jobs does not
+ * hold up the others (see {@link ReadyQueue}).
+ * 
+ * A fixed number of worker threads runs the jobs. Each queued job adds a
+ * dispatch task to the work-stealing pool, which runs the job at the head
+ * of the queue when a worker takes it.
+ * 
+ * Jobs also run in the bulkheads named after their class and their
+ * {@link Job#tags()}. A job that finds one of its bulkheads at its limit
+ * waits there and the dispatcher moves on to the next job; it goes back to
+ * the queue when a job of the bulkhead finishes. Jobs run in the thread of
+ * a job waiting for them ignore the limits, as holding them back could
+ * leave every worker waiting.
+ * 
+ * The number of jobs dispatched at once can be held below the number of
+ * workers, for a {@link ConcurrencyController} to adapt it to the load
+ * the database takes. Jobs run in the thread of a job waiting for them do
+ * not count, for the same reason.
+ * 
+ * The CPU time, allocations and database time of each job are added up
+ * per job class and plug-in (see {@link ResourceMeter}).
+ */
+class JobExecutor extends ForkJoinPool {
+
+    private final SchedulerStats stats;
+    /* Charged the session time of jobs, if there is one */
+    private final DBService db;
+    private final Set<Worker> workers =
+        Collections.newSetFromMap(new ConcurrentHashMap<Worker, Boolean>());
+
+    private final long aging;
+    private final AtomicLong sequence = new AtomicLong();
+    static final Comparator<JobTask> ORDER = new Comparator<JobTask>() {
+        public int compare(JobTask a, JobTask b) {
+            if (a.rank != b.rank)
+                return a.rank < b.rank ? -1 : 1;
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+    private final ReadyQueue ready;
+
+    /* Jobs dispatched from the queue that are running, and their limit */
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile int limit;
+    private volatile ConcurrencyController controller;
+
+    /* Bulkheads by name; the map is also the lock of their state */
+    private final Map<String, Bulkhead> bulkheads;
+
+    /**
+     * @param threads The number of worker threads
+     * @param aging Milliseconds of waiting worth one priority level, 0 to
+     * order by priority alone
+     * @param bulkheads Bulkheads by job class name or tag, which may be
+     * shared with other executors
+     * @param shares Weights of projects in the ready queue by project id
+     * @param db The database whose session time is charged to jobs, or
+     * null
+     */
+    JobExecutor(int threads, long aging, Map<String, Bulkhead> bulkheads,
+            Map<Long, Integer> shares, DBService db, SchedulerStats stats,
+            final Logger logger) {
+        super(threads, new WorkerFactory(), new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread t, Throwable e) {
+                if (logger != null)
+                    logger.error("Uncaught exception in " + t.getName() + ": " + e);
+            }
+        }, true);
+        this.aging = aging;
+        this.stats = stats;
+        this.db = db;
+        this.bulkheads = bulkheads;
+        this.ready = new ReadyQueue(ORDER, shares, stats);
+        this.limit = threads;
+        synchronized (bulkheads) {
+            for (Bulkhead b : bulkheads.values())
+                publish(b);
+        }
+    }
+
+    /**
+     * Queue a job for execution. The job's future is set before it can
+     * start, so that the running job finds its task.
+     * @return The future of the job, that allows cancelling it while it
+     * has not started
+     */
+    ForkJoinTask<Void> schedule(Job job) {
+        JobTask task = new JobTask(job, rank(job.priority(), aging,
+                System.currentTimeMillis()), sequence.getAndIncrement(),
+                bulkheadsOf(job));
+        job.future = task;
+        ready.add(task);
+        try {
+            execute(new Dispatch());
+        } catch (RejectedExecutionException e) {
+            ready.remove(task);
+            throw e;
+        }
+        return task;
+    }
+
+    /* Order key of a job queued at time now; saturates instead of overflowing */
+    static long rank(long priority, long aging, long now) {
+        if (aging <= 0)
+            return priority;
+        long limit = Long.MAX_VALUE / 4 / aging;
+        priority = Math.max(-limit, Math.min(limit, priority));
+        return priority * aging + now;
+    }
+
+    /* The limited bulkheads of a job, null if there are none */
+    private Bulkhead[] bulkheadsOf(Job job) {
+        if (bulkheads.isEmpty())
+            return null;
+        List<Bulkhead> result = new ArrayList<Bulkhead>();
+        Bulkhead b = bulkheads.get(job.getClass().getName());
+        if (b != null)
+            result.add(b);
+        for (String tag : job.tags()) {
+            b = bulkheads.get(tag);
+            if (b != null && !result.contains(b))
+                result.add(b);
+        }
+        return result.isEmpty() ? null : result.toArray(new Bulkhead[result.size()]);
+    }
+
+    /*
+     * Take a place in each of the task's bulkheads. If one is full, the
+     * task waits in it instead and false is returned.
+     */
+    private boolean enter(JobTask task) {
+        if (task.bulkheads == null)
+            return true;
+        synchronized (bulkheads) {
+            for (Bulkhead b : task.bulkheads) {
+                if (b.isFull()) {
+                    b.waiting.add(task);
+                    publish(b);
+                    return false;
+                }
+            }
+            for (Bulkhead b : task.bulkheads) {
+                b.running++;
+                publish(b);
+            }
+        }
+        return true;
+    }
+
+    /* Take a place in the task's bulkheads regardless of their limits */
+    private void forceEnter(JobTask task) {
+        if (task.bulkheads == null)
+            return;
+        synchronized (bulkheads) {
+            for (Bulkhead b : task.bulkheads) {
+                b.waiting.remove(task);
+                b.running++;
+                publish(b);
+            }
+        }
+    }
+
+    /*
+     * Give up the task's places and queue the first job waiting in each
+     * bulkhead again, with the executor it was scheduled on.
+     */
+    private void leave(JobTask task) {
+        if (task.bulkheads == null)
+            return;
+        synchronized (bulkheads) {
+            for (Bulkhead b : task.bulkheads) {
+                b.running--;
+                JobTask next;
+                while ((next = b.waiting.poll()) != null && next.isDone())
+                    ;
+                publish(b);
+                if (next != null)
+                    next.requeue();
+            }
+        }
+    }
+
+    private void publish(Bulkhead b) {
+        stats.setBulkheadOccupancy(b.name, b.running, b.waiting.size(), b.limit);
+    }
+
+    /**
+     * Stop executing jobs and return the ones that had not started yet.
+     */
+    List<Job> drain() {
+        shutdown();
+        List<JobTask> tasks = new ArrayList<JobTask>();
+        synchronized (bulkheads) {
+            for (Bulkhead b : bulkheads.values()) {
+                Iterator<JobTask> i = b.waiting.iterator();
+                while (i.hasNext()) {
+                    JobTask task = i.next();
+                    if (task.executor() == this) {
+                        tasks.add(task);
+                        i.remove();
+                    }
+                }
+                publish(b);
+            }
+            ready.drainTo(tasks);
+        }
+        shutdownNow();
+
+        List<Job> jobs = new ArrayList<Job>();
+        for (JobTask task : tasks) {
+            if (task.claim()) {
+                jobs.add(task.job);
+                task.cancel(false);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Set the number of jobs dispatched at once, at most the number of
+     * workers. Queued jobs start at once if it grew.
+     */
+    void setLimit(int n) {
+        int grown = n - limit;
+        limit = n;
+        for (int i = 0; i < grown && i < ready.size(); i++) {
+            try {
+                execute(new Dispatch());
+            } catch (RejectedExecutionException e) {
+                /* Shutting down */
+                return;
+            }
+        }
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /** Number of jobs dispatched from the queue that are running */
+    int getActiveJobs() {
+        return active.get();
+    }
+
+    /** Tell the controller how long each job ran */
+    void setController(ConcurrencyController controller) {
+        this.controller = controller;
+    }
+
+    /* Take a dispatch slot, unless all are in use */
+    private boolean acquire() {
+        int n;
+        do {
+            n = active.get();
+            if (n >= limit)
+                return false;
+        } while (!active.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    /*
+     * Give up a dispatch slot. A dispatch that found no slot has left its
+     * job in the queue, so dispatch again if there is one now.
+     */
+    private void release() {
+        if (active.decrementAndGet() < limit && ready.size() > 0) {
+            try {
+                execute(new Dispatch());
+            } catch (RejectedExecutionException e) {
+                /* Shutting down, drain() takes the queue */
+            }
+        }
+    }
+
+    /** Number of jobs waiting for a worker */
+    int getReadyJobs() {
+        return ready.size();
+    }
+
+    WorkerThread[] getWorkers() {
+        return workers.toArray(new WorkerThread[0]);
+    }
+
+    /**
+     * Runs the job at the head of the queue, skipping those that were
+     * cancelled or taken by a thread waiting for them. Leaves the queue
+     * alone if the limit of running jobs is reached; the next job to
+     * finish dispatches again.
+     */
+    private class Dispatch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            if (!acquire())
+                return;
+            try {
+                JobTask task;
+                while ((task = ready.poll()) != null) {
+                    /* A full bulkhead keeps the task, try the next one */
+                    if (task.isDone() || !enter(task))
+                        continue;
+                    if (task.claim()) {
+                        task.run();
+                        return;
+                    }
+                    leave(task);
+                }
+            } finally {
+                release();
+            }
+        }
+    }
+
+    /**
+     * The future of a queued job. The job runs once, either from the queue
+     * or in the thread of a job waiting for it. A job that is to be retried
+     * keeps its task, which is completed by the final attempt.
+     */
+    class JobTask extends ForkJoinTask<Void> {
+        private static final long serialVersionUID = 1L;
+
+        final Job job;
+        final long rank;
+        final long sequence;
+        final Bulkhead[] bulkheads;
+        /* When the job became runnable, in nanoseconds */
+        final long queued = System.nanoTime();
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        /* Set by the scheduler when the running attempt is to be retried */
+        private volatile Runnable retry;
+
+        JobTask(Job job, long rank, long sequence, Bulkhead[] bulkheads) {
+            this.job = job;
+            this.rank = rank;
+            this.sequence = sequence;
+            this.bulkheads = bulkheads;
+        }
+
+        @Override
+        public Void getRawResult() {
+            return null;
+        }
+
+        @Override
+        protected void setRawResult(Void value) {}
+
+        /* Only called when a waiting thread invokes the task */
+        @Override
+        protected boolean exec() {
+            /* Another thread took the job, it will complete the task */
+            if (!claim())
+                return false;
+            forceEnter(this);
+            return runJob();
+        }
+
+        JobExecutor executor() {
+            return JobExecutor.this;
+        }
+
+        /* Queue the task again after waiting in a bulkhead */
+        void requeue() {
+            ready.add(this);
+            try {
+                execute(new Dispatch());
+            } catch (RejectedExecutionException e) {
+                /* Shutting down, drain() takes it from the queue */
+            }
+        }
+
+        /* Take the job for running, unless it was cancelled or taken */
+        boolean claim() {
+            return !isDone() && claimed.compareAndSet(false, true);
+        }
+
+        /*
+         * Have the given action run once the current attempt has ended,
+         * instead of completing the task. The task stays claimed until
+         * resume() queues it again.
+         */
+        void retryWith(Runnable r) {
+            retry = r;
+        }
+
+        /*
+         * Queue the task again for its next attempt.
+         * @return false if the executor has stopped and the task is not
+         * queued
+         */
+        boolean resume() {
+            claimed.set(false);
+            ready.add(this);
+            try {
+                execute(new Dispatch());
+            } catch (RejectedExecutionException e) {
+                /* Unless drain() has taken it already */
+                if (ready.remove(this))
+                    return false;
+            }
+            return true;
+        }
+
+        /* Run a claimed job and complete the task, unless it is retried */
+        void run() {
+            if (runJob())
+                complete(null);
+        }
+
+        /* @return false if the job is to be retried */
+        private boolean runJob() {
+            Worker worker = null;
+            Job previous = null;
+            if (Thread.currentThread() instanceof Worker) {
+                worker = (Worker) Thread.currentThread();
+                previous = worker.current;
+                worker.current = job;
+                if (previous == null)
+                    worker.executor().stats.decIdleWorkerThreads();
+            }
+            String type = job.getClass().getName();
+            long start = System.nanoTime();
+            stats.addWaitTime(type, start - queued);
+            ResourceMeter meter = ResourceMeter.start(db);
+            try {
+                job.call();
+            } catch (Exception e) {
+                completeExceptionally(e);
+            } finally {
+                long time = System.nanoTime() - start;
+                meter.stop();
+                stats.addRunTime(type, time);
+                stats.addResourceUsage(type, job.plugin(), time,
+                        meter.cpuTime, meter.allocated, meter.dbTime);
+                ConcurrencyController c = controller;
+                if (c != null)
+                    c.completed(type, time);
+                leave(this);
+                if (worker != null) {
+                    worker.current = previous;
+                    if (previous == null)
+                        worker.executor().stats.incIdleWorkerThreads();
+                }
+            }
+            Runnable r = retry;
+            if (r == null)
+                return true;
+            retry = null;
+            r.run();
+            return false;
+        }
+    }
+
+    private static class WorkerFactory implements ForkJoinWorkerThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            Worker w = new Worker(pool);
+            w.setName("Scheduler worker " + count.incrementAndGet());
+            return w;
+        }
+    }
+
+    /**
+     * A pool thread. Stopping is up to the pool, which retires idle
+     * threads by itself.
+     */
+    static class Worker extends ForkJoinWorkerThread implements WorkerThread {
+        volatile Job current;
+
+        Worker(ForkJoinPool pool) {
+            super(pool);
+        }
+
+        JobExecutor executor() {
+            return (JobExecutor) getPool();
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            executor().workers.add(this);
+            executor().stats.incWorkerThreads();
+            executor().stats.incIdleWorkerThreads();
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            executor().workers.remove(this);
+            executor().stats.decWorkerThreads();
+            executor().stats.decIdleWorkerThreads();
+            super.onTermination(exception);
+        }
+
+        public void stopProcessing() {}
+
+        public Job executedJob() {
+            return current;
+        }
+
+        /**
+         * Runs the job in this thread if no other worker has started it,
+         * otherwise waits for it, letting the pool make up for the blocked
+         * worker.
+         */
+        public void takeJob(Job job) throws SchedulerException {
+            if (!(job.future instanceof JobTask))
+                throw new SchedulerException("Job " + job + " is not queued for execution");
+            ((JobTask) job.future).quietlyInvoke();
+        }
+    }
+}
+
+//vi: ai nosi sw=4 ts=4 expandtab
@@ -0,0 +1,283 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,  
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package eu.sqooss.impl.service.scheduler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import eu.sqooss.service.logging.Logger;
+
+/**
+ * Append-only file of the durable jobs that have not finished yet. Each
+ * line either adds a job:
+ * 
+ * <pre>+ id type dependency,dependency record</pre>
+ * 
+ * or removes one:
+ * 
+ * <pre>- id</pre>
+ * 
+ * with the fields separated by tabs. The file is read back on opening and
+ * rewritten with the pending jobs only whenever removed ones make up
+ * most of it.
+ * 
+ * Writes are buffered until {@link #flush()} hands them to the operating
+ * system, and reach the disk on {@link #sync()}, which the scheduler calls
+ * periodically. New jobs are flushed before they can run. Removals are
+ * not flushed on their own, so a job that finished shortly before a crash
+ * may still be in the journal: journaled jobs are restored at least once,
+ * and must tolerate running again.
+ */
+class JobJournal {
+
+    /* Lines written before the file is worth compacting */
+    private static final int COMPACT_MIN = 1024;
+
+    static class Entry {
+        final long id;
+        final String type;
+        final long[] dependencies;
+        final String record;
+
+        Entry(long id, String type, long[] dependencies, String record) {
+            this.id = id;
+            this.type = type;
+            this.dependencies = dependencies;
+            this.record = record;
+        }
+    }
+
+    private final File file;
+    private final Logger logger;
+    private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+    private FileOutputStream stream;
+    private Writer out;
+    /* Set when lines were written since the last sync */
+    private boolean dirty;
+    private long nextId = 1;
+    /* Jobs with lower ids were pending when the journal was opened */
+    private final long firstId;
+    private long lines;
+
+    JobJournal(File file, Logger logger) throws IOException {
+        this.file = file;
+        this.logger = logger;
+        if (file.exists())
+            read();
+        firstId = nextId;
+        compact();
+    }
+
+    private void read() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                try {
+                    parse(line);
+                } catch (RuntimeException e) {
+                    /* Most likely the last line, cut short by a crash */
+                    if (logger != null)
+                        logger.warn("Ignoring invalid job journal line: " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void parse(String line) {
+        String[] f = line.split("\t", 5);
+        long id = Long.parseLong(f[1]);
+        nextId = Math.max(nextId, id + 1);
+        if (f[0].equals("-")) {
+            pending.remove(id);
+            return;
+        }
+        if (!f[0].equals("+") || f.length != 5)
+            throw new IllegalArgumentException();
+        long[] deps = new long[0];
+        if (f[3].length() > 0) {
+            String[] d = f[3].split(",");
+            deps = new long[d.length];
+            for (int i = 0; i < d.length; i++)
+                deps[i] = Long.parseLong(d[i]);
+        }
+        pending.put(id, new Entry(id, f[2], deps, f[4]));
+    }
+
+    /* Rewrite the file with the pending jobs and continue appending to it */
+    private void compact() throws IOException {
+        if (out != null)
+            out.close();
+        File tmp = new File(file.getPath() + ".tmp");
+        open(tmp, false);
+        lines = 0;
+        for (Entry e : pending.values())
+            write(e);
+        out.flush();
+        stream.getChannel().force(false);
+        out.close();
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+            throw new IOException("Cannot replace job journal " + file);
+        open(file, true);
+        dirty = false;
+    }
+
+    private void open(File f, boolean append) throws IOException {
+        stream = new FileOutputStream(f, append);
+        out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+    }
+
+    private void write(Entry e) throws IOException {
+        StringBuilder b = new StringBuilder("+\t").append(e.id)
+            .append('\t').append(e.type).append('\t');
+        for (int i = 0; i < e.dependencies.length; i++) {
+            if (i > 0)
+                b.append(',');
+            b.append(e.dependencies[i]);
+        }
+        b.append('\t').append(e.record).append('\n');
+        out.write(b.toString());
+        lines++;
+        dirty = true;
+    }
+
+    /** A new id, for a job that may be added later */
+    synchronized long reserve() {
+        return nextId++;
+    }
+
+    /**
+     * Record a pending job under a reserved id.
+     */
+    synchronized void add(long id, String type, long[] dependencies,
+            String record) throws IOException {
+        if (type.indexOf('\t') >= 0 || record.indexOf('\n') >= 0
+                || record.indexOf('\r') >= 0)
+            throw new IOException("Invalid job journal record: " + record);
+        Entry e = new Entry(id, type, dependencies, record);
+        pending.put(id, e);
+        write(e);
+    }
+
+    /**
+     * Forget a job, because it has finished, failed or was dequeued. The
+     * removal is written with the next flush or sync.
+     */
+    synchronized void remove(long id) throws IOException {
+        if (pending.remove(id) == null)
+            return;
+        out.write("-\t" + id + "\n");
+        lines++;
+        dirty = true;
+        if (lines > COMPACT_MIN && lines > 4L * pending.size())
+            compact();
+    }
+
+    synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Write the buffered lines and force them to the disk, if any were
+     * written since the last sync. Adding and removing jobs does not wait
+     * for the disk.
+     */
+    void sync() throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (!dirty)
+                return;
+            out.flush();
+            dirty = false;
+            channel = stream.getChannel();
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            /* Compacted meanwhile, which forces the new file */
+        }
+    }
+
+    synchronized boolean isPending(long id) {
+        return pending.containsKey(id);
+    }
+
+    /**
+     * The jobs of a type that were pending when the journal was opened
+     * and are still there, oldest first.
+     */
+    synchronized List<Entry> restorable(String type) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Entry e : pending.values())
+            if (e.id < firstId && e.type.equals(type))
+                entries.add(e);
+        return entries;
+    }
+
+    /** Ids of the jobs the pending ones depend on */
+    synchronized Set<Long> dependencies() {
+        Set<Long> ids = new HashSet<Long>();
+        for (Entry e : pending.values())
+            for (long dep : e.dependencies)
+                ids.add(dep);
+        return ids;
+    }
+
+    synchronized void close() throws IOException {
+        out.flush();
+        stream.getChannel().force(false);
+        out.close();
+    }
+}
+
+//vi: ai nosi sw=4 ts=4 expandtab
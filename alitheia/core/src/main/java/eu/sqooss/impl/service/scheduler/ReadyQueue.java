@@ -0,0 +1,227 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,  
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package eu.sqooss.impl.service.scheduler;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import eu.sqooss.impl.service.scheduler.JobExecutor.JobTask;
+import eu.sqooss.service.logging.Logger;
+import eu.sqooss.service.scheduler.SchedulerStats;
+
+/**
+ * Runnable jobs, shared fairly between the projects they work on. Each
+ * project has its own queue, in job order, and the projects take turns by
+ * stride scheduling: every job taken from a project advances its pass by
+ * the inverse of its weight, and the next job comes from the project with
+ * the lowest pass. A project that becomes busy again starts at the pass of
+ * the last project served, so that idle time does not build up credit.
+ * Jobs that belong to no project share a queue of their own.
+ * 
+ * All workers of an executor share one queue, under one lock, because the
+ * turns of the projects and the job order are decisions over all
+ * runnable jobs; queues per worker would only be fair within each worker.
+ * The lock is held for a few heap operations per job, and the size is
+ * read without it. Threads that had to wait for the lock are counted in
+ * {@link SchedulerStats}, with the time they waited.
+ */
+class ReadyQueue {
+
+    private static final Object NO_PROJECT = new Object();
+
+    private class Flow {
+        final double stride;
+        final long id = flowCount++;
+        final PriorityQueue<JobTask> tasks;
+        double pass;
+
+        Flow(int weight) {
+            stride = 1.0 / weight;
+            tasks = new PriorityQueue<JobTask>(16, order);
+        }
+    }
+
+    private final Comparator<JobTask> order;
+    private final Map<Long, Integer> weights;
+    private final Map<Object, Flow> flows = new HashMap<Object, Flow>();
+    private final PriorityQueue<Flow> busy = new PriorityQueue<Flow>(16,
+            new Comparator<Flow>() {
+        public int compare(Flow a, Flow b) {
+            if (a.pass != b.pass)
+                return a.pass < b.pass ? -1 : 1;
+            return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+        }
+    });
+    private long flowCount;
+    private double virtualTime;
+    /* Written under the lock */
+    private volatile int size;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final SchedulerStats stats;
+
+    /**
+     * @param order The order of jobs within a project
+     * @param weights Shares of projects by id; others have a share of 1
+     * @param stats Counts the waits for the queue
+     */
+    ReadyQueue(Comparator<JobTask> order, Map<Long, Integer> weights,
+            SchedulerStats stats) {
+        this.order = order;
+        this.weights = weights;
+        this.stats = stats;
+    }
+
+    /* Take the lock, counting the time spent waiting if it is held */
+    private void lock() {
+        if (lock.tryLock())
+            return;
+        long start = System.nanoTime();
+        lock.lock();
+        stats.addReadyQueueWait(System.nanoTime() - start);
+    }
+
+    /**
+     * Parse the shares of projects from a list of project id and weight
+     * pairs, as in "12=4,15=2".
+     */
+    static Map<Long, Integer> parse(String spec, Logger logger) {
+        Map<Long, Integer> weights = new HashMap<Long, Integer>();
+        if (spec == null)
+            return weights;
+        for (String entry : spec.split(",")) {
+            if (entry.trim().length() == 0)
+                continue;
+            int eq = entry.indexOf('=');
+            try {
+                if (eq <= 0)
+                    throw new NumberFormatException();
+                int weight = Integer.parseInt(entry.substring(eq + 1).trim());
+                if (weight <= 0)
+                    throw new NumberFormatException();
+                weights.put(Long.parseLong(entry.substring(0, eq).trim()), weight);
+            } catch (NumberFormatException nfe) {
+                if (logger != null)
+                    logger.warn("Invalid project share:" + entry);
+            }
+        }
+        return weights;
+    }
+
+    void add(JobTask task) {
+        Long project = task.job.projectId();
+        Object key = (project == null) ? NO_PROJECT : project;
+        lock();
+        try {
+            Flow f = flows.get(key);
+            if (f == null) {
+                Integer weight = (project == null) ? null : weights.get(project);
+                f = new Flow(weight == null ? 1 : weight);
+                flows.put(key, f);
+            }
+            if (f.tasks.isEmpty()) {
+                f.pass = Math.max(f.pass, virtualTime);
+                busy.add(f);
+            }
+            f.tasks.add(task);
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The next job in turn, or null if there is none */
+    JobTask poll() {
+        if (size == 0)
+            return null;
+        lock();
+        try {
+            Flow f = busy.poll();
+            if (f == null)
+                return null;
+            JobTask task = f.tasks.poll();
+            size--;
+            virtualTime = f.pass;
+            f.pass += f.stride;
+            if (!f.tasks.isEmpty())
+                busy.add(f);
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean remove(JobTask task) {
+        lock();
+        try {
+            for (Flow f : flows.values()) {
+                if (f.tasks.remove(task)) {
+                    size--;
+                    if (f.tasks.isEmpty())
+                        busy.remove(f);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void drainTo(Collection<JobTask> tasks) {
+        lock();
+        try {
+            for (Flow f : busy) {
+                tasks.addAll(f.tasks);
+                f.tasks.clear();
+            }
+            busy.clear();
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The number of queued jobs, which may be changing meanwhile */
+    int size() {
+        return size;
+    }
+}
+
+//vi: ai nosi sw=4 ts=4 expandtab
@@ -0,0 +1,154 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,  
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package eu.sqooss.impl.service.scheduler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import eu.sqooss.service.db.DBService;
+
+/**
+ * Measures the CPU time, allocated bytes and database session time of a
+ * job, through the platform's {@link ThreadMXBean} and the database
+ * service. Jobs run in the thread of a job waiting for them are measured
+ * on their own and taken out of the figures of the waiting job.
+ * 
+ * Allocations are read through com.sun.management.ThreadMXBean, when the
+ * JVM has it; it is looked up by reflection, as bundles do not see the
+ * com.sun packages.
+ */
+final class ResourceMeter {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final Method allocatedBytes = allocatedBytesMethod();
+    private static final boolean cpu = cpuTimeEnabled();
+
+    /* Usage of the jobs run within the one being measured on this thread */
+    private static final ThreadLocal<long[]> nested = new ThreadLocal<long[]>();
+
+    private final DBService db;
+    private final long[] outer;
+    private final long[] inner = new long[3];
+    private final long startCpu, startAllocated, startDb;
+
+    /* What the job used itself, once stopped */
+    long cpuTime, allocated, dbTime;
+
+    private ResourceMeter(DBService db) {
+        this.db = db;
+        outer = nested.get();
+        nested.set(inner);
+        startCpu = cpuTime();
+        startAllocated = allocatedBytes();
+        startDb = (db == null) ? -1 : db.getSessionTime();
+    }
+
+    /** Start measuring a job run by the current thread */
+    static ResourceMeter start(DBService db) {
+        return new ResourceMeter(db);
+    }
+
+    /** Stop measuring, in the thread that started */
+    void stop() {
+        long c = delta(startCpu, cpuTime());
+        long a = delta(startAllocated, allocatedBytes());
+        long d = delta(startDb, (db == null) ? -1 : db.getSessionTime());
+        cpuTime = (c < 0) ? -1 : c - inner[0];
+        allocated = (a < 0) ? -1 : a - inner[1];
+        dbTime = (d < 0) ? -1 : d - inner[2];
+        nested.set(outer);
+        if (outer != null) {
+            outer[0] += Math.max(c, 0);
+            outer[1] += Math.max(a, 0);
+            outer[2] += Math.max(d, 0);
+        }
+    }
+
+    private static long delta(long start, long end) {
+        return (start < 0 || end < 0) ? -1 : end - start;
+    }
+
+    private static long cpuTime() {
+        return cpu ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long allocatedBytes() {
+        if (allocatedBytes == null)
+            return -1;
+        try {
+            return (Long) allocatedBytes.invoke(threads,
+                    Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static boolean cpuTimeEnabled() {
+        try {
+            if (!threads.isCurrentThreadCpuTimeSupported())
+                return false;
+            if (!threads.isThreadCpuTimeEnabled())
+                threads.setThreadCpuTimeEnabled(true);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    private static Method allocatedBytesMethod() {
+        try {
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean",
+                    true, ClassLoader.getSystemClassLoader());
+            if (!c.isInstance(threads))
+                return null;
+            Method m = c.getMethod("getThreadAllocatedBytes", long.class);
+            Method supported = c.getMethod("isThreadAllocatedMemorySupported");
+            Method enabled = c.getMethod("isThreadAllocatedMemoryEnabled");
+            if (!(Boolean) supported.invoke(threads))
+                return null;
+            if (!(Boolean) enabled.invoke(threads))
+                c.getMethod("setThreadAllocatedMemoryEnabled", boolean.class)
+                    .invoke(threads, true);
+            return m;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
+
+//vi: ai nosi sw=4 ts=4 expandtab
@@ -0,0 +1,102 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,  
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package eu.sqooss.impl.service.scheduler;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import eu.sqooss.service.logging.Logger;
+
+/**
+ * How often and after how long a job is retried after a kind of transient
+ * failure. The delay doubles with every attempt, from <tt>initial</tt> up
+ * to <tt>max</tt> milliseconds, and a random half of it is taken off, so
+ * that jobs failing together on a busy database do not come back together.
+ */
+class RetryPolicy {
+
+    final int attempts;
+    final long initial;
+    final long max;
+
+    RetryPolicy(int attempts, long initial, long max) {
+        this.attempts = attempts;
+        this.initial = initial;
+        this.max = Math.max(initial, max);
+    }
+
+    /**
+     * Parse a policy from "attempts,initial,max".
+     * @return The policy, or <tt>dflt</tt> if the spec is missing or
+     * invalid
+     */
+    static RetryPolicy parse(String spec, RetryPolicy dflt, Logger logger) {
+        if (spec == null || spec.trim().length() == 0)
+            return dflt;
+        String[] f = spec.split(",");
+        try {
+            if (f.length != 3)
+                throw new NumberFormatException();
+            RetryPolicy p = new RetryPolicy(Integer.parseInt(f[0].trim()),
+                    Long.parseLong(f[1].trim()), Long.parseLong(f[2].trim()));
+            if (p.attempts < 0 || p.initial < 0)
+                throw new NumberFormatException();
+            return p;
+        } catch (NumberFormatException nfe) {
+            if (logger != null)
+                logger.warn("Invalid retry policy:" + spec);
+            return dflt;
+        }
+    }
+
+    /**
+     * Milliseconds to wait before the given attempt, counting from 1.
+     */
+    long delay(int attempt) {
+        long d = initial;
+        for (int i = 1; i < attempt && d < max; i++)
+            d *= 2;
+        d = Math.min(d, max);
+        if (d < 2)
+            return d;
+        return d - ThreadLocalRandom.current().nextLong(d / 2 + 1);
+    }
+
+    @Override
+    public String toString() {
+        return attempts + "," + initial + "," + max;
+    }
+}
+
+//vi: ai nosi sw=4 ts=4 expandtab
@@ -33,18 +33,42 @@
 
 package eu.sqooss.impl.service.scheduler;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.LinkedList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.osgi.framework.BundleContext;
 
+import eu.sqooss.core.AlitheiaCore;
+import eu.sqooss.service.db.DBService;
 import eu.sqooss.service.logging.Logger;
+import eu.sqooss.service.scheduler.DurableJob;
 import eu.sqooss.service.scheduler.Job;
+import eu.sqooss.service.scheduler.JobFactory;
 import eu.sqooss.service.scheduler.ResumePoint;
+import eu.sqooss.service.scheduler.RetryException;
 import eu.sqooss.service.scheduler.Scheduler;
 import eu.sqooss.service.scheduler.SchedulerException;
 import eu.sqooss.service.scheduler.SchedulerStats;
@@ -54,93 +78,269 @@ public class SchedulerServiceImpl implements Scheduler {
 
     private static final String START_THREADS_PROPERTY = "eu.sqooss.scheduler.numthreads";
     private static final String PERF_LOG_PROPERTY = "eu.sqooss.log.perf";
+    private static final String AGING_PROPERTY = "eu.sqooss.scheduler.aging";
+    private static final long DEFAULT_AGING = 100;
+    private static final String BULKHEADS_PROPERTY = "eu.sqooss.scheduler.bulkheads";
+    private static final String IO_THREADS_PROPERTY = "eu.sqooss.scheduler.iothreads";
+    private static final int DEFAULT_IO_THREADS = 64;
+    private static final String SHARES_PROPERTY = "eu.sqooss.scheduler.shares";
+    private static final String JOURNAL_PROPERTY = "eu.sqooss.scheduler.journal";
+    /* Milliseconds between forcing the journal to the disk */
+    private static final long JOURNAL_SYNC = 1000;
+    private static final String MAX_QUEUED_PROPERTY = "eu.sqooss.scheduler.admission.queued";
+    private static final long DEFAULT_MAX_QUEUED = 200000;
+    private static final String MAX_HEAP_PROPERTY = "eu.sqooss.scheduler.admission.heap";
+    private static final double DEFAULT_MAX_HEAP = 0.85;
+    private static final String MIN_THREADS_PROPERTY = "eu.sqooss.scheduler.minthreads";
+    private static final String SESSION_WAIT_PROPERTY = "eu.sqooss.scheduler.sessionwait";
+    private static final long DEFAULT_SESSION_WAIT = 20;
+    private static final String BUDGETS_PROPERTY = "eu.sqooss.scheduler.budgets";
+    private static final String RETRY_PROPERTY = "eu.sqooss.scheduler.retry.";
+    private static final Map<RetryException.Failure, RetryPolicy> DEFAULT_RETRIES =
+        new EnumMap<RetryException.Failure, RetryPolicy>(RetryException.Failure.class);
+    static {
+        DEFAULT_RETRIES.put(RetryException.Failure.LOCK, new RetryPolicy(5, 200, 30000));
+        DEFAULT_RETRIES.put(RetryException.Failure.CONNECTION, new RetryPolicy(10, 1000, 300000));
+        DEFAULT_RETRIES.put(RetryException.Failure.PLUGIN, new RetryPolicy(3, 1000, 60000));
+    }
     
     private Logger logger = null;
     private boolean perfLog = false;
 
     private SchedulerStats stats = new SchedulerStats();
 
-    // thread safe job queue
-    private PriorityQueue<Job> blockedQueue = new PriorityQueue<Job>(1,
-            new JobPriorityComparator());
+    /* Jobs waiting for their dependencies. Whoever removes a job from
+     * here hands it to the executor, so each job is released once. */
+    private Set<Job> blockedJobs =
+        Collections.newSetFromMap(new ConcurrentHashMap<Job, Boolean>());
 
     private BlockingQueue<Job> failedQueue = new ArrayBlockingQueue<Job>(1000);
 
-	private ExecutorService executorService;
+	private volatile JobExecutor executorService;
+	/* Runs the I/O bound jobs, if enabled */
+	private volatile JobExecutor ioExecutorService;
 	
-	private List<Runnable> frozenJobs = new LinkedList<Runnable>();
+	/* Runnable jobs kept while execution is stopped, guarded by itself */
+	private Set<Job> frozenJobs = new LinkedHashSet<Job>();
+
+    /* Holds up producers while the scheduler is full, if executing */
+    private volatile AdmissionControl admission;
+
+    /* Adapts the number of running jobs, if enabled */
+    private ScheduledFuture<?> controller;
+
+    /* Cancels jobs running over their time budget, while executing */
+    private volatile Watchdog watchdog;
+    private ScheduledFuture<?> watchdogTask;
+
+    /* Retry policies by kind of failure */
+    private volatile Map<RetryException.Failure, RetryPolicy> retryPolicies =
+        DEFAULT_RETRIES;
+
+    /* Queues failed jobs again once their backoff delay is over, and
+     * runs the concurrency controller and the watchdog */
+    private final ScheduledThreadPoolExecutor timer =
+        new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Scheduler timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    {
+        timer.setKeepAliveTime(1, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+    }
+
+    /* Pending durable jobs, if enabled */
+    private volatile JobJournal journal;
+    /* Journal ids of queued durable jobs and of those depended on before
+     * being queued */
+    private ConcurrentMap<Job, Long> journalIds = new ConcurrentHashMap<Job, Long>();
+    /* Restored jobs by their old journal id, while pending records depend
+     * on them; guarded by itself */
+    private Map<Long, Job> restoredJobs = new HashMap<Long, Job>();
+
+    /* Pending or running jobs by class and key, and the jobs collapsed
+     * onto them; both guarded by keyedJobs */
+    private final Map<String, Job> keyedJobs = new HashMap<String, Job>();
+    private final Map<Job, List<Job>> collapsedJobs = new HashMap<Job, List<Job>>();
 
-    private List<WorkerThread> myWorkerThreads = null;
-    
     private boolean isExecuting = false;
     
     public SchedulerServiceImpl() { }
 
     public void enqueue(Job job) throws SchedulerException {
-        synchronized (this) {
-            if (logger != null)
-                logger.debug("SchedulerServiceImpl: queuing job " + job.toString());
-            job.callAboutToBeEnqueued(this);
-            blockedQueue.add(job);
-            stats.addWaitingJob(job.getClass().toString());
-            stats.incTotalJobs();
-        }
+        if (logger != null)
+            logger.debug("SchedulerServiceImpl: queuing job " + job.toString());
+        admit();
+        job.callAboutToBeEnqueued(this);
+        if (collapse(job))
+            return;
+        journal(job);
+        flushJournal();
+        blockedJobs.add(job);
+        stats.addWaitingJob(job.getClass().getName());
+        stats.incTotalJobs();
         jobDependenciesChanged(job);
     }
     
     public void enqueueNoDependencies(Set<Job> jobs) throws SchedulerException {
-        synchronized (this) {
-            for (Job job : jobs) {
-                if (logger != null)
-                    logger.debug("Scheduler ServiceImpl: queuing job "
-                        + job.toString());
-                job.callAboutToBeEnqueued(this);
-
-                Future<Void> future = executorService.submit(job); 
-                job.future = future;
-
-                stats.addWaitingJob(job.getClass().toString());
-                stats.incTotalJobs();
-            }
+        for (Job job : jobs) {
+            if (logger != null)
+                logger.debug("Scheduler ServiceImpl: queuing job "
+                    + job.toString());
+            admit();
+            job.callAboutToBeEnqueued(this);
+            if (collapse(job))
+                continue;
+            journal(job);
+            stats.addWaitingJob(job.getClass().getName());
+            stats.incTotalJobs();
+            submit(job);
         }
+        flushJournal();
     }
     
     public void enqueueBlock(List<Job> jobs) throws SchedulerException {
-        synchronized (this) {
-            for (Job job : jobs) {
-                if (logger != null)
-                    logger.debug("SchedulerServiceImpl: queuing job " + job.toString());
-                job.callAboutToBeEnqueued(this);
-                blockedQueue.add(job);
-                stats.addWaitingJob(job.getClass().toString());
-                stats.incTotalJobs();
+        admit();
+        queueBlock(jobs);
+    }
+
+    private void queueBlock(List<Job> jobs) throws SchedulerException {
+        jobs = new ArrayList<Job>(jobs);
+        for (Iterator<Job> i = jobs.iterator(); i.hasNext(); ) {
+            Job job = i.next();
+            if (logger != null)
+                logger.debug("SchedulerServiceImpl: queuing job " + job.toString());
+            job.callAboutToBeEnqueued(this);
+            if (collapse(job)) {
+                i.remove();
+                continue;
             }
+            journal(job);
+            blockedJobs.add(job);
+            stats.addWaitingJob(job.getClass().getName());
+            stats.incTotalJobs();
         }
+        flushJournal();
         for (Job job : jobs)
             jobDependenciesChanged(job);
     }
 
+    /*
+     * Wait while the scheduler is full. A block of jobs is let in as a
+     * whole, as its jobs may depend on each other. Jobs queuing jobs are
+     * let through, as the queue may only drain once they are done.
+     */
+    private void admit() throws SchedulerException {
+        if (!(Thread.currentThread() instanceof WorkerThread))
+            awaitAdmission();
+    }
+
+    /**
+     * Waits while the scheduler is full, also in a worker thread.
+     */
+    public void awaitAdmission() throws SchedulerException {
+        AdmissionControl a = admission;
+        if (a != null)
+            a.admit();
+    }
+
+    /*
+     * Collapse a job without dependencies onto a pending or running job of
+     * the same class and key, which it then ends with. Otherwise the job
+     * becomes the one others collapse onto.
+     * @return Whether the job was collapsed and must not be queued
+     */
+    private boolean collapse(Job job) {
+        String key = job.key();
+        if (key == null)
+            return false;
+        key = job.getClass().getName() + " " + key;
+        synchronized (keyedJobs) {
+            Job equivalent = keyedJobs.get(key);
+            if (equivalent == null) {
+                keyedJobs.put(key, job);
+                return false;
+            }
+            if (!job.dependencies().isEmpty())
+                return false;
+            List<Job> collapsed = collapsedJobs.get(equivalent);
+            if (collapsed == null) {
+                collapsed = new ArrayList<Job>();
+                collapsedJobs.put(equivalent, collapsed);
+            }
+            collapsed.add(job);
+        }
+        stats.addCollapsedJob();
+        if (logger != null)
+            logger.debug("SchedulerServiceImpl: job " + job
+                    + " is already pending, not queuing it again");
+        return true;
+    }
+
+    /* The jobs collapsed onto a job that left the queue, which is no
+     * longer pending for its key */
+    private List<Job> uncollapse(Job job) {
+        String key = job.key();
+        if (key == null)
+            return Collections.emptyList();
+        key = job.getClass().getName() + " " + key;
+        synchronized (keyedJobs) {
+            if (keyedJobs.get(key) == job)
+                keyedJobs.remove(key);
+            List<Job> collapsed = collapsedJobs.remove(job);
+            return collapsed == null ? Collections.<Job>emptyList() : collapsed;
+        }
+    }
+
     public void dequeue(Job job) {
-        synchronized (this) {
-            if (!blockedQueue.contains(job) && job.future == null) {
-                if (logger != null) {
-                    logger.info("SchedulerServiceImpl: job " + job.toString()
-                            + " not found in the queue.");
+        synchronized (keyedJobs) {
+            for (List<Job> collapsed : collapsedJobs.values()) {
+                if (collapsed.remove(job)) {
+                    job.callAboutToBeDequeued(this);
+                    return;
                 }
-                return;
             }
-            job.callAboutToBeDequeued(this);
-            blockedQueue.remove(job);
-            if (job.future != null) {
-            	job.future.cancel(false);
+        }
+        boolean queued = blockedJobs.remove(job);
+        synchronized (frozenJobs) {
+            queued |= frozenJobs.remove(job);
+        }
+        Future<Void> future = job.future;
+        if (future != null && future.cancel(false)) {
+            job.future = null;
+            queued = true;
+        }
+
+        if (!queued) {
+            if (logger != null) {
+                logger.info("SchedulerServiceImpl: job " + job.toString()
+                        + " not found in the queue.");
             }
-            
-            stats.removeWaitingJob(job.getClass().toString());
-            stats.decTotalJobs();
+            return;
         }
-        if (logger != null) {
-            logger.warn("SchedulerServiceImpl: job " + job.toString()
-                    + " not found in the queue.");
+        job.callAboutToBeDequeued(this);
+        unjournal(job);
+        stats.removeWaitingJob(job.getClass().getName());
+        stats.decTotalJobs();
+        AdmissionControl a = admission;
+        if (a != null)
+            a.released();
+
+        /* The jobs collapsed onto it still want the work done */
+        List<Job> collapsed = uncollapse(job);
+        if (collapsed.isEmpty())
+            return;
+        for (Job c : collapsed)
+            c.callAboutToBeDequeued(this);
+        try {
+            queueBlock(collapsed);
+        } catch (SchedulerException e) {
+            if (logger != null)
+                logger.warn("Cannot queue jobs waiting for " + job + ": "
+                        + e.getMessage());
         }
     }
 
@@ -157,15 +357,32 @@ public class SchedulerServiceImpl implements Scheduler {
             logger.debug("Job " + job + " changed to state " + state);
         }
 
+        if (state == Job.State.Finished || state == Job.State.Error) {
+            unjournal(job);
+            AdmissionControl a = admission;
+            if (a != null)
+                a.released();
+            for (Job c : uncollapse(job))
+                c.callCollapsed(job);
+        }
+
+        Watchdog w = watchdog;
+        if (w != null) {
+            if (state == Job.State.Running)
+                w.started(job);
+            else
+                w.stopped(job);
+        }
+
         if (state == Job.State.Finished) {
             stats.removeRunJob(job);
             stats.incFinishedJobs();
         } else if (state == Job.State.Running) {
-            stats.removeWaitingJob(job.getClass().toString());
+            stats.removeWaitingJob(job.getClass().getName());
             stats.addRunJob(job);
         } else if (state == Job.State.Yielded) {
             stats.removeRunJob(job);
-            stats.addWaitingJob(job.getClass().toString());
+            stats.addWaitingJob(job.getClass().getName());
         } else if (state == Job.State.Error) {
 
             if (failedQueue.remainingCapacity() == 1)
@@ -173,23 +390,208 @@ public class SchedulerServiceImpl implements Scheduler {
             failedQueue.add(job);
             
             stats.removeRunJob(job);
-            stats.addFailedJob(job.getClass().toString());
+            stats.addFailedJob(job.getClass().getName());
+        }
+    }
+
+    /* Record a durable job in the journal, before it can run */
+    private void journal(Job job) {
+        JobJournal j = journal;
+        if (j == null || !(job instanceof DurableJob))
+            return;
+        DurableJob d = (DurableJob) job;
+        String record = d.journalRecord();
+        if (record == null)
+            return;
+        try {
+            j.add(journalId(j, job), d.journalType(),
+                    journaledDependencies(j, job), record);
+        } catch (IOException e) {
+            if (logger != null)
+                logger.warn("Cannot journal job " + job + ": " + e.getMessage());
+        }
+    }
+
+    private long journalId(JobJournal j, Job job) {
+        Long id = journalIds.get(job);
+        if (id == null) {
+            Long reserved = j.reserve();
+            id = journalIds.putIfAbsent(job, reserved);
+            if (id == null)
+                id = reserved;
+        }
+        return id;
+    }
+
+    /*
+     * Ids of the durable jobs the job depends on, looking through the
+     * dependencies of the ones that are not durable.
+     */
+    private long[] journaledDependencies(JobJournal j, Job job) {
+        List<Long> ids = new ArrayList<Long>();
+        Set<Job> seen = new HashSet<Job>();
+        Deque<Job> todo = new ArrayDeque<Job>(job.dependencies());
+        while (!todo.isEmpty()) {
+            Job dep = todo.pop();
+            if (!seen.add(dep))
+                continue;
+            if (dep instanceof DurableJob && ((DurableJob) dep).journalRecord() != null)
+                ids.add(journalId(j, dep));
+            else
+                todo.addAll(dep.dependencies());
         }
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ids.get(i);
+        return result;
     }
 
+    private void unjournal(Job job) {
+        Long id = journalIds.remove(job);
+        JobJournal j = journal;
+        if (id == null || j == null)
+            return;
+        try {
+            j.remove(id);
+        } catch (IOException e) {
+            if (logger != null)
+                logger.warn("Cannot remove job " + job + " from the journal: "
+                        + e.getMessage());
+        }
+    }
+
+    private void flushJournal() {
+        JobJournal j = journal;
+        if (j == null)
+            return;
+        try {
+            j.flush();
+        } catch (IOException e) {
+            if (logger != null)
+                logger.warn("Cannot write the job journal: " + e.getMessage());
+        }
+    }
+
+    /* Force the journal to the disk, along with the removals since the last time */
+    private void syncJournal() {
+        JobJournal j = journal;
+        if (j == null)
+            return;
+        try {
+            j.sync();
+        } catch (IOException e) {
+            if (logger != null)
+                logger.warn("Cannot write the job journal: " + e.getMessage());
+        }
+    }
+
+    public int restoreJobs(String type, JobFactory factory) throws SchedulerException {
+        JobJournal j = journal;
+        if (j == null)
+            return 0;
+        int restored = 0;
+        synchronized (restoredJobs) {
+            boolean progress = true;
+            while (progress) {
+                progress = false;
+                for (JobJournal.Entry e : j.restorable(type)) {
+                    if (!dependenciesRestored(j, e))
+                        continue;
+                    Job job;
+                    try {
+                        job = factory.restore(e.record);
+                    } catch (Exception ex) {
+                        if (logger != null)
+                            logger.warn("Dropping journaled " + type + " job "
+                                    + e.record + ": " + ex.getMessage());
+                        forget(j, e);
+                        continue;
+                    }
+                    if (job == null)
+                        continue;
+                    for (long dep : e.dependencies) {
+                        Job d = restoredJobs.get(dep);
+                        if (d != null)
+                            job.addDependency(d);
+                    }
+                    restoredJobs.put(e.id, job);
+                    enqueue(job);
+                    forget(j, e);
+                    restored++;
+                    progress = true;
+                }
+            }
+            restoredJobs.keySet().retainAll(j.dependencies());
+        }
+        flushJournal();
+        return restored;
+    }
+
+    /* Jobs are restored once no pending record they depend on is left */
+    private boolean dependenciesRestored(JobJournal j, JobJournal.Entry e) {
+        for (long dep : e.dependencies)
+            if (j.isPending(dep))
+                return false;
+        return true;
+    }
+
+    private void forget(JobJournal j, JobJournal.Entry e) {
+        try {
+            j.remove(e.id);
+        } catch (IOException ex) {
+            if (logger != null)
+                logger.warn("Cannot write the job journal: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Releases the job to the executor once its last dependency has
+     * finished. Jobs keep a count of their unfinished dependencies, so this
+     * does not look at the rest of the graph.
+     */
     public void jobDependenciesChanged(Job job) {
-        synchronized (this) {
-            if (jobIsQueuedForWork(job) && !job.canExecute()) {
-                if (job.future.cancel(false)) {
-                	job.future = null;
-                	blockedQueue.add(job);                	
-                }                
-            } else if (job.canExecute()) {
-                blockedQueue.remove(job);
-                Future<Void> future = executorService.submit(job);
-                job.future = future;
+        if (job.canExecute() && blockedJobs.remove(job))
+            submit(job);
+    }
+
+    /*
+     * Hand a runnable job to the executor, or keep it until execution
+     * starts.
+     */
+    private void submit(Job job) {
+        JobExecutor executor = executorFor(job);
+        if (executor != null) {
+            try {
+                job.future = executor.schedule(job);
+                return;
+            } catch (RejectedExecutionException e) {
+                /* Stopped meanwhile */
             }
         }
+        synchronized (frozenJobs) {
+            job.future = null;
+            frozenJobs.add(job);
+        }
+        /* Started meanwhile, the frozen jobs might have been missed */
+        if (executorFor(job) != null)
+            releaseFrozenJobs();
+    }
+
+    private JobExecutor executorFor(Job job) {
+        JobExecutor io = ioExecutorService;
+        if (io != null && Arrays.asList(job.tags()).contains(Job.IO_BOUND))
+            return io;
+        return executorService;
+    }
+
+    private void releaseFrozenJobs() {
+        List<Job> jobs;
+        synchronized (frozenJobs) {
+            jobs = new ArrayList<Job>(frozenJobs);
+            frozenJobs.clear();
+        }
+        for (Job job : jobs)
+            submit(job);
     }
 
     /**
@@ -198,23 +600,235 @@ public class SchedulerServiceImpl implements Scheduler {
      */
     public boolean jobIsQueuedForWork(Job job)
     {
-    	return (job.future != null && !job.future.isDone());
+        Future<Void> future = job.future;
+    	return (future != null && !future.isDone());
     }
     
-    public void startExecute(int n) {
-        executorService = Executors.newCachedThreadPool();
-        for(Runnable runnable : frozenJobs)
-        {
-        	Job job = (Job)runnable;
-            Future<Void> future = executorService.submit(job); 
-            job.future = future;
+    /**
+     * Starts a work-stealing pool of \a n worker threads, or twice as many
+     * as the available processors if \a n is not positive. The pool does not
+     * grow beyond that, except to make up for workers that wait for
+     * another job to finish. Jobs run in priority order, aged by the
+     * number of milliseconds per priority level in eu.sqooss.scheduler.aging.
+     * The number of running jobs per job class or tag is capped by the
+     * limits in eu.sqooss.scheduler.bulkheads. Jobs that fail for a
+     * transient reason are retried as set per kind of failure in
+     * eu.sqooss.scheduler.retry.lock, .connection and .plugin. Projects
+     * take turns in running their jobs, weighted by the shares in
+     * eu.sqooss.scheduler.shares.
+     * 
+     * Jobs running over their time budget are cancelled. The budgets in
+     * eu.sqooss.scheduler.budgets, by job class or tag, override those
+     * the jobs declare.
+     * 
+     * If eu.sqooss.scheduler.minthreads is lower than \a n, the number
+     * of jobs run at once adapts to the load of the database, within
+     * those bounds. It is cut while starting a database session takes
+     * longer than eu.sqooss.scheduler.sessionwait milliseconds, or jobs
+     * run much longer than usual.
+     * 
+     * While executing, threads queuing jobs wait as long as
+     * eu.sqooss.scheduler.admission.queued jobs are waiting, or the share
+     * of the heap in eu.sqooss.scheduler.admission.heap is in use. Jobs
+     * queuing jobs do not, unless they call awaitAdmission().
+     * 
+     * Jobs tagged {@link Job#IO_BOUND} run on a separate pool of
+     * eu.sqooss.scheduler.iothreads threads, so that jobs blocked on I/O
+     * do not hold up the workers of CPU bound jobs. 0 runs them with the
+     * rest.
+     */
+    public synchronized void startExecute(int n) {
+        if (isExecuting) {
+            if (logger != null)
+                logger.warn("SchedulerServiceImpl: already executing, ignoring request for "
+                        + n + " more worker threads");
+            return;
+        }
+        if (n <= 0)
+            n = 2 * Runtime.getRuntime().availableProcessors();
+
+        long aging = DEFAULT_AGING;
+        String agingProperty = System.getProperty(AGING_PROPERTY);
+        if (agingProperty != null) {
+            try {
+                aging = Long.parseLong(agingProperty.trim());
+            } catch (NumberFormatException nfe) {
+                if (logger != null)
+                    logger.warn("Invalid job aging interval:" + agingProperty);
+            }
         }
+
+        int ioThreads = DEFAULT_IO_THREADS;
+        String ioThreadsProperty = System.getProperty(IO_THREADS_PROPERTY);
+        if (ioThreadsProperty != null) {
+            try {
+                ioThreads = Integer.parseInt(ioThreadsProperty.trim());
+            } catch (NumberFormatException nfe) {
+                if (logger != null)
+                    logger.warn("Invalid number of I/O threads:" + ioThreadsProperty);
+            }
+        }
+
+        Map<String, Bulkhead> bulkheads = Bulkhead.parse(
+                System.getProperty(BULKHEADS_PROPERTY), logger);
+        Map<Long, Integer> shares = ReadyQueue.parse(
+                System.getProperty(SHARES_PROPERTY), logger);
+
+        Map<RetryException.Failure, RetryPolicy> retries =
+            new EnumMap<RetryException.Failure, RetryPolicy>(RetryException.Failure.class);
+        for (RetryException.Failure f : RetryException.Failure.values()) {
+            String property = RETRY_PROPERTY + f.name().toLowerCase();
+            retries.put(f, RetryPolicy.parse(System.getProperty(property),
+                    DEFAULT_RETRIES.get(f), logger));
+        }
+        retryPolicies = retries;
+
+        long maxQueued = DEFAULT_MAX_QUEUED;
+        double maxHeap = DEFAULT_MAX_HEAP;
+        try {
+            String q = System.getProperty(MAX_QUEUED_PROPERTY);
+            if (q != null)
+                maxQueued = Long.parseLong(q.trim());
+            String h = System.getProperty(MAX_HEAP_PROPERTY);
+            if (h != null)
+                maxHeap = Double.parseDouble(h.trim());
+        } catch (NumberFormatException nfe) {
+            if (logger != null)
+                logger.warn("Invalid admission limit:" + nfe.getMessage());
+        }
+        if (maxQueued > 0 || maxHeap > 0)
+            admission = new AdmissionControl(maxQueued, maxHeap, stats);
+
+        AlitheiaCore core = AlitheiaCore.getInstance();
+        DBService db = (core == null) ? null : core.getDBService();
+        if (ioThreads > 0)
+            ioExecutorService = new JobExecutor(ioThreads, aging, bulkheads,
+                    shares, db, stats, logger);
+        executorService = new JobExecutor(n, aging, bulkheads, shares, db,
+                stats, logger);
+        startController(n, db);
+        watchdog = new Watchdog(Watchdog.parse(
+                System.getProperty(BUDGETS_PROPERTY), logger), stats, logger);
+        watchdogTask = timer.scheduleWithFixedDelay(watchdog, 1, 1, TimeUnit.SECONDS);
         isExecuting = true;
+        releaseFrozenJobs();
+        if (logger != null)
+            logger.info("SchedulerServiceImpl: executing jobs with " + n
+                    + " worker threads and " + ioThreads + " I/O threads");
+    }
+
+    /*
+     * Let a controller adapt the number of jobs run at once, between
+     * eu.sqooss.scheduler.minthreads and the number of workers.
+     */
+    private void startController(int n, DBService db) {
+        int min = n;
+        long sessionWait = DEFAULT_SESSION_WAIT;
+        try {
+            String m = System.getProperty(MIN_THREADS_PROPERTY);
+            if (m != null)
+                min = Integer.parseInt(m.trim());
+            String w = System.getProperty(SESSION_WAIT_PROPERTY);
+            if (w != null)
+                sessionWait = Long.parseLong(w.trim());
+        } catch (NumberFormatException nfe) {
+            if (logger != null)
+                logger.warn("Invalid concurrency control setting:" + nfe.getMessage());
+        }
+        stats.setConcurrencyLimit(n);
+        if (min <= 0 || min >= n)
+            return;
+
+        ConcurrencyController c = new ConcurrencyController(executorService,
+                min, n, TimeUnit.MILLISECONDS.toNanos(sessionWait), db,
+                stats, logger);
+        executorService.setController(c);
+        controller = timer.scheduleWithFixedDelay(c, 1, 1, TimeUnit.SECONDS);
     }
 
-    public void stopExecute() {    	
-    	frozenJobs = executorService.shutdownNow();
+    public synchronized void stopExecute() {
+        if (!isExecuting)
+            return;
         isExecuting = false;
+        if (controller != null) {
+            controller.cancel(false);
+            controller = null;
+        }
+        watchdogTask.cancel(false);
+        watchdogTask = null;
+        watchdog = null;
+        AdmissionControl a = admission;
+        admission = null;
+        if (a != null)
+            a.disable();
+        JobExecutor executor = executorService;
+        JobExecutor io = ioExecutorService;
+        executorService = null;
+        ioExecutorService = null;
+        List<Job> jobs = executor.drain();
+        if (io != null)
+            jobs.addAll(io.drain());
+        synchronized (frozenJobs) {
+            for (Job job : jobs) {
+                job.future = null;
+                frozenJobs.add(job);
+            }
+        }
+    }
+
+    /**
+     * Queues the job again once its backoff delay is over, unless it
+     * has used up the attempts of the failure's retry policy. The job
+     * counts as waiting meanwhile, and stays journaled. The delay starts
+     * when the failed attempt has ended, so that the attempts never
+     * overlap.
+     */
+    public boolean retry(final Job job, RetryException e) {
+        RetryPolicy policy = retryPolicies.get(e.getFailure());
+        int attempt = job.retries() + 1;
+        if (policy == null || attempt > policy.attempts)
+            return false;
+        if (!(job.future instanceof JobExecutor.JobTask) || timer.isShutdown())
+            return false;
+        final JobExecutor.JobTask task = (JobExecutor.JobTask) job.future;
+        final long delay = policy.delay(attempt);
+        task.retryWith(new Runnable() {
+            public void run() {
+                Runnable resubmit = new Runnable() {
+                    public void run() {
+                        stats.decRetryingJobs();
+                        resubmit(task);
+                    }
+                };
+                try {
+                    timer.schedule(resubmit, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ree) {
+                    /* Shut down meanwhile */
+                    resubmit.run();
+                }
+            }
+        });
+        stats.removeRunJob(job);
+        stats.addWaitingJob(job.getClass().getName());
+        stats.addRetry(e.getFailure().name());
+        stats.incRetryingJobs();
+        if (logger != null)
+            logger.info("Job " + job + " failed (" + e.getMessage()
+                    + "), retry " + attempt + " of " + policy.attempts
+                    + " in " + delay + "ms");
+        return true;
+    }
+
+    /*
+     * Run a job again after its retry delay, unless it was dequeued
+     * meanwhile. If its executor was stopped, the job goes to the one
+     * running now, or waits for execution to start.
+     */
+    private void resubmit(JobExecutor.JobTask task) {
+        if (task.isDone() || task.resume())
+            return;
+        if (task.cancel(false))
+            submit(task.job);
     }
 
     synchronized public boolean isExecuting() {
@@ -231,7 +845,14 @@ public class SchedulerServiceImpl implements Scheduler {
     }
 
     public WorkerThread[] getWorkerThreads() {
-        return (WorkerThread[]) this.myWorkerThreads.toArray();
+        List<WorkerThread> workers = new ArrayList<WorkerThread>();
+        JobExecutor executor = executorService;
+        if (executor != null)
+            workers.addAll(Arrays.asList(executor.getWorkers()));
+        executor = ioExecutorService;
+        if (executor != null)
+            workers.addAll(Arrays.asList(executor.getWorkers()));
+        return workers.toArray(new WorkerThread[workers.size()]);
     }
 
     public void startOneShotWorkerThread() {
@@ -244,11 +865,39 @@ public class SchedulerServiceImpl implements Scheduler {
 
 	@Override
 	public void shutDown() {
+        timer.shutdownNow();
+        JobJournal j = journal;
+        journal = null;
+        if (j != null) {
+            try {
+                j.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close the job journal: " + e.getMessage());
+            }
+        }
 	}
 
 	@Override
 	public boolean startUp() {
         
+        String journalFile = System.getProperty(JOURNAL_PROPERTY);
+        if (journal == null && journalFile != null && journalFile.trim().length() > 0) {
+            try {
+                journal = new JobJournal(new File(journalFile.trim()), logger);
+                timer.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        syncJournal();
+                    }
+                }, JOURNAL_SYNC, JOURNAL_SYNC, TimeUnit.MILLISECONDS);
+                if (logger != null)
+                    logger.info("Journaling pending jobs to " + journalFile);
+            } catch (IOException e) {
+                if (logger != null)
+                    logger.error("Cannot open job journal " + journalFile
+                            + ": " + e.getMessage());
+            }
+        }
+
         int numThreads = 2 * Runtime.getRuntime().availableProcessors(); 
         String threadsProperty = System.getProperty(START_THREADS_PROPERTY);
         
@@ -287,15 +936,20 @@ public class SchedulerServiceImpl implements Scheduler {
         return true;
     }
 
+    /**
+     * Takes the job back from the executor. It stays blocked until the
+     * dependencies added after yielding have finished.
+     */
     @Override
-    public synchronized void yield(Job j, ResumePoint p) throws SchedulerException {
+    public void yield(Job j, ResumePoint p) throws SchedulerException {
         
         if (j.state() != Job.State.Yielded)
             j.yield(p);
 
-        if (jobIsQueuedForWork(j) && j.future.cancel(false)) {
+        Future<Void> future = j.future;
+        if (future != null && !future.isDone() && future.cancel(false)) {
         	j.future = null;
-        	blockedQueue.add(j);                	
+        	blockedJobs.add(j);
         }
 
     }
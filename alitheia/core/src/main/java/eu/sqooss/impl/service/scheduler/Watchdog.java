@@ -0,0 +1,139 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,  
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package eu.sqooss.impl.service.scheduler;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import eu.sqooss.service.logging.Logger;
+import eu.sqooss.service.scheduler.Job;
+import eu.sqooss.service.scheduler.SchedulerStats;
+
+/**
+ * Cancels jobs that run over their time budget, so that a job stuck on
+ * a pathological input does not hold on to a worker forever. The budget
+ * of a job is the one configured for its class or one of its tags, or
+ * else {@link Job#timeBudget()}.
+ * 
+ * Every tick, the watchdog looks at the running jobs that have a budget.
+ * A job over it is told to release what it holds and its thread is
+ * interrupted; it is counted as timed out and ends in state Error once it
+ * gives up. A job that does not respond to the interruption keeps its
+ * worker, but is only cancelled once.
+ */
+class Watchdog implements Runnable {
+
+    private final Map<String, Long> budgets;
+    private final SchedulerStats stats;
+    private final Logger logger;
+
+    /* Running jobs that have a budget, and their budgets */
+    private final Map<Job, Long> running = new ConcurrentHashMap<Job, Long>();
+
+    Watchdog(Map<String, Long> budgets, SchedulerStats stats, Logger logger) {
+        this.budgets = budgets;
+        this.stats = stats;
+        this.logger = logger;
+    }
+
+    /** Watch a job that started running, if it has a budget */
+    void started(Job job) {
+        long budget = budget(job);
+        if (budget > 0)
+            running.put(job, budget);
+    }
+
+    /** Stop watching a job that stopped running */
+    void stopped(Job job) {
+        running.remove(job);
+    }
+
+    private long budget(Job job) {
+        Long b = budgets.get(job.getClass().getName());
+        if (b != null)
+            return b;
+        for (String tag : job.tags()) {
+            b = budgets.get(tag);
+            if (b != null)
+                return b;
+        }
+        return job.timeBudget();
+    }
+
+    /** Cancel the jobs that ran over their budget */
+    public void run() {
+        for (Map.Entry<Job, Long> e : running.entrySet()) {
+            Job job = e.getKey();
+            long time = job.runningTime();
+            if (time <= e.getValue() || !job.callTimedOut())
+                continue;
+            running.remove(job);
+            stats.addTimedOutJob(job.getClass().getName());
+            if (logger != null)
+                logger.warn("Job " + job + " cancelled after running for "
+                        + time + "ms, over its budget of " + e.getValue() + "ms");
+        }
+    }
+
+    /**
+     * Reads budgets as name=milliseconds pairs separated by commas, where
+     * the name is a job class name or a tag.
+     */
+    static Map<String, Long> parse(String spec, Logger logger) {
+        Map<String, Long> budgets = new HashMap<String, Long>();
+        if (spec == null)
+            return budgets;
+        for (String entry : spec.split(",")) {
+            if (entry.trim().length() == 0)
+                continue;
+            int eq = entry.lastIndexOf('=');
+            try {
+                if (eq <= 0)
+                    throw new NumberFormatException();
+                long budget = Long.parseLong(entry.substring(eq + 1).trim());
+                if (budget < 0)
+                    throw new NumberFormatException();
+                budgets.put(entry.substring(0, eq).trim(), budget);
+            } catch (NumberFormatException nfe) {
+                if (logger != null)
+                    logger.warn("Invalid time budget:" + entry);
+            }
+        }
+        return budgets;
+    }
+}
+
+//vi: ai nosi sw=4 ts=4 expandtab
@@ -33,6 +33,7 @@
 
 package eu.sqooss.impl.service.updater;
 
+import eu.sqooss.service.scheduler.DurableJob;
 import eu.sqooss.service.scheduler.Job;
 import eu.sqooss.service.updater.MetadataUpdater;
 
@@ -42,19 +43,51 @@ import eu.sqooss.service.updater.MetadataUpdater;
  * @author Georgios Gousios <gousiosg@gmail.com>
  *
  */
-public class UpdaterJob extends Job {
+public class UpdaterJob extends Job implements DurableJob {
+
+    static final String JOURNAL_TYPE = "updater";
 
     MetadataUpdater mu;
+    /* What the job updates, if it can be restored after a restart */
+    private Long projectId;
+    private String mnem;
     
     public UpdaterJob(MetadataUpdater updater) {
         mu = updater;
     }
+
+    /**
+     * A job that is journaled by the scheduler as the run of the updater
+     * with mnemonic <tt>mnem</tt> on a project.
+     */
+    public UpdaterJob(MetadataUpdater updater, Long projectId, String mnem) {
+        this(updater);
+        this.projectId = projectId;
+        this.mnem = mnem;
+    }
     
     @Override
     public final long priority() {
         return 0;
     }
 
+    /** Updaters mostly wait for the SCM, mail or bug tracker data. */
+    @Override
+    public String[] tags() {
+        return new String[] {IO_BOUND};
+    }
+
+    /** Project id and updater mnemonic, if known */
+    @Override
+    public String key() {
+        return journalRecord();
+    }
+
+    @Override
+    public Long projectId() {
+        return projectId;
+    }
+
     @Override
     protected void run() throws Exception {
         mu.update();
@@ -63,6 +96,17 @@ public class UpdaterJob extends Job {
     public MetadataUpdater getUpdater() {
         return mu;
     }
+
+    public String journalType() {
+        return JOURNAL_TYPE;
+    }
+
+    /** Project id and updater mnemonic */
+    public String journalRecord() {
+        if (projectId == null || mnem == null)
+            return null;
+        return projectId + " " + mnem;
+    }
     
     @Override
     public String toString() {
@@ -58,6 +58,7 @@ import eu.sqooss.service.db.StoredProject;
 import eu.sqooss.service.logging.Logger;
 import eu.sqooss.service.scheduler.Job;
 import eu.sqooss.service.scheduler.Job.State;
+import eu.sqooss.service.scheduler.JobFactory;
 import eu.sqooss.service.scheduler.JobStateListener;
 import eu.sqooss.service.scheduler.SchedulerException;
 import eu.sqooss.service.tds.InvalidAccessorException;
@@ -109,6 +110,55 @@ public class UpdaterServiceImpl implements UpdaterService, JobStateListener {
         logger.info("Registering updater class " + clazz.getCanonicalName() + 
                 " for protocols (" + Arrays.toString(u.protocols()) +
                 ") and stage " + u.stage());
+
+        restoreUpdates(u);
+    }
+
+    /*
+     * Queue again the runs of the updater that were pending in the
+     * scheduler's journal when the system stopped.
+     */
+    private void restoreUpdates(final Updater u) {
+        boolean session = !dbs.isDBSessionActive();
+        if (session)
+            dbs.startDBSession();
+        try {
+            int n = AlitheiaCore.getInstance().getScheduler().restoreJobs(
+                    UpdaterJob.JOURNAL_TYPE, new JobFactory() {
+                public Job restore(String record) throws Exception {
+                    String[] f = record.split(" ");
+                    if (!f[1].equals(u.mnem()))
+                        return null;
+                    return restoreUpdate(Long.valueOf(f[0]), u);
+                }
+            });
+            if (n > 0)
+                logger.info("Restored " + n + " pending " + u.mnem() + " updates");
+        } catch (SchedulerException e) {
+            logger.error("Cannot restore update job(s):" + e.getMessage(), e);
+        } finally {
+            if (session)
+                dbs.commitDBSession();
+        }
+    }
+
+    /* An update job from the journal, tracked like a newly scheduled one */
+    private synchronized UpdaterJob restoreUpdate(Long projectId, Updater u)
+            throws Exception {
+        StoredProject sp = StoredProject.loadDAObyId(projectId, StoredProject.class);
+        if (sp == null)
+            throw new Exception("No project with id " + projectId);
+        if (isUpdateRunning(sp, u))
+            throw new Exception(u.mnem() + " update of " + sp + " already scheduled");
+
+        MetadataUpdater upd = updaters.get(u).newInstance();
+        upd.setUpdateParams(sp, logger);
+        UpdaterJob uj = new UpdaterJob(upd, projectId, u.mnem());
+        uj.addJobStateListener(this);
+        if (!scheduledUpdates.containsKey(projectId))
+            scheduledUpdates.put(projectId, new HashMap<Updater, UpdaterJob>());
+        scheduledUpdates.get(projectId).put(u, uj);
+        return uj;
     }
 
     /** {@inheritDoc} */
@@ -434,7 +484,7 @@ public class UpdaterServiceImpl implements UpdaterService, JobStateListener {
                     if (isUpdateRunning(project, u)) {
                         uj = scheduledUpdates.get(project.getId()).get(u);
                     } else {
-                        uj = new UpdaterJob(upd);
+                        uj = new UpdaterJob(upd, project.getId(), u.mnem());
                         uj.addJobStateListener(this);
                         toSchedule.put(u, uj);
                     }
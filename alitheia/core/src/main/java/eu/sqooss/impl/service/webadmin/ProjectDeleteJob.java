@@ -60,6 +60,11 @@ public class ProjectDeleteJob extends Job {
         return 0xff;
     }
 
+    @Override
+    public String[] tags() {
+        return new String[] {"db-heavy"};
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     protected void run() throws Exception {
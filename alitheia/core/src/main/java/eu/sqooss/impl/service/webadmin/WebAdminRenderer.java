@@ -33,14 +33,25 @@
 
 package eu.sqooss.impl.service.webadmin;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.velocity.VelocityContext;
 import org.osgi.framework.BundleContext;
 
+import eu.sqooss.service.admin.AdminAction;
+import eu.sqooss.service.admin.AdminService;
 import eu.sqooss.service.scheduler.Job;
+import eu.sqooss.service.scheduler.LatencyHistogram;
+import eu.sqooss.service.scheduler.ResourceUsage;
+import eu.sqooss.service.scheduler.SchedulerStats;
 import eu.sqooss.service.util.StringUtils;
 
 /**
@@ -58,6 +69,9 @@ public class WebAdminRenderer  extends AbstractView {
      */
     private static long startTime = new Date().getTime();
 
+    /** Mnemonic of the cache statistics action of the cache bundle */
+    private static final String CACHE_INFO = "cacheinfo";
+
     public WebAdminRenderer(BundleContext bundlecontext, VelocityContext vc) {
         super(bundlecontext, vc);
     }
@@ -247,6 +261,163 @@ public class WebAdminRenderer  extends AbstractView {
         return result.toString();
     }
 
+    /**
+     * Creates an HTML table with the usage statistics of the cache service,
+     * as returned by the cache's administrative action.
+     *
+     * @return a String representing the HTML table
+     */
+    public static String renderCacheStats() {
+        return renderActionResults(CACHE_INFO, "Cache service not running");
+    }
+
+    /*
+     * Run an administrative action and render its results as a table. The
+     * action is looked up by name, as it may be provided by another bundle.
+     */
+    private static String renderActionResults(String mnemonic, String missing) {
+        AdminService as = sobjCore.getAdminService();
+        AdminAction aa = (as == null) ? null : as.create(mnemonic);
+        if (aa == null)
+            return missing;
+        as.execute(aa);
+        if (aa.hasErrors() || aa.results() == null)
+            return missing;
+
+        StringBuilder result = new StringBuilder();
+        result.append("<table width=\"100%\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        result.append("\t<tbody>\n");
+        for (Map.Entry<String, Object> e : new TreeMap<String, Object>(aa.results()).entrySet()) {
+            if (e.getKey().equals("result"))
+                continue;
+            result.append("\t\t<tr>\n\t\t\t<td>");
+            result.append(e.getKey());
+            result.append("</td>\n\t\t\t<td class=\"number\">");
+            result.append(e.getValue());
+            result.append("</td>\n\t\t</tr>\n");
+        }
+        result.append("\t</tbody>\n");
+        result.append("</table>");
+        return result.toString();
+    }
+
+    /**
+     * Creates an HTML table with the queue wait and execution time
+     * percentiles of each job type, in milliseconds.
+     *
+     * @return a String representing the HTML table
+     */
+    public static String renderJobLatencyStats() {
+        SchedulerStats stats = sobjSched.getSchedulerStats();
+        Map<String, LatencyHistogram> wait = stats.getWaitTimes();
+        Map<String, LatencyHistogram> run = stats.getRunTimes();
+        if (run.isEmpty()) {
+            return "No jobs run yet";
+        }
+        StringBuilder result = new StringBuilder();
+        result.append("<table width=\"100%\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        result.append("\t<thead>\n");
+        result.append("\t\t<tr>\n");
+        result.append("\t\t\t<td>Job Type</td>\n");
+        result.append("\t\t\t<td>Runs</td>\n");
+        for (String kind : new String[] {"Wait", "Run"}) {
+            for (String p : new String[] {"p50", "p95", "p99", "max"}) {
+                result.append("\t\t\t<td>").append(kind).append(' ')
+                    .append(p).append(" (ms)</td>\n");
+            }
+        }
+        result.append("\t\t</tr>\n");
+        result.append("\t</thead>\n");
+        result.append("\t<tbody>\n");
+        for (String type : new TreeSet<String>(run.keySet())) {
+            result.append("\t\t<tr>\n\t\t\t<td>");
+            result.append(type);
+            result.append("</td>\n\t\t\t<td class=\"number\">");
+            result.append(run.get(type).getCount());
+            result.append("</td>\n");
+            appendLatencies(result, wait.get(type));
+            appendLatencies(result, run.get(type));
+            result.append("\t\t</tr>\n");
+        }
+        result.append("\t</tbody>\n");
+        result.append("</table>");
+        return result.toString();
+    }
+
+    private static void appendLatencies(StringBuilder result, LatencyHistogram h) {
+        long[] values = (h == null) ? new long[4] : new long[] {
+            h.getPercentile(50), h.getPercentile(95), h.getPercentile(99), h.getMax()};
+        for (long v : values) {
+            result.append("\t\t\t<td class=\"number\">");
+            result.append(String.format("%.3f", v / 1000.0));
+            result.append("</td>\n");
+        }
+    }
+
+    /**
+     * Creates an HTML table with the resources used by the jobs of each
+     * plug-in, the one using most CPU time first.
+     *
+     * @return a String representing the HTML table
+     */
+    public static String renderPluginUsage() {
+        return renderUsage("Plug-in", sobjSched.getSchedulerStats().getPluginUsage());
+    }
+
+    /**
+     * Creates an HTML table with the resources used by the jobs of each
+     * type, the one using most CPU time first.
+     *
+     * @return a String representing the HTML table
+     */
+    public static String renderJobUsage() {
+        return renderUsage("Job Type", sobjSched.getSchedulerStats().getJobUsage());
+    }
+
+    private static String renderUsage(String kind, final Map<String, ResourceUsage> usage) {
+        if (usage.isEmpty()) {
+            return "No jobs run yet";
+        }
+        List<String> names = new ArrayList<String>(usage.keySet());
+        Collections.sort(names, new Comparator<String>() {
+            public int compare(String a, String b) {
+                long ca = usage.get(a).getCpuTime(), cb = usage.get(b).getCpuTime();
+                return ca > cb ? -1 : (ca == cb ? a.compareTo(b) : 1);
+            }
+        });
+        StringBuilder result = new StringBuilder();
+        result.append("<table width=\"100%\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        result.append("\t<thead>\n");
+        result.append("\t\t<tr>\n");
+        for (String h : new String[] {kind, "Runs", "Run (s)", "CPU (s)",
+                "Allocated (MB)", "Database (s)"}) {
+            result.append("\t\t\t<td>").append(h).append("</td>\n");
+        }
+        result.append("\t\t</tr>\n");
+        result.append("\t</thead>\n");
+        result.append("\t<tbody>\n");
+        for (String name : names) {
+            ResourceUsage u = usage.get(name);
+            result.append("\t\t<tr>\n\t\t\t<td>");
+            result.append(name);
+            result.append("</td>\n");
+            for (String v : new String[] {
+                    String.valueOf(u.getJobs()),
+                    String.format("%.3f", u.getRunTime() / 1e9),
+                    String.format("%.3f", u.getCpuTime() / 1e9),
+                    String.valueOf(u.getAllocatedBytes() >> 20),
+                    String.format("%.3f", u.getDbTime() / 1e9)}) {
+                result.append("\t\t\t<td class=\"number\">");
+                result.append(v);
+                result.append("</td>\n");
+            }
+            result.append("\t\t</tr>\n");
+        }
+        result.append("\t</tbody>\n");
+        result.append("</table>");
+        return result.toString();
+    }
+
     public static String renderJobRunStats() {
         StringBuilder result = new StringBuilder();
         List<String> rjobs = sobjSched.getSchedulerStats().getRunJobs();
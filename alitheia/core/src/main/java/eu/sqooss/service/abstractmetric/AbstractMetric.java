@@ -79,6 +79,7 @@ import eu.sqooss.service.metricactivator.MetricActivator;
 import eu.sqooss.service.pa.PluginAdmin;
 import eu.sqooss.service.pa.PluginInfo;
 import eu.sqooss.service.scheduler.Job;
+import eu.sqooss.service.scheduler.WorkerThread;
 import eu.sqooss.service.util.Pair;
 
 /**
@@ -438,49 +439,91 @@ public abstract class AbstractMetric implements AlitheiaPlugin {
     }
 
     private Map<Long,Pair<Object,Integer>> locks = new HashMap<Long,Pair<Object,Integer>>();
+    /*
+     * The job that locked each DAO; guarded by locks. Not the thread, as
+     * a job waiting for another one runs it in its own thread.
+     */
+    private Map<Long,Job> lockOwners = new HashMap<Long,Job>();
     
     private Object lockObject(DAObject o) throws AlreadyProcessingException {
     	synchronized (locks) {
             if (!locks.containsKey(o.getId())) {
                 locks.put(o.getId(), 
                         new Pair<Object, Integer>(new Object(),0));
+                lockOwners.put(o.getId(), currentJob());
             }
             Pair<Object, Integer> p = locks.get(o.getId());
-            if (p.second + 1 > 1) {
-                /*
-                 * Break and reschedule the calculation of each call to the
-                 * getResult method if it originates from another thread than
-                 * the thread that has currently locked the DAO object. 
-                 * This is required for the DB transaction in the stopped
-                 * job to see the results of the calculation of the original
-                 * job.
-                 */ 
-                log.debug("DAO Id:" + o.getId() + 
-                        " Already locked - failing job");
-                try {
-                    throw new AlreadyProcessingException();
-                } finally {
-                    MetricActivator ma = AlitheiaCore.getInstance().getMetricActivator();
-                    ma.runMetric(o, this);
-                }
+            if (p.second + 1 <= 1) {
+                p.second = p.second + 1;
+                return p.first;
             }
-            p.second = p.second + 1;
-            return p.first;
+        }
+        /*
+         * Break and reschedule the calculation of each call to the
+         * getResult method if it originates from another thread than
+         * the thread that has currently locked the DAO object. 
+         * This is required for the DB transaction in the stopped
+         * job to see the results of the calculation of the original
+         * job. Rescheduling queues a job, so it must not happen while
+         * other threads wait for the lock map.
+         */ 
+        log.debug("DAO Id:" + o.getId() + 
+                " Already locked - failing job");
+        try {
+            throw new AlreadyProcessingException();
+        } finally {
+            MetricActivator ma = AlitheiaCore.getInstance().getMetricActivator();
+            ma.runMetric(o, this);
         }
     }
     
     private void unlockObject(DAObject o) {
     	synchronized(locks) {
     		Pair<Object,Integer> p = locks.get(o.getId());
+    		/* Released already, if the job timed out */
+    		if (p == null || lockOwners.get(o.getId()) != currentJob())
+    			return;
     		p.second = p.second - 1;
     		if (p.second == 0) {
     			locks.remove(o.getId());
+    			lockOwners.remove(o.getId());
     		} else {
     		log.debug("Unlocking DAO Id:" + o.getId());
     		}
     	}
     }
     
+    /* The job the calling thread runs, null outside the scheduler */
+    private static Job currentJob() {
+        Thread t = Thread.currentThread();
+        if (t instanceof WorkerThread)
+            return ((WorkerThread) t).executedJob();
+        return null;
+    }
+    
+    /**
+     * Release the DAO locks held by job \a j, so that other jobs can
+     * calculate the results for them. Called for a job that was cancelled
+     * for running over its time budget, which may still hold on to them.
+     * Locks held by other jobs running in the same thread are kept.
+     * 
+     * @param j The cancelled job
+     */
+    public void releaseLocks(Job j) {
+        synchronized (locks) {
+            Iterator<Map.Entry<Long, Job>> i = lockOwners.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Long, Job> e = i.next();
+                if (e.getValue() != j)
+                    continue;
+                locks.remove(e.getKey());
+                i.remove();
+                log.warn("Released lock of DAO Id:" + e.getKey()
+                        + " held by a timed out job");
+            }
+        }
+    }
+    
     /**
      * Call the appropriate run() method according to the type of the entity
      * that is measured.
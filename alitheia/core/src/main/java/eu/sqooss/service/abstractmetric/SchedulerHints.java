@@ -97,5 +97,24 @@ public @interface SchedulerHints {
      * This is a best effort approach
      */
     public InvocationOrder invocationOrder() default OLDFIRST;
+
+    /**
+     * Tags of the plug-in's metric jobs, such as "db-heavy" or
+     * "process-spawning". The scheduler caps the number of running jobs
+     * per tag as configured, like it does for the plug-in itself. Jobs
+     * tagged "io-bound" run on the scheduler's I/O threads.
+     * 
+     * @see eu.sqooss.service.scheduler.Job#tags()
+     */
+    public String[] tags() default {};
+
+    /**
+     * Wall-clock milliseconds a metric job of the plug-in may run for,
+     * after which the scheduler cancels it and releases its DAO locks.
+     * 0 lets it run for as long as it takes.
+     * 
+     * @see eu.sqooss.service.scheduler.Job#timeBudget()
+     */
+    public long timeBudget() default 0;
 }
 
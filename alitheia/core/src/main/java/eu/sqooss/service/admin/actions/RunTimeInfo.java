@@ -30,8 +30,12 @@
 
 package eu.sqooss.service.admin.actions;
 
+import java.util.Map;
+
 import eu.sqooss.core.AlitheiaCore;
 import eu.sqooss.service.admin.AdminActionBase;
+import eu.sqooss.service.scheduler.LatencyHistogram;
+import eu.sqooss.service.scheduler.ResourceUsage;
 import eu.sqooss.service.scheduler.SchedulerStats;
 
 public class RunTimeInfo extends AdminActionBase {
@@ -59,11 +63,38 @@ public class RunTimeInfo extends AdminActionBase {
         try {
             SchedulerStats s = AlitheiaCore.getInstance().getScheduler()
                     .getSchedulerStats();
-            result.put("sched.jobs.failed", s.getFailedJobs());
-            result.put("sched.jobs.wait", s.getWaitingJobs());
-            result.put("sched.jobs.finished", s.getFinishedJobs());
-            result.put("sched.threads.idle", s.getIdleWorkerThreads());
-            result.put("sched.threads.total", s.getWorkerThreads());
+            result("sched.jobs.failed", s.getFailedJobs());
+            result("sched.jobs.wait", s.getWaitingJobs());
+            result("sched.jobs.finished", s.getFinishedJobs());
+            result("sched.jobs.timedout", s.getTimedOutJobs());
+            result("sched.jobs.retrying", s.getRetryingJobs());
+            result("sched.jobs.collapsed", s.getCollapsedJobs());
+            result("sched.retries", s.getRetries());
+            result("sched.admission.blocked", s.getBlockedProducers());
+            result("sched.admission.throttled", s.getThrottledEnqueues());
+            for (Map.Entry<String, Integer> r : s.getRetryTypes().entrySet())
+                result("sched.retries." + r.getKey().toLowerCase(), r.getValue());
+            result("sched.threads.idle", s.getIdleWorkerThreads());
+            result("sched.threads.total", s.getWorkerThreads());
+            result("sched.threads.limit", s.getConcurrencyLimit());
+            result("sched.queue.waits", s.getReadyQueueWaits());
+            result("sched.queue.waittime", s.getReadyQueueWaitTime());
+            for (Map.Entry<String, LatencyHistogram> h : s.getWaitTimes().entrySet())
+                result("sched.latency." + h.getKey() + ".wait", h.getValue().toString());
+            for (Map.Entry<String, LatencyHistogram> h : s.getRunTimes().entrySet())
+                result("sched.latency." + h.getKey() + ".run", h.getValue().toString());
+            for (Map.Entry<String, ResourceUsage> u : s.getJobUsage().entrySet())
+                result("sched.usage." + u.getKey(), u.getValue().toString());
+            for (Map.Entry<String, ResourceUsage> u : s.getPluginUsage().entrySet())
+                result("sched.usage.plugin." + u.getKey(), u.getValue().toString());
+            Map<String, Integer> running = s.getBulkheadRunningJobs();
+            Map<String, Integer> waiting = s.getBulkheadWaitingJobs();
+            for (Map.Entry<String, Integer> limit : s.getBulkheadLimits().entrySet()) {
+                String b = "sched.bulkhead." + limit.getKey();
+                result(b + ".running", running.get(limit.getKey()));
+                result(b + ".wait", waiting.get(limit.getKey()));
+                result(b + ".limit", limit.getValue());
+            }
         } catch (Exception e) {
             error(e);
         }
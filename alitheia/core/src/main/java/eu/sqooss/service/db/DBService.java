@@ -100,6 +100,26 @@ public interface DBService extends AlitheiaCoreService {
      *          or if the session couldn't be started
      */
     public boolean startDBSession();
+
+    /**
+     * Time threads spent in startDBSession(), which is mostly waiting for
+     * a connection from the pool.
+     * @return Nanoseconds since the service started
+     */
+    public long getSessionStartTime();
+
+    /**
+     * @return The number of sessions started since the service started
+     */
+    public long getSessionsStarted();
+
+    /**
+     * Time the current thread spent in database sessions, from starting
+     * them to committing or rolling them back, including the one it has
+     * open. The scheduler charges it to the jobs the thread runs.
+     * @return Nanoseconds since the thread first started a session
+     */
+    public long getSessionTime();
     
     /**
      * Commits the changes made in the current work session into the database and closes the session,
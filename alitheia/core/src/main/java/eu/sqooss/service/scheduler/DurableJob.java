@@ -31,38 +31,29 @@
  *
  */
 
-package eu.sqooss.impl.service.scheduler;
 
-import java.util.Comparator;
-
-import eu.sqooss.service.scheduler.Job;
+package eu.sqooss.service.scheduler;
 
 /**
- * Comparator for jobs comparing by priority.
- *
- * @author Christoph Schleifenbaum
+ * A job that survives restarts. When the scheduler keeps a journal, it
+ * writes the job's record there on enqueueing and drops it once the job
+ * has finished, failed or been dequeued. After a restart, the service that
+ * owns the job type recreates the pending ones through a {@link JobFactory}.
+ * 
+ * @see Scheduler#restoreJobs(String, JobFactory)
  */
-public class JobPriorityComparator implements Comparator<Job>
-{
-    
+public interface DurableJob {
+
     /**
-     * Compares its two arguments for order.
-     * @param lhs the first object to be compared.
-     * @param rhs the second object to be compared.
-     * @return a negative integer, zero, or a positive integer as the first 
-     * argument is less than, equal to, or greater than the second.
+     * The name of the factory that recreates the job.
      */
-    public int compare(Job lhs, Job rhs)
-    {
-        return (int)(lhs.priority() - rhs.priority());
-    }
+    public String journalType();
 
     /**
-     * Indicates whether some other object is "equal to" this Comparator.
-     * @param obj the reference object with which to compare.
+     * Everything needed to recreate the job, on a single line, or null if
+     * the job can not be recreated.
      */
-    public boolean equals(Object obj)
-    {
-        return obj instanceof JobPriorityComparator;
-    }
+    public String journalRecord();
 }
+
+//vi: ai nosi sw=4 ts=4 expandtab
@@ -33,18 +33,24 @@
 
 package eu.sqooss.service.scheduler;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.Comparable;
 import java.lang.InterruptedException;
 
+import org.hibernate.exception.JDBCConnectionException;
+import org.hibernate.exception.LockAcquisitionException;
+
 import eu.sqooss.core.AlitheiaCore;
-import eu.sqooss.service.util.Pair;
 import eu.sqooss.service.db.DBService;
 import eu.sqooss.service.logging.Logger;
 import eu.sqooss.service.scheduler.SchedulerException;
@@ -56,6 +62,12 @@ import eu.sqooss.service.scheduler.SchedulerException;
  */
 public abstract class Job implements Comparable<Job>, Callable<Void> {
 
+    /**
+     * Tag of jobs that spend most of their time waiting for disk, network
+     * or database I/O. They run on a separate, larger pool of threads.
+     */
+    public static final String IO_BOUND = "io-bound";
+
     /**
      * The state of the job.
      * @author christoph
@@ -71,34 +83,60 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
     }
 
     /**
-     * This list contains the dependencies between the jobs.
-     * Each pair defines that the \a second one's execution depends on
-     * completion of the \a first one.
-     *
-     * As soon as the \a first job is finished, the pair is removed from
-     * the list.
+     * Guards changes to the shape of the dependency graph, so that cycle
+     * checks and levels stay consistent. Jobs finishing do not take it.
+     */
+    private static final Object graphLock = new Object();
+
+    /**
+     * Unfinished jobs this job depends on. As soon as one of them is
+     * finished, it is removed from the list.
      */
-    protected List<Pair<Job,Job>> m_dependencies;
+    private List<Job> m_dependencies;
     
     /**
-     * List of jobs which depend on this job
+     * List of jobs which depend on this job, until it is finished
      */
     private List<Job> m_dependees;
 
+    /** Guards the two lists above and the finished flag */
+    private final Object depLock = new Object();
+
+    /* Set once the job is finished or failed and dependees were told */
+    private boolean done;
+
+    /** Number of entries in m_dependencies; the job can run at zero */
+    private final AtomicInteger pendingDependencies = new AtomicInteger();
+
+    /**
+     * Longer than the longest chain of unfinished dependencies of the job,
+     * so that a job has a higher level than all jobs it depends on.
+     * Guarded by graphLock.
+     */
+    private int level;
+
     /**
      * A list of objects that listen to this job's state changes  
      */
     private List<JobStateListener> listeners;
     
-    private State m_state;
+    private volatile State m_state;
 
-    private Scheduler m_scheduler;
+    private volatile Scheduler m_scheduler;
 
     private Exception m_errorException;
     
     private WorkerThread m_worker;
     
-    private int restarts = 0;
+    /* Number of times the job was queued again after a RetryException */
+    private int retries = 0;
+    
+    /* The thread running the job and when it started, while running */
+    private volatile Thread runner;
+    private volatile long startTime;
+    
+    /* Set once the job ran over its time budget; guarded by this */
+    private volatile boolean cancelled = false;
     
     private ResumePoint resumePoint;
     
@@ -107,6 +145,7 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
     public Future<Void> future;
     
     private static final String PERF_LOG_PROPERTY = "eu.sqooss.log.perf";
+    private static final String[] NO_TAGS = new String[0];
     private boolean perfLog = false;
 
     public void setWorkerThread(WorkerThread worker) {
@@ -134,9 +173,13 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
     /**
      * Adds a dependency.
      * This job cannot be executed, as long \a other
-     * is not finished.
+     * is not finished. A dependency on a finished job is ignored.
+     * 
+     * Cycles are detected incrementally: the check only searches the
+     * dependencies of \a other when its level is not already below the
+     * level of this job.
      */
-    public final synchronized void addDependency(Job other) throws SchedulerException {
+    public final void addDependency(Job other) throws SchedulerException {
         // Dependencies of jobs can ony be changed before the job is queued.
         // Otherwise, race conditions would occur in which it would be undefined
         // if the dependency is applied or not.
@@ -144,18 +187,38 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
         	throw new SchedulerException("Job dependencies cannot be added after the job has been queued.");
         }
 
-        // Don't allow circular dependencies
-        if( other.dependsOn(this) || (this==other) ) {
-            throw new SchedulerException("Job dependencies are not allowed to be cyclic.");
-        }
+        synchronized (graphLock) {
+            // Don't allow circular dependencies
+            if (this == other || (other.level >= level && other.reaches(this))) {
+                throw new SchedulerException("Job dependencies are not allowed to be cyclic.");
+            }
 
-        if (m_dependencies == null)
-            m_dependencies = new LinkedList<Pair<Job,Job>>();
-        
-        synchronized (m_dependencies) {
-            Pair<Job,Job> newDependency = new Pair<Job,Job>(other, this);
-            m_dependencies.add(newDependency);
-            other.addDependee(this);
+            /* Counted before other can see us, as it may finish any time */
+            synchronized (depLock) {
+                if (m_dependencies == null)
+                    m_dependencies = new ArrayList<Job>();
+                m_dependencies.add(other);
+            }
+            pendingDependencies.incrementAndGet();
+
+            boolean added;
+            synchronized (other.depLock) {
+                added = !other.done;
+                if (added) {
+                    if (other.m_dependees == null)
+                        other.m_dependees = new ArrayList<Job>();
+                    other.m_dependees.add(this);
+                }
+            }
+            if (!added) {
+                synchronized (depLock) {
+                    m_dependencies.remove(other);
+                }
+                pendingDependencies.decrementAndGet();
+                return;
+            }
+            if (other.level >= level)
+                raiseLevel(other.level + 1);
         }
         callDependenciesChanged();
     }
@@ -165,19 +228,21 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
      * \sa addDependency
      */
     public final void removeDependency(Job other) {
-        if (m_dependencies == null)
-            return;
-        synchronized(m_dependencies) {
-            List<Pair<Job,Job>> doomed = new LinkedList<Pair<Job,Job>>();
-            for (Pair<Job,Job> p: m_dependencies ) {
-                if ( (p.first == other) && (p.second == this) ) {
-                    doomed.add(p);
-                    removeDependee(other);
-                }
+        int removed = 0;
+        synchronized (graphLock) {
+            /* Whatever is removed here will not be counted down by other */
+            synchronized (other.depLock) {
+                if (other.m_dependees != null)
+                    while (other.m_dependees.remove(this))
+                        removed++;
+            }
+            synchronized (depLock) {
+                for (int i = 0; i < removed; i++)
+                    m_dependencies.remove(other);
             }
-            m_dependencies.removeAll(doomed);
         }
-        callDependenciesChanged();
+        if (removed > 0 && pendingDependencies.addAndGet(-removed) == 0)
+            callDependenciesChanged();
     }
 
     /**
@@ -186,34 +251,68 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
      * @return true, when the job depends on \a other, otherwise false.
      */
     public final boolean dependsOn(Job other) {
-        if (m_dependencies == null)
-            return false;
-        synchronized(m_dependencies) {
-            for (Pair<Job,Job> p: m_dependencies ) {
-                if ( (p.first == other) && (p.second == this) ) {
-                    return true;
-                } else if ( (p.second == this) && p.first.dependsOn(other)) {
+        synchronized (graphLock) {
+            return reaches(other);
+        }
+    }
+
+    /*
+     * Search the unfinished dependencies for target. Jobs at or below the
+     * level of target cannot depend on it and are not searched. Called with
+     * the graph lock held.
+     */
+    private boolean reaches(Job target) {
+        Set<Job> seen = Collections.newSetFromMap(new IdentityHashMap<Job, Boolean>());
+        Deque<Job> todo = new ArrayDeque<Job>();
+        todo.push(this);
+        while (!todo.isEmpty()) {
+            for (Job j : todo.pop().dependencies()) {
+                if (j == target)
                     return true;
+                if (j.level > target.level && seen.add(j))
+                    todo.push(j);
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Make this job, and the jobs depending on it, rank above a new
+     * dependency. Called with the graph lock held.
+     */
+    private void raiseLevel(int newLevel) {
+        Deque<Job> todo = new ArrayDeque<Job>();
+        level = newLevel;
+        todo.push(this);
+        while (!todo.isEmpty()) {
+            Job j = todo.pop();
+            for (Job d : j.dependees()) {
+                if (d.level <= j.level) {
+                    d.level = j.level + 1;
+                    todo.push(d);
                 }
             }
-            return false;
         }
     }
 
-    private final synchronized void addDependee(Job other) {
-        if (m_dependees == null)
-            m_dependees = new ArrayList<Job>();
-        synchronized (m_dependees) {
-            m_dependees.add(other);
+    private List<Job> dependees() {
+        synchronized (depLock) {
+            if (m_dependees == null)
+                return Collections.emptyList();
+            return new ArrayList<Job>(m_dependees);
         }
     }
-    
-    private final synchronized void removeDependee(Job other) {
-        if (m_dependees == null)
-            return;
-        synchronized (m_dependees) {
-            m_dependees.remove(other);
+
+    /*
+     * Called once for each time this job was added as a dependee of the
+     * finished job.
+     */
+    private void dependencyDone(Job dependency) {
+        synchronized (depLock) {
+            m_dependencies.remove(dependency);
         }
+        if (pendingDependencies.decrementAndGet() == 0)
+            callDependenciesChanged();
     }
     
     /**
@@ -225,8 +324,11 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
     final public long execute() throws Exception {
         long timer = System.currentTimeMillis();
         try {
+            started();
             setState(State.Running);
-            restart();
+            run();
+            if (cancelled)
+                throw timedOutException(null);
             
             /*Idiot/bad programmer proofing*/
             assert (!dbs.isDBSessionActive());            
@@ -243,15 +345,139 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
                 dbs.rollbackDBSession();
             }
             
+            // Transient failures are retried later, if the scheduler allows
+            RetryException retry = cancelled ? null : retryable(e);
+            if (retry != null && retryLater(retry))
+                return System.currentTimeMillis() - timer;
+            
+            if (cancelled && !(e instanceof TimeoutException))
+                e = timedOutException(e);
+            
             // In case of an exception, state becomes Error
             m_errorException = e;
             setState(State.Error);
             // the Exception itself is forwarded
             throw e;
+        } finally {
+            stopped();
         }
         return System.currentTimeMillis() - timer;
     }
 
+    private void started() {
+        runner = Thread.currentThread();
+        startTime = System.currentTimeMillis();
+    }
+
+    /* Clear the interruption of a cancelled job, which the thread would
+     * otherwise carry into its next job */
+    private synchronized void stopped() {
+        if (runner != Thread.currentThread())
+            return;
+        runner = null;
+        if (cancelled)
+            Thread.interrupted();
+    }
+
+    private TimeoutException timedOutException(Exception cause) {
+        TimeoutException e = new TimeoutException("Job " + this
+                + " ran over its time budget of " + timeBudget() + "ms");
+        if (cause != null)
+            e.initCause(cause);
+        return e;
+    }
+
+    /*
+     * The failure as a RetryException, if it is one or was caused by a
+     * lock or connection problem in the database.
+     */
+    private static RetryException retryable(Exception e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof RetryException)
+                return (RetryException) t;
+            if (t instanceof LockAcquisitionException)
+                return new RetryException(RetryException.Failure.LOCK,
+                        t.getMessage(), e);
+            if (t instanceof JDBCConnectionException)
+                return new RetryException(RetryException.Failure.CONNECTION,
+                        t.getMessage(), e);
+        }
+        return null;
+    }
+
+    /* Queue the job again after a delay, if its scheduler allows it */
+    private boolean retryLater(RetryException e) {
+        Scheduler s = m_scheduler;
+        if (s == null || !s.retry(this, e))
+            return false;
+        retries++;
+        setState(State.Queued);
+        return true;
+    }
+
+    /**
+     * @return The number of times the job was queued again after a
+     * transient failure.
+     */
+    public final int retries() {
+        return retries;
+    }
+
+    /**
+     * The wall-clock time the job may run for. A job that runs longer is
+     * cancelled by the scheduler: its thread is interrupted, and it ends
+     * in state Error once it gives up.
+     * @return The job's time budget in milliseconds, or 0 if it can run
+     * for as long as it takes.
+     */
+    public long timeBudget() {
+        return 0;
+    }
+
+    /**
+     * @return The number of milliseconds the job has been running for, or
+     * -1 if it is not running.
+     */
+    public final long runningTime() {
+        if (m_state != State.Running || runner == null)
+            return -1;
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * @return Whether the job was cancelled for running over its time
+     * budget. Long running jobs should check this, or the interrupted
+     * status of their thread, and give up when it is set.
+     */
+    public final boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancels a job that ran over its time budget: lets it release what
+     * it holds through {@link #timedOut(Thread)} and interrupts the thread
+     * running it. This method should only be called by the scheduler.
+     * @return Whether the job was running and had not been cancelled yet.
+     */
+    public final synchronized boolean callTimedOut() {
+        Thread t = runner;
+        if (m_state != State.Running || t == null || cancelled)
+            return false;
+        cancelled = true;
+        timedOut(t);
+        t.interrupt();
+        return true;
+    }
+
+    /**
+     * Called when the job is cancelled for running over its time budget,
+     * before thread \a t running it is interrupted. The job may still be
+     * running and holding on to resources, which it is not going to need
+     * any more. The default implementation does nothing.
+     */
+    protected void timedOut(Thread t) {
+    }
+
     /**
      * Sets the job's state to Queued and informs the job about the new
      * scheduler.
@@ -282,6 +508,19 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
         m_scheduler = null;
     }
 
+    /**
+     * Ends a job the scheduler did not run, because an equivalent job was
+     * pending or running, in the state that job ended in.
+     * This method should only be called by the scheduler, which is not
+     * told about the change as the job never ran.
+     */
+    public final void callCollapsed(Job equivalent) {
+        m_scheduler = null;
+        if (equivalent.state() == State.Error)
+            m_errorException = equivalent.getErrorException();
+        setState(equivalent.state());
+    }
+
 
     /**
      * The priority of the job is the order of job within the scheduler's queue.
@@ -292,22 +531,60 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
      */
     abstract public long priority();
 
+    /**
+     * Tags of the kind of work the job does, such as "db-heavy" or
+     * "process-spawning". The scheduler runs a job in the bulkhead named
+     * after its class and in one for each tag; bulkheads that have a
+     * limit configured in eu.sqooss.scheduler.bulkheads cap the number of
+     * their jobs that run at once.
+     * @return The job's tags, none by default.
+     */
+    public String[] tags() {
+        return NO_TAGS;
+    }
+
+    /**
+     * Identity of the work the job does, such as the plug-in and object
+     * it measures. A job without dependencies is not queued while a job of
+     * the same class and key is pending or running; it ends when that one
+     * ends instead, so that waiting for it still works.
+     * @return The job's key, or null if it does not have one.
+     */
+    public String key() {
+        return null;
+    }
+
+    /**
+     * The project the job works on. Projects take turns in running their
+     * jobs, weighted by their shares in eu.sqooss.scheduler.shares, so
+     * that a large project does not hold up the others.
+     * @return The id of the job's project, or null if it does not belong
+     * to one.
+     */
+    public Long projectId() {
+        return null;
+    }
+
+    /**
+     * The plug-in the job does the work of. The scheduler adds up the CPU
+     * time, allocations and database time of jobs per plug-in, so that
+     * the expensive ones can be found.
+     * @return The plug-in's name, or null if the job does not belong to
+     * one.
+     */
+    public String plugin() {
+        return null;
+    }
+
     /**
      * @return All unfinished jobs this job depends on.
      */
     public final List<Job> dependencies() {
-        if (m_dependencies == null)
-            return Collections.EMPTY_LIST;
-        
-        List<Job> result = new LinkedList<Job>();
-        synchronized (m_dependencies) {
-            for (Pair<Job,Job> p: m_dependencies) {
-                if (p.second == this) {
-                    result.add(p.first);
-                }
-            }
+        synchronized (depLock) {
+            if (m_dependencies == null)
+                return Collections.emptyList();
+            return new ArrayList<Job>(m_dependencies);
         }
-        return result;
     }
 
     /**
@@ -354,15 +631,7 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
      * @return true, when all dependencies are met.
      */
     public boolean canExecute() {
-        final List<Job> deps = dependencies();
-        Iterator<Job> it = deps.iterator();
-        while (it.hasNext()) {
-            Job j = it.next();
-            if (j.state() != State.Finished && j.state() != State.Error) {
-                return false;
-            }
-        }
-        return true;
+        return pendingDependencies.get() == 0;
     }
     
     /**
@@ -416,33 +685,20 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
 
         m_state = s;
 
-        if ((m_state == State.Finished || m_state == State.Error) && m_dependencies != null) {
-            // remove the job from the dependency list
-            List<Job> unblockedJobs = new LinkedList<Job>();
-            synchronized (m_dependencies) {
-                List<Pair<Job,Job>> doomed = new LinkedList<Pair<Job,Job>>();
-                for (Pair<Job,Job> p: m_dependencies) {
-                    if (p.first == this) {
-                        doomed.add(p);
-                        unblockedJobs.add(p.second);
-                    }
-                }
-                m_dependencies.removeAll(doomed);
-            }
-            /* tell all jobs depending on the now finished on to forward that
-             * to the scheduler
+        if (m_state == State.Finished || m_state == State.Error) {
+            /* Count down the jobs depending on this one; those that reach
+             * zero are released by the scheduler
              */
-            for (Job j: unblockedJobs) {
-                j.callDependenciesChanged();
+            List<Job> dependees;
+            synchronized (depLock) {
+                done = true;
+                dependees = m_dependees;
+                m_dependees = null;
             }
-        }
-        
-        if ((m_state == State.Finished || m_state == State.Error) && m_dependees != null) {
-            synchronized (m_dependees) {
-                for (Job p: m_dependees) {
-                    p.callDependenciesChanged();
+            if (dependees != null) {
+                for (Job j : dependees) {
+                    j.dependencyDone(this);
                 }
-                m_dependees.clear();
             }
         }
 
@@ -477,16 +733,14 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
     }
 
     /**
-     * Restart a failing job by keeping count of the number of restarts
-     * @throws Exception to signify that the maximum number of restarts
-     * was reached
+     * Restart a failing job. The job is queued again after a delay, as
+     * for a {@link RetryException} of a plug-in error, so this should be
+     * the last thing {@link #run()} does.
+     * @throws RetryException always
      */
     protected void restart() throws Exception {
-        restarts++;
-        if (restarts >= 5) {
-            throw new Exception("Too many restarts - failing job");
-        }
-        run();
+        throw new RetryException(RetryException.Failure.PLUGIN,
+                "Job " + this + " asked to be restarted");
     }
     
     /**
@@ -558,8 +812,11 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
             throw new SchedulerException("Resume point is null");
         
         try {
+            started();
             setState(State.Running);
             resumePoint.resume();
+            if (cancelled)
+                throw timedOutException(null);
                        
             assert (!dbs.isDBSessionActive());            
             if (dbs.isDBSessionActive()) {
@@ -574,11 +831,16 @@ public abstract class Job implements Comparable<Job>, Callable<Void> {
                 dbs.rollbackDBSession();
             }
             
+            if (cancelled && !(e instanceof TimeoutException))
+                e = timedOutException(e);
+            
             // In case of an exception, state becomes Error
             m_errorException = e;
             setState(State.Error);
             // the Exception itself is forwarded
             throw e;
+        } finally {
+            stopped();
         }
         
         return System.currentTimeMillis() - ts;
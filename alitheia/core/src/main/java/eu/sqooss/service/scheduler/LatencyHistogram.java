@@ -0,0 +1,126 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,  
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package eu.sqooss.service.scheduler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations that threads can record to without locking.
+ * Durations are kept in microseconds, in buckets that split each power of
+ * two in eight, so percentiles are accurate to within 12.5%.
+ */
+public class LatencyHistogram {
+
+    /* Values below this have a bucket of their own */
+    private static final int EXACT = 16;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = EXACT + (63 - 4) * (1 << SUB_BITS) + (1 << SUB_BITS);
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     * @param nanos The duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        long m;
+        while (micros > (m = max.get()))
+            if (max.compareAndSet(m, micros))
+                break;
+    }
+
+    static int bucket(long v) {
+        if (v < EXACT)
+            return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return EXACT + (exp - 4) * (1 << SUB_BITS) + sub;
+    }
+
+    /* The largest value that falls in a bucket */
+    static long highest(int bucket) {
+        if (bucket < EXACT)
+            return bucket;
+        int exp = (bucket - EXACT) / (1 << SUB_BITS) + 4;
+        long sub = (bucket - EXACT) % (1 << SUB_BITS);
+        long low = ((1L << SUB_BITS) + sub) << (exp - SUB_BITS);
+        return low + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    /** The number of durations recorded */
+    public long getCount() {
+        return count.get();
+    }
+
+    /** The longest duration recorded, in microseconds */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param p The percentile, between 0 and 100
+     * @return The duration in microseconds that p percent of the recorded
+     * ones do not exceed, 0 if none were recorded.
+     */
+    public long getPercentile(double p) {
+        long total = count.get();
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(p / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(highest(i), getMax());
+        }
+        return getMax();
+    }
+
+    /** Summary of the histogram in milliseconds */
+    @Override
+    public String toString() {
+        return String.format("count=%d p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms",
+                getCount(), getPercentile(50) / 1000.0, getPercentile(95) / 1000.0,
+                getPercentile(99) / 1000.0, getMax() / 1000.0);
+    }
+}
+
+//vi: ai nosi sw=4 ts=4 expandtab
@@ -0,0 +1,106 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,  
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package eu.sqooss.service.scheduler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The resources used by the jobs of a class or plug-in: their CPU time,
+ * the bytes they allocated and the time they spent in database sessions,
+ * next to their wall-clock run time. The time of jobs run in the thread of
+ * a job waiting for them counts for them, not the waiting job. Threads
+ * record to it without locking.
+ */
+public class ResourceUsage {
+
+    private final AtomicLong jobs = new AtomicLong();
+    private final AtomicLong runTime = new AtomicLong();
+    private final AtomicLong cpuTime = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong dbTime = new AtomicLong();
+
+    /**
+     * Record the usage of a job. Figures the JVM cannot measure are
+     * negative and not recorded.
+     * @param run The wall-clock run time in nanoseconds
+     * @param cpu The CPU time in nanoseconds
+     * @param allocated The bytes allocated
+     * @param db The time spent in database sessions in nanoseconds
+     */
+    public void record(long run, long cpu, long allocated, long db) {
+        jobs.incrementAndGet();
+        runTime.addAndGet(Math.max(0, run));
+        if (cpu > 0)
+            cpuTime.addAndGet(cpu);
+        if (allocated > 0)
+            allocatedBytes.addAndGet(allocated);
+        if (db > 0)
+            dbTime.addAndGet(db);
+    }
+
+    /** The number of jobs recorded */
+    public long getJobs() {
+        return jobs.get();
+    }
+
+    /** Wall-clock run time in nanoseconds */
+    public long getRunTime() {
+        return runTime.get();
+    }
+
+    /** CPU time in nanoseconds */
+    public long getCpuTime() {
+        return cpuTime.get();
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /** Time spent in database sessions in nanoseconds */
+    public long getDbTime() {
+        return dbTime.get();
+    }
+
+    /** Summary of the usage, times in milliseconds */
+    @Override
+    public String toString() {
+        return String.format("jobs=%d run=%.3fms cpu=%.3fms alloc=%dMB db=%.3fms",
+                getJobs(), getRunTime() / 1e6, getCpuTime() / 1e6,
+                getAllocatedBytes() >> 20, getDbTime() / 1e6);
+    }
+}
+
+//vi: ai nosi sw=4 ts=4 expandtab
@@ -64,6 +64,14 @@ public interface Scheduler extends AlitheiaCoreService {
      */
     void enqueueBlock(List<Job> jobs) throws SchedulerException;
     
+    /**
+     * Waits while the scheduler is full. Jobs queued by other jobs do not
+     * wait, as the jobs waiting would hold up the queue; a job that queues
+     * lots of jobs and waits for none of them can call this to wait for
+     * room without holding anything the queue needs.
+     */
+    void awaitAdmission() throws SchedulerException;
+
     /**
      * This method is called, when the state of the job \a job changes to 
      * \a state.
@@ -148,5 +156,30 @@ public interface Scheduler extends AlitheiaCoreService {
      * @throws SchedulerException 
      */
     void yield(Job j, ResumePoint p) throws SchedulerException;
+
+    /**
+     * Queue a job that failed for a transient reason again, after a delay
+     * that grows with the number of times it was retried. Called by the
+     * running job, which counts the retry and goes back to state Queued
+     * if it is accepted. The job runs again only after the failed attempt
+     * has ended, and its future stays pending until the final attempt.
+     * 
+     * @param job The failed job
+     * @param e The failure, whose kind selects the retry policy
+     * @return false if the job has used up its retries and should fail
+     */
+    boolean retry(Job job, RetryException e);
+
+    /**
+     * Queue again the journaled jobs of a type that were pending when the
+     * scheduler last stopped. A job is restored after the jobs it depended
+     * on, which are added as its dependencies again. Does nothing if the
+     * scheduler keeps no journal.
+     * 
+     * @param type The {@link DurableJob#journalType()} of the jobs
+     * @param factory Recreates the jobs from their records
+     * @return The number of jobs queued
+     */
+    int restoreJobs(String type, JobFactory factory) throws SchedulerException;
     
 }
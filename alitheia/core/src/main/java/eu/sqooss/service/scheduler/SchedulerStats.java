@@ -31,144 +31,422 @@
  *
  */
 
+
 package eu.sqooss.service.scheduler;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.collections.list.SynchronizedList;
+import eu.sqooss.service.util.StripedCounter;
 
+/**
+ * Scheduler counters. Worker threads update them concurrently without
+ * locking each other out; readers get a snapshot of each figure, which may
+ * be slightly out of step with the others.
+ *
+ * Figures that change with every job are striped, so that workers do not
+ * all write to the same cache line; the rest are plain atomics.
+ */
 public class SchedulerStats {
     // the number of jobs currently in the scheduler
-    private long totalJobs = 0;
+    private final StripedCounter totalJobs = new StripedCounter();
     // the number of jobs which were finished
-    private long finishedJobs = 0;
+    private final StripedCounter finishedJobs = new StripedCounter();
     // the number of jobs currently waiting
-    private long waitingJobs = 0;
+    private final StripedCounter waitingJobs = new StripedCounter();
     // the number of jobs currently running
-    private long runningJobs = 0;
+    private final StripedCounter runningJobs = new StripedCounter();
     // the total number of threads available for scheduling
-    private long workerThreads = 0;
+    private final AtomicLong workerThreads = new AtomicLong();
+    // the number of jobs run at once
+    private volatile int concurrencyLimit;
     // the number of threads being idle at the moment
-    private long idleWorkerThreads = 0;
+    private final StripedCounter idleWorkerThreads = new StripedCounter();
     // the number of jobs which failed
-    private long failedJobs = 0;
+    private final StripedCounter failedJobs = new StripedCounter();
     //Classname->Failed Jobs 
-    private HashMap<String, Integer> failedJobTypes = new HashMap<String, Integer>();
+    private final ConcurrentMap<String, AtomicInteger> failedJobTypes =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    // the number of jobs cancelled for running over their time budget
+    private final StripedCounter timedOutJobs = new StripedCounter();
+    //Classname->Timed out jobs
+    private final ConcurrentMap<String, AtomicInteger> timedOutJobTypes =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    // the number of times failed jobs were queued again
+    private final StripedCounter retries = new StripedCounter();
+    // the number of jobs waiting for their retry delay to pass
+    private final AtomicLong retryingJobs = new AtomicLong();
+    // the number of jobs not queued as an equivalent one was pending
+    private final StripedCounter collapsedJobs = new StripedCounter();
+    // the number of threads waiting to queue jobs
+    private final AtomicLong blockedProducers = new AtomicLong();
+    // the number of times a thread had to wait to queue a job
+    private final StripedCounter throttledEnqueues = new StripedCounter();
+    // the number of times a thread waited for the lock of a ready queue
+    private final StripedCounter readyQueueWaits = new StripedCounter();
+    // the nanoseconds threads spent waiting for the lock of a ready queue
+    private final StripedCounter readyQueueWaitTime = new StripedCounter();
+    //Kind of failure->Retries
+    private final ConcurrentMap<String, AtomicInteger> retryTypes =
+        new ConcurrentHashMap<String, AtomicInteger>();
     //Classname->Num jobs waiting
-    private HashMap<String, Integer> waitingJobTypes = new HashMap<String, Integer>();
+    private final ConcurrentMap<String, StripedCounter> waitingJobTypes =
+        new ConcurrentHashMap<String, StripedCounter>();
     //Running jobs
-    private List<Job> runJobs = new Vector<Job>();
+    private final Set<Job> runJobs =
+        Collections.newSetFromMap(new ConcurrentHashMap<Job, Boolean>());
+    //Classname->Time from becoming runnable to starting
+    private final ConcurrentMap<String, LatencyHistogram> waitTimes =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+    //Classname->Time spent running
+    private final ConcurrentMap<String, LatencyHistogram> runTimes =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+    //Classname->Resources used by its jobs
+    private final ConcurrentMap<String, ResourceUsage> jobUsage =
+        new ConcurrentHashMap<String, ResourceUsage>();
+    //Plug-in->Resources used by its jobs
+    private final ConcurrentMap<String, ResourceUsage> pluginUsage =
+        new ConcurrentHashMap<String, ResourceUsage>();
+    //Bulkhead->Num jobs running in it
+    private final ConcurrentMap<String, Integer> bulkheadRunningJobs =
+        new ConcurrentHashMap<String, Integer>();
+    //Bulkhead->Num jobs waiting for a place
+    private final ConcurrentMap<String, Integer> bulkheadWaitingJobs =
+        new ConcurrentHashMap<String, Integer>();
+    //Bulkhead->Max num of running jobs
+    private final ConcurrentMap<String, Integer> bulkheadLimits =
+        new ConcurrentHashMap<String, Integer>();
     
-    public synchronized void incTotalJobs() {
-        totalJobs++;
+    public void incTotalJobs() {
+        totalJobs.increment();
     }
 
-    public synchronized void decTotalJobs() {
-        totalJobs--;
+    public void decTotalJobs() {
+        totalJobs.add(-1);
     }
    
-    public synchronized void incFinishedJobs() {
-        finishedJobs++;
+    public void incFinishedJobs() {
+        finishedJobs.increment();
     }
     
-    public synchronized void incWorkerThreads() {
-        workerThreads++;
+    public void incWorkerThreads() {
+        workerThreads.incrementAndGet();
     }
     
-    public synchronized void decWorkerThreads() {
-        workerThreads--;
+    public void decWorkerThreads() {
+        workerThreads.decrementAndGet();
     }
     
-    public synchronized void incIdleWorkerThreads() {
-        idleWorkerThreads++;
+    public void setConcurrencyLimit(int limit) {
+        concurrencyLimit = limit;
+    }
+
+    public void incIdleWorkerThreads() {
+        idleWorkerThreads.increment();
     }
     
-    public synchronized void decIdleWorkerThreads() {
-        idleWorkerThreads--;
+    public void decIdleWorkerThreads() {
+        idleWorkerThreads.add(-1);
     }
     
-    public synchronized void addFailedJob(String classname) {
-        this.failedJobs++;
-        if (failedJobTypes.containsKey(classname))
-            failedJobTypes.put(classname, (failedJobTypes.get(classname) + 1));
-        else
-            failedJobTypes.put(classname, 1);
+    public void addFailedJob(String classname) {
+        failedJobs.increment();
+        counter(failedJobTypes, classname).incrementAndGet();
+    }
+
+    public void addTimedOutJob(String classname) {
+        timedOutJobs.increment();
+        counter(timedOutJobTypes, classname).incrementAndGet();
+    }
+
+    public void addRetry(String failure) {
+        retries.increment();
+        counter(retryTypes, failure).incrementAndGet();
+    }
+
+    public void incRetryingJobs() {
+        retryingJobs.incrementAndGet();
     }
 
-    public synchronized void addWaitingJob(String classname) {
-        this.waitingJobs++;
-        if (waitingJobTypes.containsKey(classname))
-            waitingJobTypes.put(classname, (waitingJobTypes.get(classname) + 1));
-        else
-            waitingJobTypes.put(classname, 1);
+    public void decRetryingJobs() {
+        retryingJobs.decrementAndGet();
+    }
+
+    public void addCollapsedJob() {
+        collapsedJobs.increment();
+    }
+
+    public void incBlockedProducers() {
+        blockedProducers.incrementAndGet();
+    }
+
+    public void decBlockedProducers() {
+        blockedProducers.decrementAndGet();
+    }
+
+    public void addThrottledEnqueue() {
+        throttledEnqueues.increment();
+    }
+
+    public void addReadyQueueWait(long nanos) {
+        readyQueueWaits.increment();
+        readyQueueWaitTime.add(nanos);
+    }
+
+    public void addWaitingJob(String classname) {
+        waitingJobs.increment();
+        striped(waitingJobTypes, classname).increment();
     }
     
-    public synchronized void removeWaitingJob(String classname) {
-        this.waitingJobs --;
-        if (waitingJobTypes.containsKey(classname)) {
-            int jobs = waitingJobTypes.get(classname) - 1;
-            if (jobs == 0) {
-                waitingJobTypes.remove(classname);
-            }
-            
-            waitingJobTypes.put(classname, jobs);
+    public void removeWaitingJob(String classname) {
+        waitingJobs.add(-1);
+        StripedCounter jobs = waitingJobTypes.get(classname);
+        if (jobs != null)
+            jobs.add(-1);
+    }
+
+    private static AtomicInteger counter(ConcurrentMap<String, AtomicInteger> m,
+            String key) {
+        AtomicInteger c = m.get(key);
+        if (c == null) {
+            AtomicInteger created = new AtomicInteger();
+            c = m.putIfAbsent(key, created);
+            if (c == null)
+                c = created;
+        }
+        return c;
+    }
+
+    private static StripedCounter striped(
+            ConcurrentMap<String, StripedCounter> m, String key) {
+        StripedCounter c = m.get(key);
+        if (c == null) {
+            StripedCounter created = new StripedCounter();
+            c = m.putIfAbsent(key, created);
+            if (c == null)
+                c = created;
         }
+        return c;
     }
- 
-    public synchronized void addRunJob(Job j) {
-        this.runningJobs++;
-        this.runJobs.add(j);
+
+    private static LatencyHistogram histogram(
+            ConcurrentMap<String, LatencyHistogram> m, String key) {
+        LatencyHistogram h = m.get(key);
+        if (h == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            h = m.putIfAbsent(key, created);
+            if (h == null)
+                h = created;
+        }
+        return h;
+    }
+
+    private static ResourceUsage usage(
+            ConcurrentMap<String, ResourceUsage> m, String key) {
+        ResourceUsage u = m.get(key);
+        if (u == null) {
+            ResourceUsage created = new ResourceUsage();
+            u = m.putIfAbsent(key, created);
+            if (u == null)
+                u = created;
+        }
+        return u;
+    }
+
+    /* Copy of the non-zero counters */
+    private static HashMap<String, Integer> snapshot(
+            ConcurrentMap<String, AtomicInteger> m) {
+        HashMap<String, Integer> result = new HashMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> e : m.entrySet()) {
+            int n = e.getValue().get();
+            if (n != 0)
+                result.put(e.getKey(), n);
+        }
+        return result;
+    }
+
+    private static HashMap<String, Integer> stripedSnapshot(
+            ConcurrentMap<String, StripedCounter> m) {
+        HashMap<String, Integer> result = new HashMap<String, Integer>();
+        for (Map.Entry<String, StripedCounter> e : m.entrySet()) {
+            int n = (int) e.getValue().sum();
+            if (n != 0)
+                result.put(e.getKey(), n);
+        }
+        return result;
+    }
+
+    /**
+     * Record how long a job waited for a worker after it became runnable.
+     */
+    public void addWaitTime(String classname, long nanos) {
+        histogram(waitTimes, classname).record(nanos);
+    }
+
+    /**
+     * Record how long a job ran.
+     */
+    public void addRunTime(String classname, long nanos) {
+        histogram(runTimes, classname).record(nanos);
+    }
+
+    /**
+     * Record the resources a job used, for its class and its plug-in.
+     * @param plugin The name of the job's plug-in, or null
+     * @see ResourceUsage#record(long, long, long, long)
+     */
+    public void addResourceUsage(String classname, String plugin, long run,
+            long cpu, long allocated, long db) {
+        usage(jobUsage, classname).record(run, cpu, allocated, db);
+        if (plugin != null)
+            usage(pluginUsage, plugin).record(run, cpu, allocated, db);
+    }
+
+    public void setBulkheadOccupancy(String bulkhead, int running,
+            int waiting, int limit) {
+        bulkheadRunningJobs.put(bulkhead, running);
+        bulkheadWaitingJobs.put(bulkhead, waiting);
+        bulkheadLimits.put(bulkhead, limit);
+    }
+
+    public void addRunJob(Job j) {
+        runningJobs.increment();
+        runJobs.add(j);
     }
     
-    public synchronized void removeRunJob(Job j) {
-        this.runningJobs--;
-        this.runJobs.remove(j);
+    public void removeRunJob(Job j) {
+        runningJobs.add(-1);
+        runJobs.remove(j);
     }
     
     public long getTotalJobs() {
-        return totalJobs;
+        return totalJobs.sum();
     }
 
     public long getWaitingJobs() {
-        return waitingJobs;
+        return waitingJobs.sum();
     }
 
     public long getFinishedJobs() {
-        return finishedJobs;
+        return finishedJobs.sum();
     }
 
     public long getRunningJobs() {
-        return runningJobs;
+        return runningJobs.sum();
     }
 
     public long getWorkerThreads() {
-        return workerThreads;
+        return workerThreads.get();
+    }
+
+    /** The number of jobs the scheduler runs at once */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
     }
 
     public long getIdleWorkerThreads() {
-        return idleWorkerThreads;
+        return idleWorkerThreads.sum();
     }
 
     public long getFailedJobs() {
-        return failedJobs;
+        return failedJobs.sum();
+    }
+    
+    public long getTimedOutJobs() {
+        return timedOutJobs.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getRetryingJobs() {
+        return retryingJobs.get();
+    }
+
+    public long getCollapsedJobs() {
+        return collapsedJobs.sum();
+    }
+
+    public long getBlockedProducers() {
+        return blockedProducers.get();
+    }
+
+    public long getThrottledEnqueues() {
+        return throttledEnqueues.sum();
+    }
+
+    public long getReadyQueueWaits() {
+        return readyQueueWaits.sum();
+    }
+
+    /** In milliseconds */
+    public long getReadyQueueWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(readyQueueWaitTime.sum());
+    }
+
+    /** Retries by kind of failure */
+    public HashMap<String, Integer> getRetryTypes() {
+        return snapshot(retryTypes);
     }
     
+    /** Jobs cancelled for running over their time budget, by class name */
+    public HashMap<String, Integer> getTimedOutJobTypes() {
+        return snapshot(timedOutJobTypes);
+    }
+
     public HashMap<String, Integer> getFailedJobTypes() {
-        return failedJobTypes;
+        return snapshot(failedJobTypes);
     }
     
     public HashMap<String, Integer> getWaitingJobTypes() {
-        return waitingJobTypes;
+        return stripedSnapshot(waitingJobTypes);
+    }
+
+    /** Queue wait times by job class name */
+    public HashMap<String, LatencyHistogram> getWaitTimes() {
+        return new HashMap<String, LatencyHistogram>(waitTimes);
+    }
+
+    /** Execution times by job class name */
+    public HashMap<String, LatencyHistogram> getRunTimes() {
+        return new HashMap<String, LatencyHistogram>(runTimes);
+    }
+
+    /** Resources used by job class name */
+    public HashMap<String, ResourceUsage> getJobUsage() {
+        return new HashMap<String, ResourceUsage>(jobUsage);
+    }
+
+    /** Resources used by plug-in name */
+    public HashMap<String, ResourceUsage> getPluginUsage() {
+        return new HashMap<String, ResourceUsage>(pluginUsage);
+    }
+
+    public HashMap<String, Integer> getBulkheadRunningJobs() {
+        return new HashMap<String, Integer>(bulkheadRunningJobs);
+    }
+
+    public HashMap<String, Integer> getBulkheadWaitingJobs() {
+        return new HashMap<String, Integer>(bulkheadWaitingJobs);
+    }
+
+    public HashMap<String, Integer> getBulkheadLimits() {
+        return new HashMap<String, Integer>(bulkheadLimits);
     }
     
-    public synchronized List<String> getRunJobs() {
-        Job[] jobs = new Job[runJobs.size()];
-        runJobs.toArray(jobs);
+    public List<String> getRunJobs() {
         List<String> jobDescr = new ArrayList<String>();
-        for (Job j : jobs) {
+        for (Job j : runJobs) {
             jobDescr.add(j.toString());
         }
         return jobDescr;
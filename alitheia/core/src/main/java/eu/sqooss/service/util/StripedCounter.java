@@ -0,0 +1,97 @@
+/*
+ * This file is part of the Alitheia system, developed by the SQO-OSS
+ * consortium as part of the IST FP6 SQO-OSS project, number 033331.
+ *
+ * Copyright 2007 - 2010 - Organization for Free and Open Source Software,
+ *                Athens, Greece.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package eu.sqooss.service.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for values that are updated by many threads and read rarely,
+ * such as statistics. Updates are spread over a number of cells, selected
+ * by the updating thread, so that threads seldom contend on the same cache
+ * line; reads sum all cells.
+ *
+ * The sum is not an atomic snapshot if updates happen concurrently.
+ */
+public class StripedCounter {
+
+    /* Cells are spaced so that each sits on its own cache line */
+    private static final int PAD = 8;
+    private static final int CELLS;
+
+    static {
+        int n = 1;
+        while (n < 2 * Runtime.getRuntime().availableProcessors())
+            n <<= 1;
+        CELLS = Math.min(n, 64);
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * PAD);
+
+    public StripedCounter() {}
+
+    /** Add the provided value to the counter. */
+    public void add(long x) {
+        cells.addAndGet(cell(), x);
+    }
+
+    /** Add one to the counter. */
+    public void increment() {
+        add(1);
+    }
+
+    /** The current value of the counter. */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < CELLS; i++)
+            sum += cells.get(i * PAD);
+        return sum;
+    }
+
+    /** Set the counter to zero. */
+    public void reset() {
+        for (int i = 0; i < CELLS; i++)
+            cells.set(i * PAD, 0);
+    }
+
+    private static int cell() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((h >>> 16) & (CELLS - 1)) * PAD;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
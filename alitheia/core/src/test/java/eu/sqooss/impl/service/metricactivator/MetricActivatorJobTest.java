@@ -0,0 +1,119 @@
+package eu.sqooss.impl.service.metricactivator;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import eu.sqooss.service.abstractmetric.AbstractMetric;
+import eu.sqooss.service.db.DAObject;
+import eu.sqooss.service.db.DBService;
+import eu.sqooss.service.db.Metric;
+import eu.sqooss.service.db.ProjectFile;
+import eu.sqooss.service.logging.Logger;
+import eu.sqooss.service.scheduler.Job;
+import eu.sqooss.service.scheduler.RetryException;
+import eu.sqooss.service.scheduler.Scheduler;
+
+public class MetricActivatorJobTest {
+
+    AbstractMetric metric;
+    DBService db;
+    Scheduler sched;
+    List<Long> ids = new ArrayList<Long>();
+    List<ProjectFile> files = new ArrayList<ProjectFile>();
+
+    @Before
+    public void setUp() throws Exception {
+        metric = mock(AbstractMetric.class);
+        db = mock(DBService.class);
+        sched = mock(Scheduler.class);
+        when(db.startDBSession()).thenReturn(true);
+        when(db.commitDBSession()).thenReturn(true);
+        when(db.rollbackDBSession()).thenReturn(true);
+        when(metric.getSupportedMetrics(any(Class.class)))
+            .thenReturn(Collections.singletonList(new Metric()));
+        for (long id = 1; id <= 5; id++) {
+            ProjectFile f = mock(ProjectFile.class);
+            when(db.findObjectById(ProjectFile.class, id)).thenReturn(f);
+            ids.add(id);
+            files.add(f);
+        }
+    }
+
+    private MetricActivatorJob batch(int commitInterval) throws Exception {
+        MetricActivatorJob j = new MetricActivatorJob(metric, ids,
+                mock(Logger.class), ProjectFile.class, 1, false,
+                commitInterval, db);
+        j.callAboutToBeEnqueued(sched);
+        return j;
+    }
+
+    @Test
+    public void testBatchCommitsEveryInterval() throws Exception {
+        MetricActivatorJob j = batch(2);
+        j.execute();
+
+        Assert.assertEquals(Job.State.Finished, j.state());
+        for (ProjectFile f : files)
+            verify(metric).getResult(eq((DAObject) f), anyListOf(Metric.class));
+        verify(db, times(3)).commitDBSession();
+        verify(db, never()).rollbackDBSession();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFailingObjectIsRetriedAlone() throws Exception {
+        doThrow(new RuntimeException("broken file")).when(metric)
+            .getResult(eq((DAObject) files.get(2)), anyListOf(Metric.class));
+        MetricActivatorJob j = batch(10);
+        j.execute();
+
+        /* The others are calculated again and committed without it */
+        Assert.assertEquals(Job.State.Finished, j.state());
+        verify(db).rollbackDBSession();
+        verify(db).commitDBSession();
+        verify(metric, times(2)).getResult(eq((DAObject) files.get(0)),
+                anyListOf(Metric.class));
+        verify(metric, times(1)).getResult(eq((DAObject) files.get(2)),
+                anyListOf(Metric.class));
+        verify(metric, times(1)).getResult(eq((DAObject) files.get(4)),
+                anyListOf(Metric.class));
+
+        /* Only the failing object is queued again */
+        ArgumentCaptor<Set> queued = ArgumentCaptor.forClass(Set.class);
+        verify(sched).enqueueNoDependencies(queued.capture());
+        Set<Job> jobs = queued.getValue();
+        Assert.assertEquals(1, jobs.size());
+        Assert.assertTrue(jobs.iterator().next().toString().contains("DAO:{3}"));
+    }
+
+    @Test
+    public void testFailedCommitIsRetried() throws Exception {
+        when(db.commitDBSession()).thenReturn(true, false);
+        MetricActivatorJob j = batch(2);
+        try {
+            j.execute();
+            Assert.fail("The job did not fail");
+        } catch (RetryException e) {
+            Assert.assertEquals(RetryException.Failure.LOCK, e.getFailure());
+        }
+        verify(sched).retry(eq(j), any(RetryException.class));
+        verify(sched, never()).enqueueNoDependencies(any(Set.class));
+    }
+}
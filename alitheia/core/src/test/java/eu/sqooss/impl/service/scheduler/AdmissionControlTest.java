@@ -0,0 +1,75 @@
+package eu.sqooss.impl.service.scheduler;
+
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import eu.sqooss.service.scheduler.SchedulerStats;
+
+public class AdmissionControlTest {
+
+    static final long MB = 1024 * 1024;
+
+    /* A heap pool with the given use after its last collection */
+    static MemoryPoolMXBean pool(final String name, final boolean tenured,
+            final long used, final long max) {
+        return (MemoryPoolMXBean) Proxy.newProxyInstance(
+                MemoryPoolMXBean.class.getClassLoader(),
+                new Class<?>[] {MemoryPoolMXBean.class},
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args) {
+                String n = m.getName();
+                if (n.equals("getName"))
+                    return name;
+                if (n.equals("getType"))
+                    return MemoryType.HEAP;
+                if (n.equals("isUsageThresholdSupported"))
+                    return tenured;
+                if (n.equals("isCollectionUsageThresholdSupported"))
+                    return true;
+                if (n.equals("getCollectionUsage") || n.equals("getUsage"))
+                    return new MemoryUsage(0, used, max, max);
+                throw new UnsupportedOperationException(n);
+            }
+        });
+    }
+
+    @Test
+    public void testYoungPoolsDoNotCount() {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        /* Survivor space is routinely full after a minor collection */
+        pools.add(pool("Eden Space", false, 0, 100 * MB));
+        pools.add(pool("Survivor Space", false, 10 * MB, 10 * MB));
+        pools.add(pool("Tenured Gen", true, 300 * MB, 1000 * MB));
+        SchedulerStats stats = new SchedulerStats();
+        stats.addWaitingJob("job");
+
+        AdmissionControl a = new AdmissionControl(0, 0.85, stats, pools);
+        Assert.assertEquals(0.3, a.heapOccupancy(), 0.001);
+        Assert.assertFalse(a.pressure());
+    }
+
+    @Test
+    public void testTenuredPoolsHoldUpProducers() {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        pools.add(pool("Survivor Space", false, 0, 10 * MB));
+        pools.add(pool("Old Gen", true, 700 * MB, 800 * MB));
+        pools.add(pool("Old Gen 2", true, 200 * MB, 200 * MB));
+        SchedulerStats stats = new SchedulerStats();
+
+        AdmissionControl a = new AdmissionControl(0, 0.85, stats, pools);
+        Assert.assertEquals(0.9, a.heapOccupancy(), 0.001);
+        /* Only while jobs are waiting, whose completion frees the heap */
+        Assert.assertFalse(a.pressure());
+        stats.addWaitingJob("job");
+        Assert.assertTrue(a.pressure());
+    }
+}
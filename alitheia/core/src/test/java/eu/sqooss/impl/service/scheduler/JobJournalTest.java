@@ -0,0 +1,83 @@
+package eu.sqooss.impl.service.scheduler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobJournalTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("jobs", ".journal");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private List<String> lines() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null)
+                lines.add(line);
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    @Test
+    public void testRemovalsWaitForSync() throws Exception {
+        JobJournal j = new JobJournal(file, null);
+        long id = j.reserve();
+        j.add(id, "test", new long[0], "a");
+        j.flush();
+        Assert.assertEquals(1, lines().size());
+
+        /* A crash now would restore the job again */
+        j.remove(id);
+        Assert.assertFalse(j.isPending(id));
+        Assert.assertEquals(1, lines().size());
+
+        j.sync();
+        Assert.assertEquals(2, lines().size());
+        Assert.assertEquals("-\t" + id, lines().get(1));
+        j.close();
+
+        JobJournal reopened = new JobJournal(file, null);
+        Assert.assertTrue(reopened.restorable("test").isEmpty());
+        reopened.close();
+    }
+
+    @Test
+    public void testCloseWritesRemovals() throws Exception {
+        JobJournal j = new JobJournal(file, null);
+        long a = j.reserve();
+        long b = j.reserve();
+        j.add(a, "test", new long[0], "a");
+        j.add(b, "test", new long[] {a}, "b");
+        j.flush();
+        j.remove(a);
+        j.close();
+
+        JobJournal reopened = new JobJournal(file, null);
+        List<JobJournal.Entry> entries = reopened.restorable("test");
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals("b", entries.get(0).record);
+        reopened.close();
+    }
+}
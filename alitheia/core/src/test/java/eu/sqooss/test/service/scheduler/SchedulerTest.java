@@ -7,12 +7,26 @@ import org.junit.Test;
 import eu.sqooss.impl.service.db.DBServiceImpl;
 import eu.sqooss.impl.service.scheduler.SchedulerServiceImpl;
 import eu.sqooss.service.db.DBService;
+import eu.sqooss.service.scheduler.DurableJob;
 import eu.sqooss.service.scheduler.Job;
+import eu.sqooss.service.scheduler.JobFactory;
+import eu.sqooss.service.scheduler.LatencyHistogram;
+import eu.sqooss.service.scheduler.ResourceUsage;
+import eu.sqooss.service.scheduler.RetryException;
 import eu.sqooss.service.scheduler.SchedulerException;
+import eu.sqooss.service.scheduler.SchedulerStats;
+import eu.sqooss.service.scheduler.WorkerThread;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -177,6 +191,1039 @@ public class SchedulerTest {
         Assert.assertFalse(sched.isExecuting());
     }
 
+    static class ThreadRecordingJob extends Job {
+        final Set<Thread> threads;
+
+        ThreadRecordingJob(Set<Thread> threads, DBService dbs) {
+            super(dbs);
+            this.threads = threads;
+        }
+
+        public long priority() {
+            return 0;
+        }
+
+        protected void run() throws Exception {
+            threads.add(Thread.currentThread());
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testBoundedWorkers() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        List<Job> jobs = new ArrayList<Job>();
+        for (int i = 0; i < 500; i++)
+            jobs.add(new ThreadRecordingJob(threads, dbs));
+        sched.enqueueBlock(jobs);
+        for (Job j : jobs)
+            j.future.get();
+
+        Assert.assertTrue(threads.size() <= 2);
+        Assert.assertTrue(sched.getWorkerThreads().length <= 2);
+        Assert.assertEquals(500, sched.getSchedulerStats().getFinishedJobs());
+    }
+
+    @Test
+    public void testWaitForJob() throws Exception {
+        final DBService dbs = DBServiceImpl.getInstance();
+        sched.stopExecute();
+        sched.startExecute(1);
+
+        final TestJob inner = new TestJob(1, "Inner", dbs);
+        Job outer = new TestJob(1, "Outer", dbs) {
+            protected void run() throws Exception {
+                sched.enqueue(inner);
+                /* The only worker runs the job it waits for */
+                inner.waitForFinished();
+            }
+        };
+        sched.enqueue(outer);
+        outer.future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(Job.State.Finished, inner.state());
+    }
+
+    static class OrderRecordingJob extends Job {
+        final List<Job> finished;
+        final List<Job> after = new ArrayList<Job>();
+
+        OrderRecordingJob(List<Job> finished, DBService dbs) {
+            super(dbs);
+            this.finished = finished;
+        }
+
+        public long priority() {
+            return 0;
+        }
+
+        protected void run() throws Exception {
+            if (!dependencies().isEmpty() || !finished.containsAll(after))
+                throw new Exception("Dependencies not finished");
+            finished.add(this);
+        }
+    }
+
+    @Test
+    public void testDependencies() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        List<Job> finished = Collections.synchronizedList(new ArrayList<Job>());
+        List<Job> jobs = new ArrayList<Job>();
+        Random r = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            OrderRecordingJob j = new OrderRecordingJob(finished, dbs);
+            /* Depend on a few earlier jobs, forming a wide DAG */
+            for (int k = 0; k < 3 && i > 0; k++) {
+                Job d = jobs.get(r.nextInt(i));
+                j.addDependency(d);
+                j.after.add(d);
+            }
+            jobs.add(j);
+        }
+        /* Queue dependees first, so that they have to wait */
+        Collections.reverse(jobs);
+        sched.enqueueBlock(jobs);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (sched.getSchedulerStats().getFinishedJobs() < 2000
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(2000, finished.size());
+        Assert.assertEquals(0, sched.getSchedulerStats().getFailedJobs());
+    }
+
+    @Test
+    public void testCyclicDependencies() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        TestJob j1 = new TestJob(1, "Job 1", dbs);
+        TestJob j2 = new TestJob(1, "Job 2", dbs);
+        TestJob j3 = new TestJob(1, "Job 3", dbs);
+        j2.addDependency(j1);
+        j3.addDependency(j2);
+        Assert.assertTrue(j3.dependsOn(j1));
+        Assert.assertFalse(j1.dependsOn(j3));
+        try {
+            j1.addDependency(j3);
+            Assert.fail();
+        } catch (SchedulerException e) {}
+        try {
+            j1.addDependency(j1);
+            Assert.fail();
+        } catch (SchedulerException e) {}
+
+        /* Removing the edge makes the reverse one legal */
+        j3.removeDependency(j2);
+        j2.removeDependency(j1);
+        j1.addDependency(j3);
+        Assert.assertTrue(j1.dependsOn(j3));
+        Assert.assertTrue(j2.canExecute());
+    }
+
+    @Test
+    public void testDependencyOnFinishedJob() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        TestJob j1 = new TestJob(1, "Job 1", dbs);
+        sched.enqueue(j1);
+        j1.future.get(10, TimeUnit.SECONDS);
+
+        TestJob j2 = new TestJob(1, "Job 2", dbs);
+        j2.addDependency(j1);
+        Assert.assertTrue(j2.canExecute());
+        sched.enqueue(j2);
+        j2.future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(Job.State.Finished, j2.state());
+    }
+
+    static class PriorityJob extends Job {
+        final long priority;
+        final List<Job> order;
+
+        PriorityJob(long priority, List<Job> order, DBService dbs) {
+            super(dbs);
+            this.priority = priority;
+            this.order = order;
+        }
+
+        public long priority() {
+            return priority;
+        }
+
+        protected void run() throws Exception {
+            order.add(this);
+        }
+    }
+
+    /* Occupy the only worker until the latch is released */
+    private void blockWorker(final CountDownLatch latch) throws Exception {
+        sched.stopExecute();
+        sched.startExecute(1);
+        Job gate = new TestJob(1, "Gate", DBServiceImpl.getInstance()) {
+            protected void run() throws Exception {
+                latch.await();
+            }
+        };
+        sched.enqueue(gate);
+        while (gate.state() != Job.State.Running)
+            Thread.sleep(1);
+    }
+
+    @Test
+    public void testPriorities() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        CountDownLatch latch = new CountDownLatch(1);
+        blockWorker(latch);
+
+        List<Job> order = Collections.synchronizedList(new ArrayList<Job>());
+        List<Job> jobs = new ArrayList<Job>();
+        for (int i = 0; i < 100; i++)
+            jobs.add(new PriorityJob(0x1000 + i, order, dbs));
+        for (int i = 0; i < 10; i++)
+            jobs.add(new PriorityJob(0, order, dbs));
+        for (Job j : jobs)
+            sched.enqueue(j);
+        latch.countDown();
+        for (Job j : jobs)
+            j.future.get(10, TimeUnit.SECONDS);
+
+        /* The updater-like jobs overtake the backlog, which stays in order */
+        for (int i = 0; i < 10; i++)
+            Assert.assertEquals(0, order.get(i).priority());
+        for (int i = 10; i < order.size(); i++)
+            Assert.assertEquals(0x1000 + i - 10, order.get(i).priority());
+    }
+
+    @Test
+    public void testAging() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        CountDownLatch latch = new CountDownLatch(1);
+        System.setProperty("eu.sqooss.scheduler.aging", "1");
+        try {
+            blockWorker(latch);
+        } finally {
+            System.clearProperty("eu.sqooss.scheduler.aging");
+        }
+
+        List<Job> order = Collections.synchronizedList(new ArrayList<Job>());
+        Job old = new PriorityJob(20, order, dbs);
+        sched.enqueue(old);
+        Thread.sleep(100);
+        Job recent = new PriorityJob(0, order, dbs);
+        sched.enqueue(recent);
+        latch.countDown();
+        recent.future.get(10, TimeUnit.SECONDS);
+        old.future.get(10, TimeUnit.SECONDS);
+
+        /* Waiting 100ms made up for 20 priority levels */
+        Assert.assertSame(old, order.get(0));
+    }
+
+    static class ProjectJob extends PriorityJob {
+        final Long project;
+
+        ProjectJob(Long project, List<Job> order, DBService dbs) {
+            super(0, order, dbs);
+            this.project = project;
+        }
+
+        public Long projectId() {
+            return project;
+        }
+    }
+
+    @Test
+    public void testFairShare() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        CountDownLatch latch = new CountDownLatch(1);
+        System.setProperty("eu.sqooss.scheduler.shares", "2=2");
+        try {
+            blockWorker(latch);
+        } finally {
+            System.clearProperty("eu.sqooss.scheduler.shares");
+        }
+
+        List<Job> order = Collections.synchronizedList(new ArrayList<Job>());
+        List<Job> jobs = new ArrayList<Job>();
+        for (int i = 0; i < 40; i++)
+            jobs.add(new ProjectJob(1L, order, dbs));
+        for (int i = 0; i < 10; i++)
+            jobs.add(new ProjectJob(2L, order, dbs));
+        for (Job j : jobs)
+            sched.enqueue(j);
+        latch.countDown();
+        for (Job j : jobs)
+            j.future.get(10, TimeUnit.SECONDS);
+
+        /* The small project gets two turns for each of the large one's */
+        int last = 0;
+        for (int i = 0; i < order.size(); i++)
+            if (((ProjectJob) order.get(i)).project == 2L)
+                last = i;
+        Assert.assertTrue("last job of project 2 ran " + last, last < 16);
+        Assert.assertEquals(1L, (long) ((ProjectJob) order.get(16)).project);
+    }
+
+    @Test
+    public void testAdmissionControl() throws Exception {
+        final DBService dbs = DBServiceImpl.getInstance();
+        CountDownLatch latch = new CountDownLatch(1);
+        System.setProperty("eu.sqooss.scheduler.admission.queued", "10");
+        System.setProperty("eu.sqooss.scheduler.admission.heap", "0");
+        try {
+            blockWorker(latch);
+        } finally {
+            System.clearProperty("eu.sqooss.scheduler.admission.queued");
+            System.clearProperty("eu.sqooss.scheduler.admission.heap");
+        }
+
+        final List<Job> order = Collections.synchronizedList(new ArrayList<Job>());
+        final List<Job> jobs = Collections.synchronizedList(new ArrayList<Job>());
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        Job j = new PriorityJob(0, order, dbs);
+                        jobs.add(j);
+                        sched.enqueue(j);
+                    }
+                } catch (SchedulerException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        producer.start();
+
+        SchedulerStats s = sched.getSchedulerStats();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (s.getBlockedProducers() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        Assert.assertEquals(1, s.getBlockedProducers());
+        Assert.assertEquals(10, s.getWaitingJobs());
+        Assert.assertTrue(producer.isAlive());
+
+        latch.countDown();
+        producer.join(10000);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertEquals(50, jobs.size());
+        for (Job j : jobs)
+            j.future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(0, s.getBlockedProducers());
+        Assert.assertTrue(s.getThrottledEnqueues() > 0);
+    }
+
+    @Test
+    public void testAdmissionLetsWorkersThrough() throws Exception {
+        final DBService dbs = DBServiceImpl.getInstance();
+        System.setProperty("eu.sqooss.scheduler.admission.queued", "10");
+        System.setProperty("eu.sqooss.scheduler.admission.heap", "0");
+        try {
+            sched.stopExecute();
+            sched.startExecute(1);
+        } finally {
+            System.clearProperty("eu.sqooss.scheduler.admission.queued");
+            System.clearProperty("eu.sqooss.scheduler.admission.heap");
+        }
+
+        /* A job queuing jobs is not held up by the queue it fills */
+        final List<Job> order = Collections.synchronizedList(new ArrayList<Job>());
+        final List<Job> jobs = Collections.synchronizedList(new ArrayList<Job>());
+        Job producer = new TestJob(1, "Producer", dbs) {
+            protected void run() throws Exception {
+                for (int i = 0; i < 50; i++) {
+                    Job j = new PriorityJob(0, order, dbs);
+                    jobs.add(j);
+                    sched.enqueue(j);
+                }
+            }
+        };
+        sched.enqueue(producer);
+        producer.future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(Job.State.Finished, producer.state());
+        Assert.assertEquals(50, jobs.size());
+        for (Job j : jobs)
+            j.future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(0, sched.getSchedulerStats().getThrottledEnqueues());
+    }
+
+    static class KeyedJob extends PriorityJob {
+        final String key;
+
+        KeyedJob(String key, List<Job> order, DBService dbs) {
+            super(0, order, dbs);
+            this.key = key;
+        }
+
+        public String key() {
+            return key;
+        }
+    }
+
+    @Test
+    public void testCollapseEquivalentJobs() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        CountDownLatch latch = new CountDownLatch(1);
+        blockWorker(latch);
+
+        List<Job> order = Collections.synchronizedList(new ArrayList<Job>());
+        Job first = new KeyedJob("a", order, dbs);
+        Job again = new KeyedJob("a", order, dbs);
+        Job other = new KeyedJob("b", order, dbs);
+        Job after = new PriorityJob(0, order, dbs);
+        after.addDependency(again);
+        sched.enqueue(first);
+        sched.enqueue(again);
+        sched.enqueue(other);
+        sched.enqueue(after);
+        Assert.assertEquals(Job.State.Queued, again.state());
+        Assert.assertEquals(1, sched.getSchedulerStats().getCollapsedJobs());
+
+        latch.countDown();
+        awaitDone(after);
+        awaitDone(other);
+
+        /* The collapsed job ended with the first, without running */
+        Assert.assertEquals(Job.State.Finished, again.state());
+        Assert.assertEquals(3, order.size());
+        Assert.assertTrue(order.contains(first));
+        Assert.assertFalse(order.contains(again));
+        Assert.assertTrue(order.indexOf(first) < order.indexOf(after));
+
+        /* Once it has ended, the key is free again */
+        Job later = new KeyedJob("a", order, dbs);
+        sched.enqueue(later);
+        awaitDone(later);
+        Assert.assertTrue(order.contains(later));
+    }
+
+    @Test
+    public void testDequeueCollapsedOnto() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        CountDownLatch latch = new CountDownLatch(1);
+        blockWorker(latch);
+
+        List<Job> order = Collections.synchronizedList(new ArrayList<Job>());
+        Job first = new KeyedJob("a", order, dbs);
+        Job again = new KeyedJob("a", order, dbs);
+        sched.enqueue(first);
+        sched.enqueue(again);
+        sched.dequeue(first);
+        Assert.assertEquals(Job.State.Created, first.state());
+
+        /* The work is still done, by the job that was collapsed */
+        latch.countDown();
+        awaitDone(again);
+        Assert.assertEquals(Job.State.Finished, again.state());
+        Assert.assertEquals(Collections.singletonList(again), order);
+    }
+
+    @Test
+    public void testTimeBudget() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        BudgetJob stuck = new BudgetJob(300, 60000, dbs);
+        sched.enqueue(stuck);
+        awaitDone(stuck);
+
+        Assert.assertEquals(Job.State.Error, stuck.state());
+        Assert.assertTrue(stuck.isCancelled());
+        Assert.assertTrue(stuck.getErrorException() instanceof TimeoutException);
+        SchedulerStats stats = sched.getSchedulerStats();
+        Assert.assertEquals(1, stats.getTimedOutJobs());
+        Assert.assertEquals(Integer.valueOf(1),
+                stats.getTimedOutJobTypes().get(BudgetJob.class.getName()));
+
+        /* The interruption does not carry over to the next jobs */
+        List<BudgetJob> next = new ArrayList<BudgetJob>();
+        for (int i = 0; i < 4; i++)
+            next.add(new BudgetJob(300, 10, dbs));
+        sched.enqueueBlock(new ArrayList<Job>(next));
+        for (BudgetJob j : next) {
+            awaitDone(j);
+            Assert.assertEquals(Job.State.Finished, j.state());
+            Assert.assertFalse(j.interrupted);
+        }
+        Assert.assertEquals(1, stats.getTimedOutJobs());
+    }
+
+    @Test
+    public void testResourceUsage() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        List<Job> jobs = new ArrayList<Job>();
+        for (int i = 0; i < 4; i++)
+            jobs.add(new PluginJob("busy", dbs));
+        sched.enqueueBlock(jobs);
+        for (Job j : jobs)
+            j.future.get(10, TimeUnit.SECONDS);
+
+        SchedulerStats stats = sched.getSchedulerStats();
+        ResourceUsage plugin = stats.getPluginUsage().get("busy");
+        Assert.assertEquals(4, plugin.getJobs());
+        Assert.assertTrue(plugin.getCpuTime() > 0);
+        Assert.assertTrue(plugin.getCpuTime() <= plugin.getRunTime() * 2);
+        Assert.assertTrue(plugin.getAllocatedBytes() >= 4 * PluginJob.ALLOCATED);
+        ResourceUsage type = stats.getJobUsage().get(PluginJob.class.getName());
+        Assert.assertEquals(4, type.getJobs());
+        Assert.assertEquals(plugin.getCpuTime(), type.getCpuTime());
+    }
+
+    @Test
+    public void testStopKeepsQueuedJobs() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        sched.stopExecute();
+        TestJob j1 = new TestJob(1, "Job 1", dbs);
+        sched.enqueue(j1);
+        Assert.assertEquals(Job.State.Queued, j1.state());
+
+        sched.startExecute(2);
+        j1.future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(Job.State.Finished, j1.state());
+    }
+
+    static class BudgetJob extends Job {
+        final long budget;
+        final long millis;
+        volatile boolean interrupted;
+        volatile Job current;
+
+        BudgetJob(long budget, long millis, DBService dbs) {
+            super(dbs);
+            this.budget = budget;
+            this.millis = millis;
+        }
+
+        public long priority() {
+            return 0;
+        }
+
+        @Override
+        public long timeBudget() {
+            return budget;
+        }
+
+        protected void run() throws Exception {
+            interrupted = Thread.currentThread().isInterrupted();
+            current = ((WorkerThread) Thread.currentThread()).executedJob();
+            Thread.sleep(millis);
+        }
+    }
+
+    /* Runs a job in its own thread, recording the job its worker runs */
+    static class NestingJob extends Job {
+        final Job inner;
+        volatile Job before;
+        volatile Job after;
+        volatile boolean interrupted;
+
+        NestingJob(Job inner, DBService dbs) {
+            super(dbs);
+            this.inner = inner;
+        }
+
+        public long priority() {
+            return 0;
+        }
+
+        protected void run() throws Exception {
+            WorkerThread w = (WorkerThread) Thread.currentThread();
+            before = w.executedJob();
+            getScheduler().enqueue(inner);
+            w.takeJob(inner);
+            after = w.executedJob();
+            interrupted = Thread.currentThread().isInterrupted();
+        }
+    }
+
+    @Test
+    public void testInnerJobTimesOutAlone() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        sched.stopExecute();
+        sched.startExecute(1);
+        BudgetJob inner = new BudgetJob(300, 60000, dbs);
+        NestingJob outer = new NestingJob(inner, dbs);
+        sched.enqueue(outer);
+        outer.future.get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(Job.State.Error, inner.state());
+        Assert.assertEquals(Job.State.Finished, outer.state());
+        Assert.assertFalse(outer.isCancelled());
+        Assert.assertFalse(outer.interrupted);
+        /* Locks are owned by the job the worker runs, not by the worker */
+        Assert.assertSame(outer, outer.before);
+        Assert.assertSame(inner, inner.current);
+        Assert.assertSame(outer, outer.after);
+    }
+
+    static class PluginJob extends Job {
+        static final int ALLOCATED = 1 << 20;
+        final String plugin;
+        volatile long sum;
+
+        PluginJob(String plugin, DBService dbs) {
+            super(dbs);
+            this.plugin = plugin;
+        }
+
+        public long priority() {
+            return 0;
+        }
+
+        @Override
+        public String plugin() {
+            return plugin;
+        }
+
+        protected void run() throws Exception {
+            byte[] b = new byte[ALLOCATED];
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20);
+            while (System.nanoTime() < deadline)
+                for (int i = 0; i < b.length; i += 4096)
+                    sum += b[i]++;
+        }
+    }
+
+    static class TaggedJob extends Job {
+        final AtomicInteger running;
+        final AtomicInteger maxRunning;
+        final CountDownLatch latch;
+
+        TaggedJob(AtomicInteger running, AtomicInteger maxRunning,
+                CountDownLatch latch, DBService dbs) {
+            super(dbs);
+            this.running = running;
+            this.maxRunning = maxRunning;
+            this.latch = latch;
+        }
+
+        public long priority() {
+            return 0;
+        }
+
+        public String[] tags() {
+            return new String[] {"process-spawning"};
+        }
+
+        protected void run() throws Exception {
+            int now = running.incrementAndGet();
+            synchronized (maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), now));
+            }
+            latch.await();
+            Thread.sleep(1);
+            running.decrementAndGet();
+        }
+    }
+
+    private void startWithBulkheads(String limits) {
+        sched.stopExecute();
+        System.setProperty("eu.sqooss.scheduler.bulkheads", limits);
+        try {
+            sched.startExecute(4);
+        } finally {
+            System.clearProperty("eu.sqooss.scheduler.bulkheads");
+        }
+    }
+
+    @Test
+    public void testBulkheads() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        startWithBulkheads("process-spawning=2");
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch open = new CountDownLatch(0);
+        Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        List<Job> jobs = new ArrayList<Job>();
+        for (int i = 0; i < 50; i++) {
+            jobs.add(new TaggedJob(running, maxRunning, open, dbs));
+            jobs.add(new ThreadRecordingJob(threads, dbs));
+        }
+        sched.enqueueBlock(jobs);
+        for (Job j : jobs)
+            j.future.get(10, TimeUnit.SECONDS);
+
+        Assert.assertTrue(maxRunning.get() <= 2);
+        /* Untagged jobs were not held back */
+        Assert.assertTrue(threads.size() > 1);
+    }
+
+    @Test
+    public void testBulkheadOccupancy() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        startWithBulkheads("process-spawning=1," + TestJob.class.getName() + "=3");
+        SchedulerStats stats = sched.getSchedulerStats();
+        Assert.assertEquals(Integer.valueOf(1), stats.getBulkheadLimits().get("process-spawning"));
+        Assert.assertEquals(Integer.valueOf(3), stats.getBulkheadLimits().get(TestJob.class.getName()));
+
+        AtomicInteger running = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(1);
+        Job first = new TaggedJob(running, new AtomicInteger(), latch, dbs);
+        Job second = new TaggedJob(running, new AtomicInteger(), latch, dbs);
+        sched.enqueue(first);
+        sched.enqueue(second);
+        while (stats.getBulkheadWaitingJobs().get("process-spawning") != 1)
+            Thread.sleep(1);
+        Assert.assertEquals(Integer.valueOf(1), stats.getBulkheadRunningJobs().get("process-spawning"));
+        Assert.assertEquals(1, running.get());
+
+        /* Other jobs still run while the bulkhead is full */
+        TestJob other = new TestJob(1, "Other", dbs);
+        sched.enqueue(other);
+        other.future.get(10, TimeUnit.SECONDS);
+
+        latch.countDown();
+        first.future.get(10, TimeUnit.SECONDS);
+        second.future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(Integer.valueOf(0), stats.getBulkheadRunningJobs().get("process-spawning"));
+        Assert.assertEquals(Integer.valueOf(0), stats.getBulkheadWaitingJobs().get("process-spawning"));
+    }
+
+    /* Fails with a lock timeout until it has run the given times */
+    static class FlakyJob extends Job {
+        final int failures;
+        final List<Long> attempts = Collections.synchronizedList(new ArrayList<Long>());
+
+        FlakyJob(int failures, DBService dbs) {
+            super(dbs);
+            this.failures = failures;
+        }
+
+        public long priority() {
+            return 0;
+        }
+
+        protected void run() throws Exception {
+            attempts.add(System.nanoTime());
+            if (attempts.size() <= failures)
+                throw new RetryException(RetryException.Failure.LOCK, "locked");
+        }
+    }
+
+    private void startWithLockRetries(String policy) {
+        sched.stopExecute();
+        System.setProperty("eu.sqooss.scheduler.retry.lock", policy);
+        try {
+            sched.startExecute(2);
+        } finally {
+            System.clearProperty("eu.sqooss.scheduler.retry.lock");
+        }
+    }
+
+    private static void awaitDone(Job j) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (j.state() != Job.State.Finished && j.state() != Job.State.Error
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+    }
+
+    @Test
+    public void testRetryBackoff() throws Exception {
+        startWithLockRetries("5,40,1000");
+        FlakyJob j = new FlakyJob(3, DBServiceImpl.getInstance());
+        sched.enqueue(j);
+        awaitDone(j);
+
+        Assert.assertEquals(Job.State.Finished, j.state());
+        Assert.assertEquals(4, j.attempts.size());
+        Assert.assertEquals(3, j.retries());
+        /* The delays double, less up to half of each */
+        for (int i = 1; i < j.attempts.size(); i++) {
+            long waited = TimeUnit.NANOSECONDS.toMillis(
+                    j.attempts.get(i) - j.attempts.get(i - 1));
+            Assert.assertTrue("retry " + i + " after " + waited + "ms",
+                    waited >= (40 << (i - 1)) / 2);
+        }
+        SchedulerStats s = sched.getSchedulerStats();
+        Assert.assertEquals(3, s.getRetries());
+        Assert.assertEquals(Integer.valueOf(3), s.getRetryTypes().get("LOCK"));
+        Assert.assertEquals(0, s.getRetryingJobs());
+    }
+
+    @Test
+    public void testRetriesUsedUp() throws Exception {
+        startWithLockRetries("2,1,1");
+        FlakyJob j = new FlakyJob(Integer.MAX_VALUE, DBServiceImpl.getInstance());
+        sched.enqueue(j);
+        awaitDone(j);
+
+        Assert.assertEquals(Job.State.Error, j.state());
+        Assert.assertEquals(3, j.attempts.size());
+        Assert.assertEquals(2, j.retries());
+        Assert.assertTrue(j.getErrorException() instanceof RetryException);
+        Assert.assertEquals(Integer.valueOf(1),
+                sched.getSchedulerStats().getFailedJobTypes().get(FlakyJob.class.getName()));
+    }
+
+    private static void awaitRetries(Job j, int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (j.retries() < n && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        Assert.assertEquals(n, j.retries());
+    }
+
+    @Test
+    public void testRetryKeepsFuturePending() throws Exception {
+        startWithLockRetries("5,200,200");
+        FlakyJob j = new FlakyJob(1, DBServiceImpl.getInstance());
+        sched.enqueue(j);
+        awaitRetries(j, 1);
+
+        Assert.assertFalse(j.future.isDone());
+        Assert.assertTrue(sched.jobIsQueuedForWork(j));
+        j.future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(Job.State.Finished, j.state());
+        Assert.assertEquals(2, j.attempts.size());
+    }
+
+    @Test
+    public void testDequeueDuringRetryDelay() throws Exception {
+        startWithLockRetries("5,200,200");
+        FlakyJob j = new FlakyJob(1, DBServiceImpl.getInstance());
+        sched.enqueue(j);
+        awaitRetries(j, 1);
+        sched.dequeue(j);
+
+        Thread.sleep(400);
+        Assert.assertEquals(1, j.attempts.size());
+        Assert.assertTrue(j.future == null || j.future.isDone());
+        SchedulerStats s = sched.getSchedulerStats();
+        Assert.assertEquals(0, s.getRetryingJobs());
+        Assert.assertEquals(0, s.getWaitingJobs());
+        Assert.assertEquals(0, s.getTotalJobs());
+    }
+
+    @Test
+    public void testStopDuringRetryDelay() throws Exception {
+        startWithLockRetries("5,200,200");
+        FlakyJob j = new FlakyJob(1, DBServiceImpl.getInstance());
+        sched.enqueue(j);
+        awaitRetries(j, 1);
+        sched.stopExecute();
+
+        Thread.sleep(400);
+        Assert.assertEquals(1, j.attempts.size());
+        sched.startExecute(2);
+        awaitDone(j);
+        Assert.assertEquals(Job.State.Finished, j.state());
+        Assert.assertEquals(2, j.attempts.size());
+    }
+
+    /* Runs for the given time, counting the jobs running alongside */
+    static class SleepJob extends Job {
+        final long millis;
+        final AtomicInteger running;
+        final AtomicInteger maxRunning;
+
+        SleepJob(long millis, AtomicInteger running, AtomicInteger maxRunning,
+                DBService dbs) {
+            super(dbs);
+            this.millis = millis;
+            this.running = running;
+            this.maxRunning = maxRunning;
+        }
+
+        public long priority() {
+            return 0;
+        }
+
+        protected void run() throws Exception {
+            int now = running.incrementAndGet();
+            synchronized (maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), now));
+            }
+            Thread.sleep(millis);
+            running.decrementAndGet();
+        }
+    }
+
+    @Test
+    public void testAdaptiveConcurrency() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        sched.stopExecute();
+        System.setProperty("eu.sqooss.scheduler.minthreads", "1");
+        try {
+            sched.startExecute(4);
+        } finally {
+            System.clearProperty("eu.sqooss.scheduler.minthreads");
+        }
+        SchedulerStats s = sched.getSchedulerStats();
+        Assert.assertEquals(4, s.getConcurrencyLimit());
+
+        /* Jobs that suddenly run much longer than usual cut the limit */
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Job> jobs = new ArrayList<Job>();
+        for (int i = 0; i < 20; i++)
+            jobs.add(new SleepJob(1, running, maxRunning, dbs));
+        for (Job j : jobs)
+            sched.enqueue(j);
+        for (Job j : jobs)
+            j.future.get(10, TimeUnit.SECONDS);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (s.getConcurrencyLimit() == 4 && System.currentTimeMillis() < deadline) {
+            Job j = new SleepJob(200, running, maxRunning, dbs);
+            sched.enqueue(j);
+            j.future.get(10, TimeUnit.SECONDS);
+        }
+        int limit = s.getConcurrencyLimit();
+        Assert.assertTrue("limit " + limit, limit < 4);
+
+        /* The limit holds while it keeps going down */
+        maxRunning.set(0);
+        jobs.clear();
+        for (int i = 0; i < 12; i++)
+            jobs.add(new SleepJob(200, running, maxRunning, dbs));
+        for (Job j : jobs)
+            sched.enqueue(j);
+        for (Job j : jobs)
+            j.future.get(10, TimeUnit.SECONDS);
+        Assert.assertTrue("ran " + maxRunning.get() + " at once, limit " + limit,
+                maxRunning.get() <= limit);
+    }
+
+    @Test
+    public void testIOBoundJobs() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        CountDownLatch gate = new CountDownLatch(1);
+        blockWorker(gate);
+
+        /* Each job waits for all of them, which takes that many threads */
+        final CountDownLatch inFlight = new CountDownLatch(20);
+        List<Job> jobs = new ArrayList<Job>();
+        for (int i = 0; i < 20; i++) {
+            jobs.add(new TestJob(1, "IO " + i, dbs) {
+                public String[] tags() {
+                    return new String[] {IO_BOUND};
+                }
+
+                protected void run() throws Exception {
+                    inFlight.countDown();
+                    inFlight.await();
+                }
+            });
+        }
+        sched.enqueueBlock(jobs);
+        for (Job j : jobs)
+            j.future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(0, inFlight.getCount());
+        /* The CPU bound worker was busy all along */
+        Assert.assertEquals(1, gate.getCount());
+        gate.countDown();
+    }
+
+    static class DurableTestJob extends PriorityJob implements DurableJob {
+        final String name;
+
+        DurableTestJob(String name, List<Job> order, DBService dbs) {
+            super(0, order, dbs);
+            this.name = name;
+        }
+
+        public String journalType() {
+            return "test";
+        }
+
+        public String journalRecord() {
+            return name;
+        }
+    }
+
+    private SchedulerServiceImpl startJournaling(File journal) {
+        System.setProperty("eu.sqooss.scheduler.journal", journal.getPath());
+        try {
+            SchedulerServiceImpl s = new SchedulerServiceImpl();
+            s.startUp();
+            return s;
+        } finally {
+            System.clearProperty("eu.sqooss.scheduler.journal");
+        }
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+        final DBService dbs = DBServiceImpl.getInstance();
+        File file = File.createTempFile("jobs", ".journal");
+        file.delete();
+        final List<Job> order = Collections.synchronizedList(new ArrayList<Job>());
+
+        SchedulerServiceImpl first = startJournaling(file);
+        Job done = new DurableTestJob("done", order, dbs);
+        first.enqueue(done);
+        done.future.get(10, TimeUnit.SECONDS);
+
+        /* Pending at the restart, b depends on a through a plain job */
+        first.stopExecute();
+        Job a = new DurableTestJob("a", order, dbs);
+        Job c = new TestJob(1, "c", dbs);
+        Job b = new DurableTestJob("b", order, dbs);
+        c.addDependency(a);
+        b.addDependency(c);
+        first.enqueue(b);
+        first.enqueue(c);
+        first.enqueue(a);
+        first.shutDown();
+
+        order.clear();
+        SchedulerServiceImpl second = startJournaling(file);
+        JobFactory factory = new JobFactory() {
+            public Job restore(String record) throws Exception {
+                return new DurableTestJob(record, order, dbs);
+            }
+        };
+        try {
+            Assert.assertEquals(0, second.restoreJobs("other", factory));
+            Assert.assertEquals(2, second.restoreJobs("test", factory));
+            while (second.getSchedulerStats().getFinishedJobs() < 2)
+                Thread.sleep(1);
+            Assert.assertEquals(2, order.size());
+            Assert.assertEquals("a", ((DurableTestJob) order.get(0)).name);
+            Assert.assertEquals("b", ((DurableTestJob) order.get(1)).name);
+        } finally {
+            second.stopExecute();
+            second.shutDown();
+        }
+
+        /* Nothing left once the restored jobs have finished */
+        SchedulerServiceImpl third = startJournaling(file);
+        try {
+            Assert.assertEquals(0, third.restoreJobs("test", factory));
+        } finally {
+            third.stopExecute();
+            third.shutDown();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        Assert.assertEquals(0, h.getPercentile(50));
+        for (int i = 1; i <= 1000; i++)
+            h.record(i * 1000L);
+
+        Assert.assertEquals(1000, h.getCount());
+        Assert.assertEquals(1000, h.getMax());
+        /* Within the 12.5% bucket width */
+        Assert.assertEquals(500, h.getPercentile(50), 500 / 8);
+        Assert.assertEquals(990, h.getPercentile(99), 990 / 8);
+        Assert.assertEquals(1000, h.getPercentile(100));
+    }
+
+    @Test
+    public void testLatencyStats() throws Exception {
+        DBService dbs = DBServiceImpl.getInstance();
+        List<Job> jobs = new ArrayList<Job>();
+        for (int i = 0; i < 10; i++)
+            jobs.add(new TestJob(1, "Job " + i, dbs));
+        sched.enqueueBlock(jobs);
+        for (Job j : jobs)
+            j.future.get(10, TimeUnit.SECONDS);
+
+        SchedulerStats stats = sched.getSchedulerStats();
+        String type = TestJob.class.getName();
+        Assert.assertEquals(10, stats.getRunTimes().get(type).getCount());
+        Assert.assertEquals(10, stats.getWaitTimes().get(type).getCount());
+        Assert.assertFalse(stats.getWaitingJobTypes().containsKey(type));
+    }
+
     //@Test
     //public void 
     
@@ -110,7 +110,8 @@ import javax.xml.xpath.*;
 @MetricDecl(mnemonic = "TMP",      activators = {ProjectVersion.class}, descr = "MS: Field should be package protected (total)"),
 @MetricDecl(mnemonic = "TMSBF",    activators = {ProjectVersion.class}, descr = "MS: Field isn't final but should be (total)")
 })
-@SchedulerHints(invocationOrder = InvocationOrder.NEWFIRST, activationOrder = {ProjectVersion.class})
+@SchedulerHints(invocationOrder = InvocationOrder.NEWFIRST, activationOrder = {ProjectVersion.class},
+    tags = {"process-spawning"}, timeBudget = 2 * 60 * 60 * 1000)
 public class FindbugsMetrics extends AbstractMetric {
 
     static String MAVEN_PATH = "";
@@ -371,13 +372,14 @@ public class FindbugsMetrics extends AbstractMetric {
     public int runReadOutput(Process pr, String name) throws IOException {
         OutReader outReader = new OutReader(pr.getInputStream(), name);
         outReader.start();
-        int retVal = -1;
-        while (retVal == -1) {
-            try {
-                retVal = pr.waitFor();
-            } catch (Exception ignored) {}
+        try {
+            return pr.waitFor();
+        } catch (InterruptedException e) {
+            /* The job was cancelled; do not leave the build running */
+            pr.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(name + " interrupted");
         }
-        return retVal;
     }
 
     /**
@@ -76,6 +76,11 @@ public class BugzillaXMLJob extends Job {
         return 3;
     }
 
+    @Override
+    public String[] tags() {
+        return new String[] {IO_BOUND};
+    }
+
     @Override
     protected void run() throws Exception {
 
@@ -77,6 +77,11 @@ public class MailMessageJob extends Job{
         return 3;
     }
 
+    @Override
+    public String[] tags() {
+        return new String[] {IO_BOUND};
+    }
+
     @Override
     protected void run() throws Exception {
         